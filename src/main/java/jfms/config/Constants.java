@@ -15,6 +15,8 @@ public class Constants {
 	public static final int ONLINE_CHECK_INTERVAL    =  60; //  1m
 	public static final int INSERT_IDLE_TIME         = 300; //  5m
 	public static final long DOWNLOAD_IDLE_TIME      = 900; // 15m
+	public static final int MESSAGELIST_POLL_MIN_INTERVAL =   900; // 15m
+	public static final int MESSAGELIST_POLL_MAX_INTERVAL = 86400; //  1d
 
 	public static final int TTL_IDENTITY           =  120; //  2h
 	public static final int TTL_TRUSTLIST          =  120; //  2h
@@ -22,6 +24,23 @@ public class Constants {
 	public static final int TTL_MESSAGE            =  360; //  6h
 	public static final int TTL_ID_INTRODUCTION    =   60; //  1h
 
+	public static final int TIMEOUT_IDENTITY       =  600; // 10m
+	public static final int TIMEOUT_TRUSTLIST      =  600; // 10m
+	public static final int TIMEOUT_MESSAGELIST    =  600; // 10m
+	public static final int TIMEOUT_MESSAGE        =  900; // 15m
+	public static final int TIMEOUT_INTRODUCTION   =  600; // 10m
+	public static final int TIMEOUT_DEFAULT        =  900; // 15m
+	public static final int FCP_CONNECT_TIMEOUT    =   30; // 30s
+	public static final int FCP_RECONNECT_DELAY    =    1; // 1s
+	public static final int FCP_RECONNECT_MAX_DELAY =  64; // 64s
+	public static final int FCP_RECONNECT_ATTEMPTS =   10;
+
+	// FCP priority classes
+	public static final int PRIORITY_INTERACTIVE   =    1;
+	public static final int PRIORITY_SEMI_INTERACTIVE = 2;
+	public static final int PRIORITY_UPDATE        =    3;
+	public static final int PRIORITY_BULK          =    4;
+
 	public static final int ADD_SEED_IDENTITY      =   -1;
 	public static final int ADD_MANUALLY           =   -2;
 	public static final int ADD_PUZZLE_SOLVED      =   -3;
@@ -31,6 +50,8 @@ public class Constants {
 	// FRED FetchException error codes are limited to 1024
 	public static final int CODE_RECENTLY_TRIED    = 9001;
 	public static final int CODE_PARSE_FAILED      = 9002;
+	public static final int CODE_TIMEOUT           = 9003;
+	public static final int CODE_DISCONNECTED      = 9004;
 
 	// default settings
 	public static final String DEFAULT_FALSE       = "false";
@@ -50,6 +71,12 @@ public class Constants {
 	public static final String DEFAULT_MAX_IDENTITY_AGE = "7";
 	public static final String DEFAULT_MAX_MESSAGE_AGE = "30";
 	public static final String DEFAULT_MAX_FCP_REQUESTS = "5";
+	public static final String DEFAULT_ADAPTIVE_FCP_REQUESTS = "true";
+	public static final String DEFAULT_FCP_CONNECTIONS = "2";
+	public static final String DEFAULT_SUBSCRIBE_MESSAGELISTS = "false";
+	public static final String DEFAULT_PREDICT_MESSAGELISTS = "true";
+	public static final String DEFAULT_TRUSTLIST_PROBE_WINDOW = "4";
+	public static final String DEFAULT_PROBE_IDENTITY_DATES = "true";
 	public static final String DEFAULT_DOWNLOAD_PRIORITY = "default";
 	public static final String DEFAULT_UPLOAD_PRIORITY = "default";
 	public static final String DEFAULT_LOG_LEVEL = "FINE";
@@ -63,6 +90,7 @@ public class Constants {
 
 	// fixed values
 	public static final String DATABASE_FILE = "jfms.db3";
+	public static final String REQUEST_CACHE_FILE = "requestcache.bin";
 	public static final String DATABASE_URL = "jdbc:sqlite:" + DATABASE_FILE;
 	public static final String DATABASE_DRIVER = "org.sqlite.JDBC";
 	public static final String DATABASE_USER = null;
@@ -74,6 +102,11 @@ public class Constants {
 
 	public static final int DEFAULT_SEED_TRUST = 90;
 	public static final int MAX_INSERTS = 2;
+	public static final int MAX_CALLBACK_THREADS = 2;
+	public static final int MIN_ADAPTIVE_FCP_REQUESTS = 1;
+	public static final int MAX_ADAPTIVE_FCP_REQUESTS = 64;
+	public static final int MAX_PENDING_CALLBACKS = 64;
+	public static final int MAX_BUFFERED_PAYLOAD = 65536; // 64KB
 	public static final int MAX_CONCURRENT_PUZZLE_REQUESTS = 2;
 	public static final int MAX_PUZZLE_REQUESTS = 20;
 	public static final int MAX_IDENTITY_INDEX = 0;
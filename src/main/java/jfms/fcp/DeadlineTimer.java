@@ -0,0 +1,147 @@
+package jfms.fcp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timer wheel for request deadlines.
+ * Deadlines are sorted into buckets of one tick; every tick the timer
+ * thread only looks at a single bucket. Scheduling and cancelling is
+ * constant time, so a deadline can be kept for every request. Deadlines
+ * fire with a delay of up to one tick.
+ * The timer thread is a daemon thread that is started on demand and
+ * terminates when no deadlines are pending.
+ */
+class DeadlineTimer {
+	private static final Logger LOG = Logger.getLogger(DeadlineTimer.class.getName());
+
+	private static final long TICK_MILLIS = 1000;
+	private static final int WHEEL_SIZE = 512;
+
+	private final Queue<Deadline>[] wheel;
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final Object lock = new Object();
+	private Thread thread;
+
+	// last tick whose bucket was processed; only used by the timer thread
+	private long processedTick;
+
+	static class Deadline {
+		private final long expiry;
+		private final Runnable task;
+		private volatile boolean cancelled;
+
+		Deadline(long expiry, Runnable task) {
+			this.expiry = expiry;
+			this.task = task;
+		}
+
+		/**
+		 * Prevents the task from running.
+		 * Has no effect if the task is already running.
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+
+		boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	DeadlineTimer() {
+		wheel = new Queue[WHEEL_SIZE];
+		for (int i=0; i<WHEEL_SIZE; i++) {
+			wheel[i] = new ConcurrentLinkedQueue<>();
+		}
+		processedTick = System.currentTimeMillis() / TICK_MILLIS - 1;
+	}
+
+	/**
+	 * Runs the task in the timer thread after the delay has passed.
+	 * The task must not block.
+	 */
+	Deadline schedule(Runnable task, long delay, TimeUnit unit) {
+		final long expiry = System.currentTimeMillis() +
+			Math.max(unit.toMillis(delay), 0);
+		final Deadline deadline = new Deadline(expiry, task);
+
+		wheel[slot(expiry / TICK_MILLIS)].add(deadline);
+		pendingCount.incrementAndGet();
+
+		synchronized (lock) {
+			if (thread == null) {
+				thread = new Thread(this::run, "FcpDeadlineTimer");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		return deadline;
+	}
+
+	private void run() {
+		while (true) {
+			synchronized (lock) {
+				if (pendingCount.get() == 0) {
+					thread = null;
+					return;
+				}
+			}
+
+			// a bucket is processed once its tick has passed completely
+			final long now = System.currentTimeMillis();
+			final long currentTick = now / TICK_MILLIS;
+			if (processedTick >= currentTick - 1) {
+				try {
+					Thread.sleep((processedTick + 2) * TICK_MILLIS - now);
+				} catch (InterruptedException e) {
+					LOG.log(Level.FINE, "deadline timer interrupted");
+				}
+				continue;
+			}
+
+			// after a long pause, one round covers all buckets
+			final long lastTick = Math.min(currentTick - 1,
+					processedTick + WHEEL_SIZE);
+			while (processedTick < lastTick) {
+				processedTick++;
+				expireBucket(wheel[slot(processedTick)], now);
+			}
+			processedTick = currentTick - 1;
+		}
+	}
+
+	private void expireBucket(Queue<Deadline> bucket, long now) {
+		final int size = bucket.size();
+		for (int i=0; i<size; i++) {
+			final Deadline deadline = bucket.poll();
+			if (deadline == null) {
+				break;
+			}
+
+			if (deadline.isCancelled()) {
+				pendingCount.decrementAndGet();
+			} else if (deadline.expiry <= now) {
+				pendingCount.decrementAndGet();
+				try {
+					deadline.task.run();
+				} catch (RuntimeException e) {
+					LOG.log(Level.WARNING, "Exception in deadline task", e);
+				}
+			} else {
+				// expires in a later round of the wheel
+				bucket.add(deadline);
+			}
+		}
+	}
+
+	private static int slot(long tick) {
+		return (int)(tick & (WHEEL_SIZE - 1));
+	}
+}
@@ -1,16 +1,25 @@
 package jfms.fcp;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -20,11 +29,38 @@ import jfms.config.Constants;
 public class FcpClient {
 	private static final Logger LOG = Logger.getLogger(FcpClient.class.getName());
 
+	private static final DeadlineTimer deadlineTimer = new DeadlineTimer();
+
+	// placeholder for requests that timed out; remaining responses are
+	// ignored until the node confirms the removal
+	private static final FcpListener REMOVED_LISTENER = new FcpListener() {
+		@Override
+		public void error(String fcpIdentifier, int code) {
+		}
+
+		@Override
+		public void redirect(String fcpIdentifier, String redirectURI) {
+		}
+
+		@Override
+		public void finished(String fcpIdentifier, byte[] data) {
+		}
+
+		@Override
+		public void putSuccessful(String fcpIdentifier, String key) {
+		}
+
+		@Override
+		public void keyPairGenerated(String fcpIdentifier, String publicKey,
+				String privateKey) {
+		}
+	};
+
 	private final String name;
 	private final String host;
 	private final int port;
-	private final ByteBuffer buffer = ByteBuffer.allocate(4096);
-	private boolean dataNeeded = true;
+	private final FcpResponseDecoder decoder = new FcpResponseDecoder();
+	private final FcpResponse response = new FcpResponse();
 	private final AtomicBoolean stop = new AtomicBoolean();
 	private volatile SocketChannel channel;
 	private volatile Thread receiverThread;
@@ -33,11 +69,38 @@ public class FcpClient {
 	private final Map<String, FcpListener> listenerMap = new ConcurrentHashMap<>();
 	private FcpStatusListener statusListener;
 
-	private final RequestCache requestCache = new RequestCache();
+	private final PrioritySendQueue<PendingMessage> sendQueue =
+		new PrioritySendQueue<>();
+	// requests holding a slot of the budget: selected for sending or
+	// written to the node, and not finished yet
+	private final Set<String> outstandingRequests =
+		ConcurrentHashMap.newKeySet();
+	private final RequestBudget requestBudget;
+	private final SelectorChannel selectorChannel = new SelectorChannel();
+	private volatile Selector selector;
+	private volatile SelectionKey selectionKey;
+
+	private final RequestCache requestCache;
+	private final FcpMetrics metrics;
+	private volatile Path requestCacheFile;
+	private volatile boolean requestCacheLoaded;
+	private volatile FcpSessionRecorder sessionRecorder;
 	private final Map<String, TTLData> ttlMap = new ConcurrentHashMap<>();
+	private final Map<String, Long> requestTimeouts = new ConcurrentHashMap<>();
+	private volatile long defaultRequestTimeout;
+	private final Map<String, DeadlineTimer.Deadline> deadlines =
+		new ConcurrentHashMap<>();
+	// messages of outstanding requests that are sent again after reconnect
+	private final Map<String, Runnable> replayMap = new ConcurrentHashMap<>();
+	private final Map<String, Subscription> subscriptionMap =
+		new ConcurrentHashMap<>();
+	private volatile long readDeadline;
 
 	public enum Status {
 		CONNECTED,
+		// only some connections of a pool are connected
+		DEGRADED,
+		RECONNECTING,
 		DISCONNECTED,
 		CONNECT_FAILED
 	}
@@ -60,10 +123,134 @@ public class FcpClient {
 		}
 	}
 
+	private static class Subscription {
+		private final String uri;
+		private final FcpSubscriptionListener listener;
+
+		public Subscription(String uri, FcpSubscriptionListener listener) {
+			this.uri = uri;
+			this.listener = listener;
+		}
+
+		public String getURI() {
+			return uri;
+		}
+
+		public FcpSubscriptionListener getListener() {
+			return listener;
+		}
+	}
+
+	private static class PendingMessage {
+		private final String identifier;
+		private final ByteBuffer[] buffers;
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		public PendingMessage(String identifier, ByteBuffer[] buffers) {
+			this.identifier = identifier;
+			this.buffers = buffers;
+		}
+
+		/**
+		 * @return identifier of the request, null for control messages
+		 */
+		public String getIdentifier() {
+			return identifier;
+		}
+
+		public ByteBuffer[] getBuffers() {
+			return buffers;
+		}
+
+		public CompletableFuture<Void> getFuture() {
+			return future;
+		}
+	}
+
+	/**
+	 * Blocking view of the non-blocking socket used by the receiver thread.
+	 * While waiting for incoming data, queued messages are written as the
+	 * socket allows.
+	 */
+	private class SelectorChannel implements ReadableByteChannel {
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			while (true) {
+				flushSendQueue();
+
+				final int bytesRead = channel.read(dst);
+				if (bytesRead > 0) {
+					metrics.bytesReceived(bytesRead);
+					final FcpSessionRecorder recorder = sessionRecorder;
+					if (recorder != null) {
+						recorder.recordReceived(dst, bytesRead);
+					}
+				}
+				if (bytesRead != 0 || !dst.hasRemaining()) {
+					return bytesRead;
+				}
+
+				int ops = SelectionKey.OP_READ;
+				if (sendQueue.isReady(canSendRequest())) {
+					ops |= SelectionKey.OP_WRITE;
+				}
+				selectionKey.interestOps(ops);
+				final long deadline = readDeadline;
+				if (deadline == 0) {
+					selector.select();
+				} else {
+					final long remaining = TimeUnit.NANOSECONDS.toMillis(
+							deadline - System.nanoTime());
+					if (remaining <= 0) {
+						throw new SocketTimeoutException(
+								"no response from FCP server");
+					}
+					selector.select(remaining);
+				}
+				selector.selectedKeys().clear();
+
+				if (stop.get() || Thread.currentThread().isInterrupted()) {
+					throw new ClosedByInterruptException();
+				}
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel != null && channel.isOpen();
+		}
+
+		@Override
+		public void close() {
+			closeChannel();
+		}
+	}
+
 	public FcpClient(String name, String host, int port) {
+		this(name, host, port, new RequestCache(), new FcpMetrics());
+	}
+
+	FcpClient(String name, String host, int port, RequestCache requestCache,
+			FcpMetrics metrics) {
+
+		this(name, host, port, requestCache, metrics, new RequestBudget());
+	}
+
+	FcpClient(String name, String host, int port, RequestCache requestCache,
+			FcpMetrics metrics, RequestBudget requestBudget) {
+
 		this.name = name + '-' + UUID.randomUUID().toString();
 		this.host = host;
 		this.port = port;
+		this.requestCache = requestCache;
+		this.metrics = metrics;
+		this.requestBudget = requestBudget;
+		requestBudget.addListener(() -> {
+			// the receiver thread flushes the queue before waiting again
+			if (Thread.currentThread() != receiverThread) {
+				wakeupSender();
+			}
+		});
 	}
 
 	private class Receiver implements Runnable {
@@ -72,26 +259,36 @@ public class FcpClient {
 			LOG.log(Level.FINE, "Starting FCP receiver thread with ID {0}",
 					Thread.currentThread().getId());
 
-			stop.set(false);
-			try {
-				while (!stop.get()) {
-					try {
-						receiveAndHandleResponse();
-					} catch (ClosedByInterruptException e) {
-						LOG.log(Level.FINE, "FCP receiver thread interrupted");
-						stop.set(true);
+			boolean connected = true;
+			while (connected && !stop.get()) {
+				try {
+					receiveAndHandleResponse();
+				} catch (ClosedByInterruptException e) {
+					LOG.log(Level.FINE, "FCP receiver thread interrupted");
+					stop.set(true);
+				} catch (IOException|FcpException e) {
+					if (stop.get()) {
+						break;
 					}
+					LOG.log(Level.WARNING, "Exception in FCP thread", e);
+					connected = reconnect();
+				} catch (Exception e) {
+					LOG.log(Level.WARNING, "Unexpected exception in FCP thread", e);
+					connected = false;
 				}
-			} catch (IOException|FcpException e) {
-				LOG.log(Level.WARNING, "Exception in FCP thread", e);
-
-				statusListener.statusChanged(Status.DISCONNECTED);
-			} catch (Exception e) {
-				LOG.log(Level.WARNING, "Unexpected exception in FCP thread", e);
-				statusListener.statusChanged(Status.DISCONNECTED);
 			}
 
 			closeChannel();
+			synchronized (FcpClient.this) {
+				if (receiverThread == Thread.currentThread()) {
+					// gave up, the next start() connects again
+					receiverThread = null;
+				}
+			}
+			if (!stop.get()) {
+				failOutstandingRequests();
+				statusListener.statusChanged(Status.DISCONNECTED);
+			}
 
 			LOG.log(Level.FINE, "FCP receiver stopped");
 		}
@@ -103,7 +300,18 @@ public class FcpClient {
 			return;
 		}
 
-		if (!connectChannel()) {
+		stop.set(false);
+		// requests left from a previous session have no receiver anymore
+		for (String id : listenerMap.keySet()) {
+			metrics.requestRemoved(id);
+		}
+		deadlines.values().forEach(DeadlineTimer.Deadline::cancel);
+		deadlines.clear();
+		listenerMap.clear();
+		replayMap.clear();
+		ttlMap.clear();
+		subscriptionMap.clear();
+		if (!connectChannel(true)) {
 			LOG.log(Level.WARNING,
 					"Failed to connect to {0}:{1,number,0}", new Object[]{
 					host, port});
@@ -112,10 +320,21 @@ public class FcpClient {
 
 		receiverThread = new Thread(new Receiver());
 		receiverThread.start();
+
+		loadRequestCache();
+	}
+
+	/**
+	 * @return true if the client was started and has neither been shut
+	 * down nor given up reconnecting
+	 */
+	public boolean isRunning() {
+		return receiverThread != null;
 	}
 
 	public synchronized void cleanup() {
 		requestCache.cleanup();
+		saveRequestCache();
 	}
 
 	public synchronized void shutdown() {
@@ -124,6 +343,8 @@ public class FcpClient {
 			return;
 		}
 
+		saveRequestCache();
+
 		LOG.log(Level.FINE, "Interrupting FCP receiver thread...");
 		stop.set(true);
 		receiverThread.interrupt();
@@ -134,92 +355,249 @@ public class FcpClient {
 		statusListener = listener;
 	}
 
+	public FcpMetrics getMetrics() {
+		return metrics;
+	}
+
+	public RequestCache getRequestCache() {
+		return requestCache;
+	}
+
+	/**
+	 * Set file used to keep the negative cache across restarts.
+	 * The file is read on the first start() and written on cleanup() and
+	 * shutdown().
+	 * @param requestCacheFile path of file, null to disable persistence
+	 */
+	public void setRequestCacheFile(Path requestCacheFile) {
+		this.requestCacheFile = requestCacheFile;
+		requestCacheLoaded = false;
+	}
+
+	/**
+	 * Records all traffic of the connection to a file, see
+	 * {@link FcpSessionRecorder}. A running recording is closed.
+	 * @param file path of recording, null to stop recording
+	 */
+	public synchronized void setSessionRecordFile(Path file)
+		throws IOException {
+
+		final FcpSessionRecorder previous = sessionRecorder;
+		sessionRecorder = file != null ? new FcpSessionRecorder(file) : null;
+		if (previous != null) {
+			previous.close();
+		}
+	}
+
+	protected void loadRequestCache() {
+		final Path path = requestCacheFile;
+		if (path == null || requestCacheLoaded) {
+			return;
+		}
+		requestCacheLoaded = true;
+
+		try {
+			requestCache.load(path);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Failed to load negative cache", e);
+		}
+	}
+
+	protected void saveRequestCache() {
+		final Path path = requestCacheFile;
+		if (path == null) {
+			return;
+		}
+
+		try {
+			requestCache.save(path);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Failed to save negative cache", e);
+		}
+	}
+
+	/**
+	 * Sets the time after which ClientGet requests of a request class are
+	 * removed and reported with error code {@link Constants#CODE_TIMEOUT}.
+	 * @param requestClass request class as passed to requestKey, null to
+	 * set the timeout of requests without class-specific timeout
+	 * @param timeout timeout, null or zero to disable
+	 */
+	public void setRequestTimeout(String requestClass, Duration timeout) {
+		final long millis = timeout != null ? timeout.toMillis() : 0;
+		if (requestClass == null) {
+			defaultRequestTimeout = millis;
+		} else {
+			requestTimeouts.put(requestClass, millis);
+		}
+	}
+
+	/**
+	 * Limits the number of requests and inserts that are sent to the node
+	 * at the same time. Further requests are queued by priority class and
+	 * sent when an outstanding request finishes.
+	 * @param maxRequests maximum number of outstanding requests,
+	 * zero or less for no limit
+	 */
+	public void setMaxOutstandingRequests(int maxRequests) {
+		requestBudget.setLimit(maxRequests > 0 ?
+				maxRequests : Integer.MAX_VALUE);
+	}
+
+	public int getMaxOutstandingRequests() {
+		return requestBudget.getLimit();
+	}
+
+	/**
+	 * @return number of requests waiting to be sent to the node
+	 */
+	public int getQueuedRequestCount() {
+		return sendQueue.size();
+	}
+
 	public boolean isRecentlyFailed(String key) {
 		return requestCache.isPresent(key);
 	}
 
-	public synchronized void requestKey(String identifier, String key,
+	public CompletableFuture<Void> requestKey(String identifier, String key,
 			FcpListener listener, int ttl) throws FcpException {
 
-		requestKey(identifier, key, listener, ttl, null, 0);
-	}
-
-	public synchronized boolean requestKey(String identifier, String key,
-										   FcpListener listener, int ttl, List<String> additionalFields) throws FcpException {
 		return requestKey(identifier, key, listener, ttl, null, 0);
 	}
 
-	public synchronized boolean requestKey(String identifier, String key,
-			FcpListener listener, int ttl, List<String> additionalFields, int priority)
+	public CompletableFuture<Void> requestKey(String identifier, String key,
+			FcpListener listener, int ttl, List<String> additionalFields)
 		throws FcpException {
 
+		return requestKey(identifier, key, listener, ttl, additionalFields, 0);
+	}
+
+	public CompletableFuture<Void> requestKey(String identifier, String key,
+			FcpListener listener, int ttl, List<String> additionalFields,
+			int priority) throws FcpException {
+
+		return requestKey(identifier, key, listener, ttl, additionalFields,
+				priority, null);
+	}
+
+	/**
+	 * Queues a ClientGet request.
+	 * @param requestClass name used to group the request in
+	 * {@link FcpMetrics}, null for the default class
+	 * @return handle that completes when the request has been written to
+	 * the node; completed with a {@link RecentlyFailedException} if the
+	 * key failed recently and was not requested. If the handle is already
+	 * completed exceptionally on return, the request was dropped and the
+	 * listener is not called.
+	 */
+	public CompletableFuture<Void> requestKey(String identifier, String key,
+			FcpListener listener, int ttl, List<String> additionalFields,
+			int priority, String requestClass) throws FcpException {
+
 		if (requestCache.isPresent(key)) {
 			LOG.log(Level.FINEST, "Skipping recently failed key {0}", key);
-			return false;
+			final CompletableFuture<Void> future = new CompletableFuture<>();
+			future.completeExceptionally(new RecentlyFailedException(key));
+			return future;
 		}
 
-		try {
-			listenerMap.put(identifier, listener);
-			if (ttl > 0) {
-				ttlMap.put(identifier, new TTLData(key, ttl));
-			}
+		listenerMap.put(identifier, listener);
+		if (ttl > 0) {
+			ttlMap.put(identifier, new TTLData(key, ttl));
+		}
+
+		metrics.requestStarted(identifier, requestClass);
+		scheduleDeadline(identifier, requestClass);
+		replayMap.put(identifier, () ->
+				sendClientGet(identifier, key, additionalFields, priority));
+
+		final CompletableFuture<Void> future =
 			sendClientGet(identifier, key, additionalFields, priority);
-			return true;
-		} catch (IOException e) {
-			throw new FcpException("ClientGet failed", e);
+		if (future.isCompletedExceptionally()) {
+			// not connected, no response or error will ever arrive
+			forgetRequest(identifier);
 		}
+
+		return future;
 	}
-	public synchronized void insertKey(String identifier, String key,
-									   byte[] data, FcpListener listener) throws FcpException {
-		insertKey(identifier, key, data, listener, 0);
-    }
 
-	public synchronized void insertKey(String identifier, String key,
-			byte[] data, FcpListener listener, int priority) throws FcpException {
-		try {
-			listenerMap.put(identifier, listener);
-			sendClientPut(identifier, key, data, priority);
-		} catch (IOException e) {
-			throw new FcpException("ClientPut failed", e);
-		}
+	public CompletableFuture<Void> insertKey(String identifier, String key,
+			byte[] data, FcpListener listener) throws FcpException {
+
+		return insertKey(identifier, key, data, listener, 0);
 	}
-	public synchronized void insertDirectory(String identifier, String key,
-											 FcpDirectoryEntry[] files, String defaultName,
-											 FcpListener listener, List<String> additionalFields) throws FcpException {
-		insertDirectory(identifier, key, files, defaultName, listener, additionalFields, 0);
+
+	public CompletableFuture<Void> insertKey(String identifier, String key,
+			byte[] data, FcpListener listener, int priority)
+		throws FcpException {
+
+		listenerMap.put(identifier, listener);
+		return sendClientPut(identifier, key, data, priority);
+	}
+
+	public CompletableFuture<Void> insertDirectory(String identifier,
+			String key, FcpDirectoryEntry[] files, String defaultName,
+			FcpListener listener, List<String> additionalFields)
+		throws FcpException {
+
+		return insertDirectory(identifier, key, files, defaultName, listener,
+				additionalFields, 0);
 	}
 
-	public synchronized void insertDirectory(String identifier, String key,
-			FcpDirectoryEntry[] files, String defaultName,
+	public CompletableFuture<Void> insertDirectory(String identifier,
+			String key, FcpDirectoryEntry[] files, String defaultName,
 			FcpListener listener, List<String> additionalFields, int priority)
 		throws FcpException {
 
-		try {
-			listenerMap.put(identifier, listener);
-			sendClientPutComplexDir(identifier, key, files, defaultName,
-					additionalFields, priority);
-		} catch (IOException e) {
-			throw new FcpException("ClientPutComplexDir failed", e);
-		}
+		listenerMap.put(identifier, listener);
+		return sendClientPutComplexDir(identifier, key, files, defaultName,
+				additionalFields, priority);
 	}
 
-	public synchronized void generateKeyPair(String identifier,
+	public CompletableFuture<Void> generateKeyPair(String identifier,
 			FcpListener listener) throws FcpException {
 
-		try {
-			listenerMap.put(identifier, listener);
-			sendGenerateSSK(identifier);
-		} catch (IOException e) {
-			throw new FcpException("generateSsk failed", e);
+		listenerMap.put(identifier, listener);
+		replayMap.put(identifier, () -> sendGenerateSSK(identifier));
+		return sendGenerateSSK(identifier);
+	}
+
+	/**
+	 * Subscribes to a USK.
+	 * The node keeps looking for new editions and reports each one it
+	 * finds to the listener. Subscriptions are renewed after a reconnect
+	 * and last until {@link #unsubscribeUSK(String)} is called.
+	 * @param uri USK without filename, the edition is the first edition
+	 * of interest
+	 */
+	public CompletableFuture<Void> subscribeUSK(String identifier,
+			String uri, FcpSubscriptionListener listener) {
+
+		subscriptionMap.put(identifier, new Subscription(uri, listener));
+		return sendSubscribeUSK(identifier, uri);
+	}
+
+	public CompletableFuture<Void> unsubscribeUSK(String identifier) {
+		if (subscriptionMap.remove(identifier) == null) {
+			return CompletableFuture.completedFuture(null);
 		}
+
+		return sendUnsubscribeUSK(identifier);
 	}
 
-	public synchronized void cancel(String identifier) throws FcpException {
-		try {
-			sendRemoveRequest(identifier);
-		} catch (IOException e) {
-			throw new FcpException("RemoveRequest failed", e);
+	public CompletableFuture<Void> cancel(String identifier)
+		throws FcpException {
+
+		metrics.requestRemoved(identifier);
+		replayMap.remove(identifier);
+		if (removeQueuedRequest(identifier)) {
+			listenerMap.remove(identifier);
+			ttlMap.remove(identifier);
+			cancelDeadline(identifier);
+			return CompletableFuture.completedFuture(null);
 		}
+
+		return sendRemoveRequest(identifier);
 	}
 
 	protected Map<String, FcpListener> getListenerMap() {
@@ -230,7 +608,7 @@ public class FcpClient {
 		return listenerMap.get(identifier);
 	}
 
-	protected void sendClientHello() throws FcpException, IOException {
+	protected void sendClientHello() throws IOException {
 		LOG.log(Level.FINEST, "[FCP] ClientHello Name={0}", name);
 
 		StringBuilder str = new StringBuilder("ClientHello\n");
@@ -240,12 +618,20 @@ public class FcpClient {
 		str.append("ExpectedVersion=2.0\n");
 		str.append("EndMessage\n");
 
-		byte[] header = str.toString().getBytes(StandardCharsets.US_ASCII);
-		sendData(header);
+		ByteBuffer header = ByteBuffer.wrap(
+				str.toString().getBytes(StandardCharsets.US_ASCII));
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+
+		final FcpSessionRecorder recorder = sessionRecorder;
+		if (recorder != null) {
+			recorder.recordSent(new ByteBuffer[]{header}, new int[]{0});
+		}
 	}
 
-	protected void sendClientGet(String identifier, String key,
-			List<String> additionalFields, int priority) throws IOException {
+	protected CompletableFuture<Void> sendClientGet(String identifier,
+			String key, List<String> additionalFields, int priority) {
 
 		LOG.log(Level.FINEST,
 				"[FCP] ClientGet Identifier={0} URI={1}", new Object[]{
@@ -280,11 +666,11 @@ public class FcpClient {
 		str.append("EndMessage\n");
 
 		byte[] header = str.toString().getBytes(StandardCharsets.US_ASCII);
-		sendData(header);
+		return sendRequest(identifier, priority, header);
 	}
 
-	protected void sendClientPut(String identifier, String key, byte[] data, int priority)
-	throws IOException {
+	protected CompletableFuture<Void> sendClientPut(String identifier,
+			String key, byte[] data, int priority) {
 		LOG.log(Level.FINEST,
 				"[FCP] ClientPut Identifier={0} URI={1}", new Object[]{
 				identifier, key});
@@ -312,14 +698,12 @@ public class FcpClient {
 		str.append("EndMessage\n");
 
 		byte[] header = str.toString().getBytes(StandardCharsets.US_ASCII);
-		sendData(header);
-		sendData(data);
+		return sendRequest(identifier, priority, header, data);
 	}
 
-	protected void sendClientPutComplexDir(String identifier, String key,
-			FcpDirectoryEntry[] files, String defaultName,
-			List<String> additionalFields, int priority)
-		throws IOException {
+	protected CompletableFuture<Void> sendClientPutComplexDir(String identifier,
+			String key, FcpDirectoryEntry[] files, String defaultName,
+			List<String> additionalFields, int priority) {
 
 		LOG.log(Level.FINEST,
 				"[FCP] ClientPutComplexDir Identifier={0} URI={1}", new Object[]{
@@ -358,7 +742,8 @@ public class FcpClient {
 			}
 		}
 
-		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		// header followed by the file contents, written without copying
+		byte[][] data = new byte[files.length + 1][];
 
 		for (int i=0; i<files.length; i++) {
 			final FcpDirectoryEntry e = files[i];
@@ -378,17 +763,16 @@ public class FcpClient {
 			str.append(e.getData().length);
 			str.append('\n');
 
-			data.write(e.getData());
+			data[i + 1] = e.getData();
 		}
 
 		str.append("EndMessage\n");
 
-		byte[] header = str.toString().getBytes(StandardCharsets.US_ASCII);
-		sendData(header);
-		sendData(data.toByteArray());
+		data[0] = str.toString().getBytes(StandardCharsets.US_ASCII);
+		return sendRequest(identifier, priority, data);
 	}
 
-	protected void sendGenerateSSK(String identifier) throws IOException {
+	protected CompletableFuture<Void> sendGenerateSSK(String identifier) {
 
 		LOG.log(Level.FINEST, "[FCP] GenerateSSK Identifier={0}", identifier);
 
@@ -399,10 +783,45 @@ public class FcpClient {
 		str.append("EndMessage\n");
 
 		byte[] header = str.toString().getBytes(StandardCharsets.US_ASCII);
-		sendData(header);
+		return sendData(header);
+	}
+
+	protected CompletableFuture<Void> sendSubscribeUSK(String identifier,
+			String uri) {
+
+		LOG.log(Level.FINEST, "[FCP] SubscribeUSK URI={0} Identifier={1}",
+				new Object[]{uri, identifier});
+
+		StringBuilder str = new StringBuilder("SubscribeUSK\n");
+		str.append("URI=");
+		str.append(uri);
+		str.append('\n');
+		str.append("Identifier=");
+		str.append(identifier);
+		str.append('\n');
+		str.append("DontPoll=false\n");
+		str.append("EndMessage\n");
+
+		byte[] header = str.toString().getBytes(StandardCharsets.US_ASCII);
+		return sendData(header);
+	}
+
+	protected CompletableFuture<Void> sendUnsubscribeUSK(String identifier) {
+
+		LOG.log(Level.FINEST, "[FCP] UnsubscribeUSK Identifier={0}",
+				identifier);
+
+		StringBuilder str = new StringBuilder("UnsubscribeUSK\n");
+		str.append("Identifier=");
+		str.append(identifier);
+		str.append('\n');
+		str.append("EndMessage\n");
+
+		byte[] header = str.toString().getBytes(StandardCharsets.US_ASCII);
+		return sendData(header);
 	}
 
-	protected void sendRemoveRequest(String identifier) throws IOException {
+	protected CompletableFuture<Void> sendRemoveRequest(String identifier) {
 
 		LOG.log(Level.FINEST, "[FCP] RemoveRequest Identifier={0}", identifier);
 
@@ -413,21 +832,41 @@ public class FcpClient {
 		str.append("EndMessage\n");
 
 		byte[] header = str.toString().getBytes(StandardCharsets.US_ASCII);
-		sendData(header);
+		return sendData(header);
 	}
 
-	private boolean connectChannel() throws FcpException {
+	/**
+	 * @param reportFailure whether to notify the status listener if the
+	 * connection cannot be established
+	 */
+	private boolean connectChannel(boolean reportFailure) {
 		LOG.log(Level.FINEST,
 				"Trying to connect to {0}:{1,number,0}", new Object[]{
 				host, port});
 
 		boolean connected = false;
 		try {
-			channel = SocketChannel.open(new InetSocketAddress(host, port));
+			final int timeout = (int)TimeUnit.SECONDS.toMillis(
+					Constants.FCP_CONNECT_TIMEOUT);
+			channel = SocketChannel.open();
+			channel.socket().connect(new InetSocketAddress(host, port),
+					timeout);
+			decoder.clear();
 			sendClientHello();
 
-			// TODO add timeout
-			FcpResponse helloResponse = receiveResponse();
+			// from now on the socket is owned by the receiver thread
+			selector = Selector.open();
+			channel.configureBlocking(false);
+			selectionKey = channel.register(selector, SelectionKey.OP_READ);
+
+			readDeadline = System.nanoTime() +
+				TimeUnit.MILLISECONDS.toNanos(timeout);
+			final FcpResponse helloResponse;
+			try {
+				helloResponse = receiveResponse();
+			} finally {
+				readDeadline = 0;
+			}
 			if (!helloResponse.getName().equals("NodeHello")) {
 				LOG.log(Level.WARNING, "invalid response to ClientHello: {0}",
 						helloResponse.getName());
@@ -435,6 +874,7 @@ public class FcpClient {
 			}
 			LOG.log(Level.INFO, "Node available. Version={0}",
 					helloResponse.getField("Revision"));
+
 			statusListener.statusChanged(Status.CONNECTED);
 			connected = true;
 		} catch (ClosedByInterruptException e) {
@@ -443,13 +883,25 @@ public class FcpClient {
 		} catch (FcpException|IOException e) {
 			LOG.log(Level.FINE, "connect failed: " + e.getMessage(), e);
 			closeChannel();
-			statusListener.statusChanged(Status.CONNECT_FAILED);
+			if (reportFailure) {
+				statusListener.statusChanged(Status.CONNECT_FAILED);
+			}
 		}
 
 		return connected;
 	}
 
 	private void closeChannel() {
+		if (selector != null) {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Failed to close FCP selector", e);
+			}
+			selector = null;
+			selectionKey = null;
+		}
+
 		if (channel != null) {
 			try {
 				channel.close();
@@ -458,32 +910,213 @@ public class FcpClient {
 			}
 			channel = null;
 		}
+
+		// the node forgets all requests of the connection
+		listenerMap.values().removeIf(l -> l == REMOVED_LISTENER);
+
+		for (String id : outstandingRequests) {
+			releaseSlot(id);
+		}
+
+		final IOException closed = new IOException("FCP connection closed");
+		PendingMessage msg;
+		while ((msg = sendQueue.pollAny()) != null) {
+			msg.getFuture().completeExceptionally(closed);
+		}
 	}
 
-	private void sendData(byte[] data)
-		throws IOException {
+	private CompletableFuture<Void> sendData(byte[]... data) {
+		return sendMessage(null, PrioritySendQueue.CONTROL, data);
+	}
+
+	/**
+	 * Queues a request in the queue of its priority class.
+	 * Requests count towards the limit of outstanding requests until the
+	 * final response is received.
+	 */
+	private CompletableFuture<Void> sendRequest(String identifier,
+			int priority, byte[]... data) {
+
+		return sendMessage(identifier, priority, data);
+	}
+
+	private CompletableFuture<Void> sendMessage(String identifier,
+			int priority, byte[]... data) {
 
-		if (channel == null) {
+		ByteBuffer[] buffers = new ByteBuffer[data.length];
+		for (int i=0; i<data.length; i++) {
+			buffers[i] = ByteBuffer.wrap(data[i]);
+		}
+		PendingMessage msg = new PendingMessage(identifier, buffers);
+
+		final Selector currentSelector = selector;
+		if (currentSelector == null) {
 			LOG.log(Level.WARNING, "Trying to send on closed channel");
-			return;
+			msg.getFuture().completeExceptionally(
+					new IOException("FCP connection closed"));
+			return msg.getFuture();
 		}
 
-		ByteBuffer outBuffer = ByteBuffer.wrap(data);
-		while (outBuffer.hasRemaining()) {
-			channel.write(outBuffer);
+		sendQueue.add(msg, priority);
+		if (selector == null && sendQueue.remove(msg)) {
+			// connection was closed concurrently
+			msg.getFuture().completeExceptionally(
+					new IOException("FCP connection closed"));
+			return msg.getFuture();
 		}
+
+		// the receiver thread flushes the queue before waiting again
+		if (Thread.currentThread() != receiverThread) {
+			currentSelector.wakeup();
+		}
+
+		return msg.getFuture();
+	}
+
+	/**
+	 * Writes queued messages until the queue is empty or the socket buffer
+	 * is full. Must only be called by the receiver thread.
+	 */
+	private void flushSendQueue() throws IOException {
+		PendingMessage msg;
+		while ((msg = nextMessage()) != null) {
+			final ByteBuffer[] buffers = msg.getBuffers();
+			int offset = firstRemaining(buffers, 0);
+			if (offset < buffers.length) {
+				final FcpSessionRecorder recorder = sessionRecorder;
+				if (recorder == null) {
+					channel.write(buffers, offset, buffers.length - offset);
+				} else {
+					final int[] positions = new int[buffers.length];
+					for (int i=0; i<buffers.length; i++) {
+						positions[i] = buffers[i].position();
+					}
+					channel.write(buffers, offset, buffers.length - offset);
+					recorder.recordSent(buffers, positions);
+				}
+				if (firstRemaining(buffers, offset) < buffers.length) {
+					// socket buffer full
+					return;
+				}
+			}
+
+			sendQueue.poll();
+			if (msg.getIdentifier() != null) {
+				metrics.requestSent(msg.getIdentifier());
+			}
+			msg.getFuture().complete(null);
+		}
+	}
+
+	/**
+	 * @return message to write next, null if none may be written. A
+	 * request takes a slot of the budget when it is selected.
+	 */
+	private PendingMessage nextMessage() {
+		PendingMessage msg = sendQueue.peek(false);
+		if (msg != null || !sendQueue.hasRequests() ||
+				!requestBudget.tryAcquire()) {
+			return msg;
+		}
+
+		msg = sendQueue.peek(true);
+		if (msg != null && msg.getIdentifier() != null) {
+			outstandingRequests.add(msg.getIdentifier());
+		} else {
+			// the request was removed or a control message came first
+			requestBudget.release();
+		}
+
+		return msg;
+	}
+
+	private boolean canSendRequest() {
+		return requestBudget.isAvailable();
+	}
+
+	/**
+	 * Frees the slot of a finished request.
+	 */
+	private void requestDone(String identifier) {
+		releaseSlot(identifier);
+	}
+
+	private void releaseSlot(String identifier) {
+		if (outstandingRequests.remove(identifier)) {
+			requestBudget.release();
+		}
+	}
+
+	/**
+	 * Removes a request that has not been sent yet.
+	 * @return true if the request was still queued
+	 */
+	private boolean removeQueuedRequest(String identifier) {
+		final PendingMessage msg = sendQueue.removeRequest(
+				m -> identifier.equals(m.getIdentifier()));
+		if (msg == null) {
+			return false;
+		}
+
+		msg.getFuture().cancel(false);
+		return true;
+	}
+
+	private void wakeupSender() {
+		final Selector currentSelector = selector;
+		if (currentSelector != null && sendQueue.hasRequests()) {
+			currentSelector.wakeup();
+		}
+	}
+
+	private static int firstRemaining(ByteBuffer[] buffers, int offset) {
+		int i = offset;
+		while (i < buffers.length && !buffers[i].hasRemaining()) {
+			i++;
+		}
+
+		return i;
 	}
 
 	private void receiveAndHandleResponse() throws IOException, FcpException {
-		FcpResponse response = receiveResponse();
-		String id = response.getField("Identifier");
+		final boolean hasData = decoder.decodeHeader(selectorChannel, response);
+		String id = response.getIdentifier();
 		if (id == null) {
 			throw new FcpException("Identifier field missing");
 		}
 
-		FcpListener listener = listenerMap.get(id);
-		if (listener == null) {
-			LOG.log(Level.WARNING, "No listener found for request {0}", id);
+		final Subscription subscription = subscriptionMap.get(id);
+		if (subscription != null) {
+			handleSubscriptionResponse(id, subscription);
+			if (hasData) {
+				decoder.openData(selectorChannel, response.getDataLength())
+					.close();
+			}
+			return;
+		}
+
+		final boolean isFinal = isFinalResponse(response.getName());
+		FcpListener listener;
+		if (isFinal) {
+			listener = listenerMap.remove(id);
+			replayMap.remove(id);
+			cancelDeadline(id);
+			requestDone(id);
+		} else {
+			listener = listenerMap.get(id);
+		}
+
+		if (listener == null || listener == REMOVED_LISTENER) {
+			if (listener == null) {
+				LOG.log(Level.WARNING, "No listener found for request {0}", id);
+			} else {
+				LOG.log(Level.FINE, "Ignoring {0} for removed request {1}",
+						new Object[]{response.getName(), id});
+			}
+			if (hasData) {
+				decoder.openData(selectorChannel, response.getDataLength())
+					.close();
+			}
 			return;
 		}
 
@@ -492,139 +1125,256 @@ public class FcpClient {
 		switch (response.getName()) {
 		case "AllData":
 			LOG.log(Level.FINEST, "[FCP] AllData response Identifier={0}", id);
-			listener.finished(id, response.getData());
-			listenerMap.remove(id);
+			metrics.requestFinished(id, FcpMetrics.CODE_SUCCESS,
+					response.getDataLength());
+			if (listener instanceof FcpStreamListener) {
+				final long dataLength = response.getDataLength();
+				try (InputStream data =
+						decoder.openData(selectorChannel, dataLength)) {
+					((FcpStreamListener)listener).finished(id, data,
+							dataLength);
+				}
+			} else {
+				final byte[] data = new byte[(int)response.getDataLength()];
+				decoder.readData(selectorChannel, data);
+				listener.finished(id, data);
+			}
 			break;
 		case "GetFailed":
-			String redirectURI = response.getField("RedirectURI");
+			metrics.requestFinished(id, response.getCode(), 0);
+			if (ttl != null) {
+				requestCache.addNegativeCacheEntry(ttl.getURI(), ttl.getTTL());
+			}
+
+			String redirectURI = response.getRedirectURI();
 			if (redirectURI == null) {
-				int code = Integer.parseInt(response.getField("Code"));
-				listener.error(id, code);
-				listenerMap.remove(id);
+				listener.error(id, response.getCode());
 			} else {
 				listener.redirect(id, redirectURI);
 			}
-
-			if (ttl != null) {
-				requestCache.addNegativeCacheEntry(ttl.getURI(), ttl.getTTL());
-			}
 			break;
 		case "PutFailed":
-			int code = Integer.parseInt(response.getField("Code"));
-			listener.error(id, code);
-			listenerMap.remove(id);
+			listener.error(id, response.getCode());
 			break;
 		case "PutSuccessful":
-			listener.putSuccessful(id, response.getField("URI"));
-			listenerMap.remove(id);
+			listener.putSuccessful(id, response.getURI());
 			break;
 		case "SSKKeypair":
 			listener.keyPairGenerated(id, response.getField("RequestURI"),
 					response.getField("InsertURI"));
-			listenerMap.remove(id);
+			break;
+		case "PersistentRequestRemoved":
+			LOG.log(Level.FINEST, "Request {0} removed", id);
 			break;
 		default:
 			// don't remove from Map, further response for ID expected
 			LOG.log(Level.FINEST, "Unhandled {0}", response.getName());
 			break;
 		}
-	}
 
-	private byte[] receiveData(int dataLength)
-		throws FcpException, IOException {
+		if (hasData && !response.getName().equals("AllData")) {
+			decoder.openData(selectorChannel, response.getDataLength())
+				.close();
+		}
+	}
 
-		final byte[] data = new byte[dataLength];
+	private void handleSubscriptionResponse(String id,
+			Subscription subscription) {
 
-		int bytesRead = 0;
-		while (bytesRead < dataLength) {
-			if (dataNeeded) {
-				buffer.clear();
-				if (channel.read(buffer) <= 0) {
-					throw new FcpException("connection closed");
-				}
-				buffer.flip();
+		switch (response.getName()) {
+		case "SubscribedUSKUpdate":
+			final String edition = response.getField("Edition");
+			LOG.log(Level.FINEST, "[FCP] SubscribedUSKUpdate Identifier={0} "
+					+ "Edition={1}", new Object[]{id, edition});
+			try {
+				subscription.getListener().editionFound(id,
+						response.getURI(), Long.parseLong(edition));
+			} catch (NumberFormatException e) {
+				LOG.log(Level.WARNING, "Invalid edition in USK update");
 			}
+			break;
+		case "ProtocolError":
+		case "IdentifierCollision":
+			LOG.log(Level.WARNING, "Subscription to {0} failed: {1}",
+					new Object[]{subscription.getURI(), response.getName()});
+			subscriptionMap.remove(id, subscription);
+			break;
+		default:
+			LOG.log(Level.FINEST, "Unhandled {0} for subscription",
+					response.getName());
+			break;
+		}
+	}
 
-			int bytesRemaining = dataLength - bytesRead;
-			int bytesToCopy = Math.min(bytesRemaining, buffer.remaining());
-			buffer.get(data, bytesRead, bytesToCopy);
-			bytesRead += bytesToCopy;
+	private static boolean isFinalResponse(String name) {
+		switch (name) {
+		case "AllData":
+		case "GetFailed":
+		case "PutFailed":
+		case "PutSuccessful":
+		case "SSKKeypair":
+		case "PersistentRequestRemoved":
+			return true;
+		default:
+			return false;
+		}
+	}
 
-			dataNeeded = !buffer.hasRemaining();
+	private void scheduleDeadline(String identifier, String requestClass) {
+		Long timeout = null;
+		if (requestClass != null) {
+			timeout = requestTimeouts.get(requestClass);
+		}
+		if (timeout == null) {
+			timeout = defaultRequestTimeout;
+		}
+		if (timeout <= 0) {
+			return;
 		}
 
-		return data;
+		final DeadlineTimer.Deadline deadline = deadlineTimer.schedule(
+				() -> requestTimedOut(identifier), timeout,
+				TimeUnit.MILLISECONDS);
+		final DeadlineTimer.Deadline previous =
+			deadlines.put(identifier, deadline);
+		if (previous != null) {
+			previous.cancel();
+		}
 	}
 
-	private FcpResponse receiveResponse() throws IOException, FcpException {
-		LOG.log(Level.FINEST, "Entering receiveResponse");
-		String type;
-		do {
-			type = receiveLine();
-		} while(type.isEmpty());
-		LOG.log(Level.FINEST, "received {0} response", type);
-		FcpResponse response = new FcpResponse(type);
-
-		while (true) {
-			String line = receiveLine();
-			if (line.equals("EndMessage")) {
-				return response;
+	private void cancelDeadline(String identifier) {
+		final DeadlineTimer.Deadline deadline = deadlines.remove(identifier);
+		if (deadline != null) {
+			deadline.cancel();
+		}
+	}
+
+	/**
+	 * Removes a request that did not finish in time.
+	 * The listener is replaced atomically, so either the response or the
+	 * timeout is reported, never both.
+	 */
+	private void requestTimedOut(String identifier) {
+		deadlines.remove(identifier);
+
+		final FcpListener listener = listenerMap.get(identifier);
+		if (listener == null || listener == REMOVED_LISTENER ||
+				!listenerMap.replace(identifier, listener, REMOVED_LISTENER)) {
+			return;
+		}
+
+		LOG.log(Level.FINE, "Request {0} timed out", identifier);
+		ttlMap.remove(identifier);
+		replayMap.remove(identifier);
+		metrics.requestFinished(identifier, Constants.CODE_TIMEOUT, 0);
+		if (removeQueuedRequest(identifier)) {
+			// never reached the node, nothing to remove there
+			listenerMap.remove(identifier, REMOVED_LISTENER);
+		} else {
+			sendRemoveRequest(identifier);
+		}
+
+		listener.error(identifier, Constants.CODE_TIMEOUT);
+	}
+
+	/**
+	 * Tries to establish a new connection after the connection was lost.
+	 * The delay between attempts is doubled after each failure. Requests
+	 * that can be repeated are sent again, all others fail.
+	 * @return true if connected
+	 */
+	private boolean reconnect() {
+		closeChannel();
+		statusListener.statusChanged(Status.RECONNECTING);
+
+		// payload of inserts is not kept, they have to be restarted
+		for (String id : listenerMap.keySet()) {
+			if (!replayMap.containsKey(id)) {
+				failRequest(id);
 			}
+		}
 
-			if (line.equals("Data")) {
-				break;
+		long delay = TimeUnit.SECONDS.toMillis(
+				Constants.FCP_RECONNECT_DELAY);
+		final long maxDelay = TimeUnit.SECONDS.toMillis(
+				Constants.FCP_RECONNECT_MAX_DELAY);
+		for (int i=0; i<Constants.FCP_RECONNECT_ATTEMPTS; i++) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				LOG.log(Level.FINE, "FCP reconnect interrupted");
+				return false;
+			}
+			if (stop.get()) {
+				return false;
 			}
 
-			String[] fields = line.split("=", 2);
-			if (fields.length != 2) {
-				continue;
+			LOG.log(Level.INFO, "Reconnecting to FCP server (attempt {0})",
+					i + 1);
+			if (connectChannel(false)) {
+				replayRequests();
+				return true;
 			}
 
-			response.addField(fields[0], fields[1]);
-			LOG.log(Level.FINEST, "\t{0}: {1}", new Object[]{fields[0], fields[1]});
+			delay = Math.min(2 * delay, maxDelay);
 		}
 
-		String dataLength = response.getField("DataLength");
-		if (dataLength == null) {
-			throw new FcpException("DataLength missing in response");
-		}
+		LOG.log(Level.WARNING, "Giving up reconnecting to {0}:{1,number,0}",
+				new Object[]{host, port});
+		return false;
+	}
 
-		int len = Integer.parseInt(dataLength);
+	private void replayRequests() {
+		LOG.log(Level.FINE, "Sending {0} outstanding requests again",
+				replayMap.size());
 
-		byte[] data = receiveData(len);
-		response.setData(data);
+		for (Map.Entry<String, Runnable> e : replayMap.entrySet()) {
+			final FcpListener listener = listenerMap.get(e.getKey());
+			if (listener == null || listener == REMOVED_LISTENER) {
+				replayMap.remove(e.getKey());
+			} else {
+				e.getValue().run();
+			}
+		}
 
-		return response;
+		for (Map.Entry<String, Subscription> e : subscriptionMap.entrySet()) {
+			sendSubscribeUSK(e.getKey(), e.getValue().getURI());
+		}
 	}
 
-	private String receiveLine()
-		throws FcpException, IOException {
-
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	private void failOutstandingRequests() {
+		for (String id : listenerMap.keySet()) {
+			failRequest(id);
+		}
+	}
 
-		boolean newlineFound = false;
-		while (!newlineFound) {
-			if (dataNeeded) {
-				buffer.clear();
-				if (channel.read(buffer) <= 0) {
-					throw new IOException("connection closed");
-				}
-				buffer.flip();
-			}
+	private void failRequest(String identifier) {
+		final FcpListener listener = forgetRequest(identifier);
+		releaseSlot(identifier);
 
-			while (buffer.hasRemaining()) {
-				final byte ch = buffer.get();
-				if (ch == '\n') {
-					newlineFound = true;
-					break;
-				}
+		if (listener != null && listener != REMOVED_LISTENER) {
+			listener.error(identifier, Constants.CODE_DISCONNECTED);
+		}
+	}
 
-				bos.write(ch);
-			}
+	/**
+	 * Drops all state of a request without notifying its listener.
+	 * @return listener of the request, null if unknown
+	 */
+	private FcpListener forgetRequest(String identifier) {
+		final FcpListener listener = listenerMap.remove(identifier);
+		replayMap.remove(identifier);
+		ttlMap.remove(identifier);
+		cancelDeadline(identifier);
+		metrics.requestRemoved(identifier);
+
+		return listener;
+	}
 
-			dataNeeded = !buffer.hasRemaining();
-		}
+	private FcpResponse receiveResponse() throws IOException, FcpException {
+		LOG.log(Level.FINEST, "Entering receiveResponse");
+		decoder.decode(selectorChannel, response);
 
-		return new String(bos.toByteArray(), StandardCharsets.US_ASCII);
+		return response;
 	}
 }
@@ -0,0 +1,341 @@
+package jfms.fcp;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FcpClient that spreads requests over several FCP connections.
+ * Each identifier is always routed to the same connection, so responses
+ * and RemoveRequest messages for a request use the session that issued it.
+ * The negative request cache, the metrics and the limit of outstanding
+ * requests are shared by all connections: a request waits only while the
+ * whole pool is at the limit. The status listener sees the combined status of all
+ * connections: CONNECTED once all are connected, DEGRADED while only some
+ * of them are, and DISCONNECTED once all are down.
+ */
+public class FcpClientPool extends FcpClient {
+	private static final Logger LOG = Logger.getLogger(FcpClientPool.class.getName());
+
+	private final FcpClient[] clients;
+	private final Status[] statuses;
+	private FcpStatusListener statusListener;
+	private Status reportedStatus;
+
+	public FcpClientPool(String name, String host, int port, int connections) {
+		this(name, host, port, connections, new RequestCache(),
+				new FcpMetrics(), new RequestBudget());
+	}
+
+	private FcpClientPool(String name, String host, int port,
+			int connections, RequestCache requestCache, FcpMetrics metrics,
+			RequestBudget requestBudget) {
+
+		super(name, host, port, requestCache, metrics, requestBudget);
+
+		if (connections < 1) {
+			throw new IllegalArgumentException("at least one connection required");
+		}
+
+		clients = new FcpClient[connections];
+		statuses = new Status[connections];
+		for (int i=0; i<connections; i++) {
+			final int connection = i;
+			clients[i] = new FcpClient(name, host, port, requestCache,
+					metrics, requestBudget);
+			clients[i].setStatusListener(
+					s -> connectionStatusChanged(connection, s));
+		}
+	}
+
+	public int getConnectionCount() {
+		return clients.length;
+	}
+
+	/**
+	 * Starts all connections. If the pool is already running, only
+	 * connections that gave up reconnecting are started again; a failure
+	 * leaves them for the next start.
+	 */
+	@Override
+	public synchronized void start() throws FcpException {
+		final boolean restart = isRunning();
+		for (int i=0; i<clients.length; i++) {
+			if (clients[i].isRunning()) {
+				continue;
+			}
+
+			try {
+				clients[i].start();
+			} catch (FcpException e) {
+				if (restart) {
+					LOG.log(Level.FINE, "Failed to restart FCP connection {0}",
+							i);
+					continue;
+				}
+
+				LOG.log(Level.FINE, "Closing {0} FCP connections after "
+						+ "failed start", i);
+				for (int j=0; j<i; j++) {
+					clients[j].shutdown();
+				}
+				resetStatus();
+				notifyStatus(Status.CONNECT_FAILED);
+				throw e;
+			}
+		}
+
+		loadRequestCache();
+	}
+
+	/**
+	 * @return true if any connection is running
+	 */
+	@Override
+	public boolean isRunning() {
+		for (FcpClient client : clients) {
+			if (client.isRunning()) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	@Override
+	public synchronized void cleanup() {
+		getRequestCache().cleanup();
+		saveRequestCache();
+	}
+
+	@Override
+	public synchronized void shutdown() {
+		LOG.log(Level.FINE, "Shutting down {0} FCP connections",
+				clients.length);
+		for (FcpClient client : clients) {
+			client.shutdown();
+		}
+		resetStatus();
+
+		saveRequestCache();
+	}
+
+	@Override
+	public void setStatusListener(FcpStatusListener listener) {
+		super.setStatusListener(listener);
+		synchronized (statuses) {
+			statusListener = listener;
+		}
+	}
+
+	@Override
+	public void setRequestTimeout(String requestClass, Duration timeout) {
+		super.setRequestTimeout(requestClass, timeout);
+		for (FcpClient client : clients) {
+			client.setRequestTimeout(requestClass, timeout);
+		}
+	}
+
+	/**
+	 * Records each connection to its own file. The connection number is
+	 * appended to the file name, e.g. session.rec.0, session.rec.1.
+	 */
+	@Override
+	public synchronized void setSessionRecordFile(Path file)
+		throws IOException {
+
+		for (int i=0; i<clients.length; i++) {
+			Path connectionFile = null;
+			if (file != null) {
+				connectionFile = file.resolveSibling(
+						file.getFileName().toString() + '.' + i);
+			}
+			clients[i].setSessionRecordFile(connectionFile);
+		}
+	}
+
+	@Override
+	public int getQueuedRequestCount() {
+		int count = 0;
+		for (FcpClient client : clients) {
+			count += client.getQueuedRequestCount();
+		}
+
+		return count;
+	}
+
+	@Override
+	public CompletableFuture<Void> requestKey(String identifier, String key,
+			FcpListener listener, int ttl) throws FcpException {
+
+		return getClient(identifier).requestKey(identifier, key, listener, ttl);
+	}
+
+	@Override
+	public CompletableFuture<Void> requestKey(String identifier, String key,
+			FcpListener listener, int ttl, List<String> additionalFields)
+		throws FcpException {
+
+		return getClient(identifier).requestKey(identifier, key, listener,
+				ttl, additionalFields);
+	}
+
+	@Override
+	public CompletableFuture<Void> requestKey(String identifier, String key,
+			FcpListener listener, int ttl, List<String> additionalFields,
+			int priority) throws FcpException {
+
+		return getClient(identifier).requestKey(identifier, key, listener,
+				ttl, additionalFields, priority);
+	}
+
+	@Override
+	public CompletableFuture<Void> requestKey(String identifier, String key,
+			FcpListener listener, int ttl, List<String> additionalFields,
+			int priority, String requestClass) throws FcpException {
+
+		return getClient(identifier).requestKey(identifier, key, listener,
+				ttl, additionalFields, priority, requestClass);
+	}
+
+	@Override
+	public CompletableFuture<Void> insertKey(String identifier, String key, byte[] data,
+			FcpListener listener) throws FcpException {
+
+		return getClient(identifier).insertKey(identifier, key, data, listener);
+	}
+
+	@Override
+	public CompletableFuture<Void> insertKey(String identifier, String key, byte[] data,
+			FcpListener listener, int priority) throws FcpException {
+
+		return getClient(identifier).insertKey(identifier, key, data, listener,
+				priority);
+	}
+
+	@Override
+	public CompletableFuture<Void> insertDirectory(String identifier, String key,
+			FcpDirectoryEntry[] files, String defaultName,
+			FcpListener listener, List<String> additionalFields)
+		throws FcpException {
+
+		return getClient(identifier).insertDirectory(identifier, key, files,
+				defaultName, listener, additionalFields);
+	}
+
+	@Override
+	public CompletableFuture<Void> insertDirectory(String identifier, String key,
+			FcpDirectoryEntry[] files, String defaultName,
+			FcpListener listener, List<String> additionalFields, int priority)
+		throws FcpException {
+
+		return getClient(identifier).insertDirectory(identifier, key, files,
+				defaultName, listener, additionalFields, priority);
+	}
+
+	@Override
+	public CompletableFuture<Void> generateKeyPair(String identifier, FcpListener listener)
+		throws FcpException {
+
+		return getClient(identifier).generateKeyPair(identifier, listener);
+	}
+
+	@Override
+	public CompletableFuture<Void> subscribeUSK(String identifier,
+			String uri, FcpSubscriptionListener listener) {
+
+		return getClient(identifier).subscribeUSK(identifier, uri, listener);
+	}
+
+	@Override
+	public CompletableFuture<Void> unsubscribeUSK(String identifier) {
+		return getClient(identifier).unsubscribeUSK(identifier);
+	}
+
+	@Override
+	public CompletableFuture<Void> cancel(String identifier) throws FcpException {
+		return getClient(identifier).cancel(identifier);
+	}
+
+	private void connectionStatusChanged(int connection, Status status) {
+		final Status combinedStatus;
+		synchronized (statuses) {
+			statuses[connection] = status;
+			combinedStatus = getCombinedStatus();
+			if (combinedStatus == null || combinedStatus == reportedStatus) {
+				return;
+			}
+		}
+
+		notifyStatus(combinedStatus);
+	}
+
+	/**
+	 * @return status of all connections, null if some connections have
+	 * not reported a status yet
+	 */
+	private Status getCombinedStatus() {
+		int connected = 0;
+		int reconnecting = 0;
+		int failed = 0;
+		for (Status status : statuses) {
+			if (status == null) {
+				return null;
+			}
+
+			switch (status) {
+			case CONNECTED:
+				connected++;
+				break;
+			case RECONNECTING:
+				reconnecting++;
+				break;
+			case CONNECT_FAILED:
+				failed++;
+				break;
+			default:
+				break;
+			}
+		}
+
+		if (connected == statuses.length) {
+			return Status.CONNECTED;
+		} else if (connected > 0) {
+			return Status.DEGRADED;
+		} else if (reconnecting > 0) {
+			return Status.RECONNECTING;
+		} else if (failed == statuses.length) {
+			return Status.CONNECT_FAILED;
+		} else {
+			return Status.DISCONNECTED;
+		}
+	}
+
+	private void resetStatus() {
+		synchronized (statuses) {
+			Arrays.fill(statuses, null);
+			reportedStatus = null;
+		}
+	}
+
+	private void notifyStatus(Status status) {
+		final FcpStatusListener listener;
+		synchronized (statuses) {
+			reportedStatus = status;
+			listener = statusListener;
+		}
+
+		if (listener != null) {
+			listener.statusChanged(status);
+		}
+	}
+
+	private FcpClient getClient(String identifier) {
+		return clients[Math.floorMod(identifier.hashCode(), clients.length)];
+	}
+}
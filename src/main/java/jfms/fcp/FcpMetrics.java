@@ -0,0 +1,167 @@
+package jfms.fcp;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of ClientGet requests.
+ * The latency between writing a ClientGet to the node and receiving
+ * AllData or GetFailed is recorded in microseconds, broken down by request
+ * class and outcome. Time spent in the send queue is not included;
+ * requests that never left the queue are counted as in flight but do not
+ * record a latency. The request class is an arbitrary name passed by the
+ * application, e.g., the type of FMS document requested.
+ * All methods are thread-safe and may be polled while requests are running.
+ */
+public class FcpMetrics {
+	public static final String DEFAULT_REQUEST_CLASS = "OTHER";
+
+	/** Outcome code used for successful requests (AllData). */
+	public static final int CODE_SUCCESS = 0;
+
+	private final Map<String, RequestClassMetrics> requestClasses =
+		new ConcurrentHashMap<>();
+	private final Map<String, PendingRequest> pendingRequests =
+		new ConcurrentHashMap<>();
+	private final LongAdder bytesReceived = new LongAdder();
+
+	public static class RequestClassMetrics {
+		private final Map<Integer, Histogram> latencies =
+			new ConcurrentHashMap<>();
+		private final LongAdder payloadBytes = new LongAdder();
+		private final AtomicInteger inFlight = new AtomicInteger();
+
+		/**
+		 * @return latency histograms in microseconds, keyed by FCP
+		 * error code or {@link FcpMetrics#CODE_SUCCESS}
+		 */
+		public Map<Integer, Histogram> getLatencies() {
+			return Collections.unmodifiableMap(latencies);
+		}
+
+		public Histogram getLatency(int code) {
+			return latencies.get(code);
+		}
+
+		public long getPayloadBytes() {
+			return payloadBytes.sum();
+		}
+
+		public int getInFlight() {
+			return inFlight.get();
+		}
+
+		private void record(int code, long latencyMicros) {
+			latencies.computeIfAbsent(code, c -> new Histogram())
+				.record(latencyMicros);
+		}
+	}
+
+	private static class PendingRequest {
+		private final RequestClassMetrics metrics;
+		// -1 while queued
+		private volatile long startTime = -1;
+
+		public PendingRequest(RequestClassMetrics metrics) {
+			this.metrics = metrics;
+		}
+
+		public RequestClassMetrics getMetrics() {
+			return metrics;
+		}
+
+		public long getStartTime() {
+			return startTime;
+		}
+
+		public void setStartTime(long startTime) {
+			this.startTime = startTime;
+		}
+	}
+
+	public Set<String> getRequestClasses() {
+		return Collections.unmodifiableSet(requestClasses.keySet());
+	}
+
+	/**
+	 * @return metrics of the request class, null if no request of this
+	 * class was sent yet
+	 */
+	public RequestClassMetrics getRequestClass(String requestClass) {
+		return requestClasses.get(requestClass);
+	}
+
+	/**
+	 * @return total number of bytes received from the node, including
+	 * message headers
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	/**
+	 * @return number of ClientGet requests without final response
+	 */
+	public int getInFlight() {
+		return pendingRequests.size();
+	}
+
+	void requestStarted(String identifier, String requestClass) {
+		final String cls = requestClass != null ?
+			requestClass : DEFAULT_REQUEST_CLASS;
+		final RequestClassMetrics metrics = requestClasses
+			.computeIfAbsent(cls, c -> new RequestClassMetrics());
+
+		final PendingRequest previous = pendingRequests.put(identifier,
+				new PendingRequest(metrics));
+		metrics.inFlight.incrementAndGet();
+		if (previous != null) {
+			previous.getMetrics().inFlight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Called when the request has been written to the node. Requests
+	 * sent again after a reconnect are measured from the last send.
+	 */
+	void requestSent(String identifier) {
+		final PendingRequest request = pendingRequests.get(identifier);
+		if (request != null) {
+			request.setStartTime(System.nanoTime());
+		}
+	}
+
+	void requestFinished(String identifier, int code, long dataLength) {
+		final PendingRequest request = pendingRequests.remove(identifier);
+		if (request == null) {
+			return;
+		}
+
+		final RequestClassMetrics metrics = request.getMetrics();
+		metrics.inFlight.decrementAndGet();
+		final long startTime = request.getStartTime();
+		if (startTime >= 0) {
+			metrics.record(code, TimeUnit.NANOSECONDS.toMicros(
+					System.nanoTime() - startTime));
+		}
+		if (dataLength > 0) {
+			metrics.payloadBytes.add(dataLength);
+		}
+	}
+
+	void requestRemoved(String identifier) {
+		final PendingRequest request = pendingRequests.remove(identifier);
+		if (request != null) {
+			request.getMetrics().inFlight.decrementAndGet();
+		}
+	}
+
+	void bytesReceived(long count) {
+		bytesReceived.add(count);
+	}
+}
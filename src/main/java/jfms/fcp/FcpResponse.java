@@ -3,14 +3,47 @@ package jfms.fcp;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * FCP message received from the node.
+ * The fields needed to dispatch responses are kept in dedicated slots;
+ * all other fields are stored in a map that is only created on demand.
+ * Instances may be reused with {@link #reset(String)}.
+ */
 public class FcpResponse {
-	private final String name;
-	private final Map<String, String> fields;
+	public static final String IDENTIFIER = "Identifier";
+	public static final String CODE = "Code";
+	public static final String DATA_LENGTH = "DataLength";
+	public static final String URI = "URI";
+	public static final String REDIRECT_URI = "RedirectURI";
+
+	private String name;
+	private Map<String, String> fields;
+	private String identifier;
+	private int code;
+	private long dataLength;
+	private String uri;
+	private String redirectURI;
 	private byte[] data;
 
+	public FcpResponse() {
+		reset(null);
+	}
+
 	public FcpResponse(String name) {
+		reset(name);
+	}
+
+	public final void reset(String name) {
 		this.name = name;
-		fields = new HashMap<>();
+		if (fields != null) {
+			fields.clear();
+		}
+		identifier = null;
+		code = -1;
+		dataLength = -1;
+		uri = null;
+		redirectURI = null;
+		data = null;
 	}
 
 	public String getName() {
@@ -18,11 +51,92 @@ public class FcpResponse {
 	}
 
 	public String getField(String key) {
-		return fields.get(key);
+		switch (key) {
+		case IDENTIFIER:
+			return identifier;
+		case CODE:
+			return code >= 0 ? Integer.toString(code) : null;
+		case DATA_LENGTH:
+			return dataLength >= 0 ? Long.toString(dataLength) : null;
+		case URI:
+			return uri;
+		case REDIRECT_URI:
+			return redirectURI;
+		default:
+			return fields != null ? fields.get(key) : null;
+		}
 	}
 
 	public void addField(String key, String value) {
-		fields.put(key, value);
+		switch (key) {
+		case IDENTIFIER:
+			identifier = value;
+			break;
+		case CODE:
+			code = Integer.parseInt(value);
+			break;
+		case DATA_LENGTH:
+			dataLength = Long.parseLong(value);
+			break;
+		case URI:
+			uri = value;
+			break;
+		case REDIRECT_URI:
+			redirectURI = value;
+			break;
+		default:
+			if (fields == null) {
+				fields = new HashMap<>();
+			}
+			fields.put(key, value);
+			break;
+		}
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	public void setIdentifier(String identifier) {
+		this.identifier = identifier;
+	}
+
+	/**
+	 * @return value of the Code field, -1 if not present
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	public void setCode(int code) {
+		this.code = code;
+	}
+
+	/**
+	 * @return value of the DataLength field, -1 if not present
+	 */
+	public long getDataLength() {
+		return dataLength;
+	}
+
+	public void setDataLength(long dataLength) {
+		this.dataLength = dataLength;
+	}
+
+	public String getURI() {
+		return uri;
+	}
+
+	public void setURI(String uri) {
+		this.uri = uri;
+	}
+
+	public String getRedirectURI() {
+		return redirectURI;
+	}
+
+	public void setRedirectURI(String redirectURI) {
+		this.redirectURI = redirectURI;
 	}
 
 	public byte[] getData() {
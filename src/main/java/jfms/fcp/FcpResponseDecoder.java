@@ -0,0 +1,375 @@
+package jfms.fcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decodes FCP messages directly from the receive buffer.
+ * Header lines are scanned in place. Message names and the fields used
+ * for dispatching are matched byte by byte, numeric fields are parsed
+ * without creating intermediate strings.
+ */
+class FcpResponseDecoder {
+	private static final Logger LOG = Logger.getLogger(FcpResponseDecoder.class.getName());
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private static final byte[] END_MESSAGE = ascii("EndMessage");
+	private static final byte[] DATA = ascii("Data");
+	private static final byte[] IDENTIFIER = ascii(FcpResponse.IDENTIFIER);
+	private static final byte[] CODE = ascii(FcpResponse.CODE);
+	private static final byte[] DATA_LENGTH = ascii(FcpResponse.DATA_LENGTH);
+	private static final byte[] URI = ascii(FcpResponse.URI);
+	private static final byte[] REDIRECT_URI = ascii(FcpResponse.REDIRECT_URI);
+
+	// messages received for every request; fields not needed for
+	// dispatching are skipped
+	private static final String[] FREQUENT_MESSAGES = {
+		"AllData",
+		"DataFound",
+		"GetFailed",
+		"PutFailed",
+		"PutSuccessful",
+		"PutFetchable",
+		"URIGenerated",
+		"SimpleProgress",
+		"ExpectedHashes",
+		"ExpectedMIME",
+		"ExpectedDataLength",
+		"CompatibilityMode",
+		"SendingToNetwork",
+		"StartedCompression",
+		"FinishedCompression"
+	};
+	private static final byte[][] FREQUENT_MESSAGE_BYTES =
+		new byte[FREQUENT_MESSAGES.length][];
+
+	static {
+		for (int i=0; i<FREQUENT_MESSAGES.length; i++) {
+			FREQUENT_MESSAGE_BYTES[i] = ascii(FREQUENT_MESSAGES[i]);
+		}
+	}
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private final byte[] array = buffer.array();
+	private int lineStart;
+	private int lineEnd;
+
+	FcpResponseDecoder() {
+		buffer.limit(0);
+	}
+
+	/**
+	 * Discards buffered data, e.g., after reconnecting.
+	 */
+	void clear() {
+		buffer.clear();
+		buffer.limit(0);
+	}
+
+	/**
+	 * Reads the next message including its payload from the channel.
+	 * @param channel channel to read from
+	 * @param response response to fill; previous content is discarded
+	 */
+	void decode(ReadableByteChannel channel, FcpResponse response)
+		throws IOException, FcpException {
+
+		if (!decodeHeader(channel, response)) {
+			return;
+		}
+
+		final byte[] data = new byte[(int)response.getDataLength()];
+		readData(channel, data);
+		response.setData(data);
+	}
+
+	/**
+	 * Reads the header of the next message from the channel.
+	 * If a payload follows, it must be consumed with
+	 * {@link #readData(ReadableByteChannel, byte[])} or
+	 * {@link #openData(ReadableByteChannel, long)} before the next call.
+	 * @param channel channel to read from
+	 * @param response response to fill; previous content is discarded
+	 * @return true if the message is followed by a payload
+	 */
+	boolean decodeHeader(ReadableByteChannel channel, FcpResponse response)
+		throws IOException, FcpException {
+
+		do {
+			nextLine(channel);
+		} while (lineStart == lineEnd);
+
+		String name = frequentMessageName();
+		final boolean frequent = name != null;
+		if (name == null) {
+			name = new String(array, lineStart, lineEnd - lineStart,
+					StandardCharsets.US_ASCII);
+		}
+		response.reset(name);
+		LOG.log(Level.FINEST, "received {0} response", name);
+
+		while (true) {
+			nextLine(channel);
+			if (lineEquals(END_MESSAGE)) {
+				return false;
+			}
+
+			if (lineEquals(DATA)) {
+				break;
+			}
+
+			decodeField(response, frequent);
+		}
+
+		final long dataLength = response.getDataLength();
+		if (dataLength < 0) {
+			throw new FcpException("DataLength missing in response");
+		}
+		if (dataLength > Integer.MAX_VALUE) {
+			throw new FcpException("DataLength too large");
+		}
+
+		return true;
+	}
+
+	/**
+	 * Fills the array with payload data.
+	 * Bytes already buffered are consumed first, the remainder is read
+	 * from the channel directly into the array.
+	 */
+	void readData(ReadableByteChannel channel, byte[] data)
+		throws IOException, FcpException {
+
+		final int buffered = Math.min(buffer.remaining(), data.length);
+		buffer.get(data, 0, buffered);
+
+		final ByteBuffer dst = ByteBuffer.wrap(data, buffered,
+				data.length - buffered);
+		while (dst.hasRemaining()) {
+			if (channel.read(dst) < 0) {
+				throw new FcpException("connection closed");
+			}
+		}
+	}
+
+	/**
+	 * Creates a stream that reads a payload of the given length.
+	 * Closing the stream skips all unread payload bytes.
+	 */
+	InputStream openData(ReadableByteChannel channel, long dataLength) {
+		return new DataInputStream(channel, dataLength);
+	}
+
+	private void nextLine(ReadableByteChannel channel) throws IOException,
+			FcpException {
+
+		int scanned = buffer.position();
+		while (true) {
+			final int limit = buffer.limit();
+			for (int i=scanned; i<limit; i++) {
+				if (array[i] == '\n') {
+					lineStart = buffer.position();
+					lineEnd = i;
+					buffer.position(i + 1);
+					return;
+				}
+			}
+
+			if (buffer.position() == 0 && limit == buffer.capacity()) {
+				throw new FcpException("header line too long");
+			}
+
+			scanned = buffer.remaining();
+			buffer.compact();
+			final int bytesRead = channel.read(buffer);
+			buffer.flip();
+			if (bytesRead < 0) {
+				throw new IOException("connection closed");
+			}
+		}
+	}
+
+	private void decodeField(FcpResponse response, boolean frequent)
+		throws FcpException {
+
+		int separator = -1;
+		for (int i=lineStart; i<lineEnd; i++) {
+			if (array[i] == '=') {
+				separator = i;
+				break;
+			}
+		}
+		if (separator < 0) {
+			return;
+		}
+
+		final int nameLength = separator - lineStart;
+		final int valueStart = separator + 1;
+
+		if (regionEquals(lineStart, nameLength, IDENTIFIER)) {
+			response.setIdentifier(asciiString(valueStart));
+		} else if (regionEquals(lineStart, nameLength, CODE)) {
+			response.setCode((int)parseLong(valueStart));
+		} else if (regionEquals(lineStart, nameLength, DATA_LENGTH)) {
+			response.setDataLength(parseLong(valueStart));
+		} else if (regionEquals(lineStart, nameLength, URI)) {
+			response.setURI(asciiString(valueStart));
+		} else if (regionEquals(lineStart, nameLength, REDIRECT_URI)) {
+			response.setRedirectURI(asciiString(valueStart));
+		} else if (!frequent) {
+			response.addField(
+					new String(array, lineStart, nameLength,
+						StandardCharsets.US_ASCII),
+					asciiString(valueStart));
+		} else {
+			return;
+		}
+
+		if (LOG.isLoggable(Level.FINEST)) {
+			LOG.log(Level.FINEST, "\t{0}", new String(array, lineStart,
+					lineEnd - lineStart, StandardCharsets.US_ASCII));
+		}
+	}
+
+	private String frequentMessageName() {
+		final int length = lineEnd - lineStart;
+		for (int i=0; i<FREQUENT_MESSAGE_BYTES.length; i++) {
+			if (regionEquals(lineStart, length, FREQUENT_MESSAGE_BYTES[i])) {
+				return FREQUENT_MESSAGES[i];
+			}
+		}
+
+		return null;
+	}
+
+	private boolean lineEquals(byte[] expected) {
+		return regionEquals(lineStart, lineEnd - lineStart, expected);
+	}
+
+	private boolean regionEquals(int offset, int length, byte[] expected) {
+		if (length != expected.length) {
+			return false;
+		}
+
+		for (int i=0; i<length; i++) {
+			if (array[offset + i] != expected[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private String asciiString(int offset) {
+		return new String(array, offset, lineEnd - offset,
+				StandardCharsets.US_ASCII);
+	}
+
+	private long parseLong(int offset) throws FcpException {
+		if (offset == lineEnd) {
+			throw new FcpException("empty numeric field");
+		}
+
+		long value = 0;
+		for (int i=offset; i<lineEnd; i++) {
+			final int digit = array[i] - '0';
+			if (digit < 0 || digit > 9 || value > Long.MAX_VALUE / 10) {
+				throw new FcpException("invalid numeric field");
+			}
+			value = value * 10 + digit;
+		}
+
+		return value;
+	}
+
+	private class DataInputStream extends InputStream {
+		private final ReadableByteChannel channel;
+		private long remaining;
+
+		DataInputStream(ReadableByteChannel channel, long dataLength) {
+			this.channel = channel;
+			this.remaining = dataLength;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			if (read(b, 0, 1) < 0) {
+				return -1;
+			}
+
+			return b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (remaining == 0) {
+				return -1;
+			}
+
+			final int maxLength = (int)Math.min(len, remaining);
+			int bytesRead;
+			if (buffer.hasRemaining()) {
+				bytesRead = Math.min(maxLength, buffer.remaining());
+				buffer.get(b, off, bytesRead);
+			} else {
+				bytesRead = channel.read(ByteBuffer.wrap(b, off, maxLength));
+				if (bytesRead < 0) {
+					throw new EOFException("connection closed");
+				}
+			}
+
+			remaining -= bytesRead;
+			return bytesRead;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long toSkip = Math.min(n, remaining);
+			if (toSkip <= 0) {
+				return 0;
+			}
+
+			if (!buffer.hasRemaining()) {
+				buffer.clear();
+				final int bytesRead = channel.read(buffer);
+				buffer.flip();
+				if (bytesRead < 0) {
+					throw new EOFException("connection closed");
+				}
+			}
+
+			final int skipped = (int)Math.min(toSkip, buffer.remaining());
+			buffer.position(buffer.position() + skipped);
+			remaining -= skipped;
+
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int)Math.min(remaining, buffer.remaining());
+		}
+
+		@Override
+		public void close() throws IOException {
+			while (remaining > 0) {
+				skip(remaining);
+			}
+		}
+	}
+
+	private static byte[] ascii(String str) {
+		return str.getBytes(StandardCharsets.US_ASCII);
+	}
+}
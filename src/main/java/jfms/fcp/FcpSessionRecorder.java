@@ -0,0 +1,112 @@
+package jfms.fcp;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the raw traffic of an FCP connection to a file.
+ * Every chunk written to or read from the socket is stored together with
+ * its direction and the time since the start of the recording, so both
+ * message contents and timing of a session are preserved. Recordings are
+ * played back with {@link FcpSessionReplay}.
+ *
+ * The file starts with {@link #MAGIC}, followed by records consisting of
+ * direction (byte, {@link #SENT} or {@link #RECEIVED}), time in
+ * nanoseconds since the start (long), length (int) and the data.
+ */
+public class FcpSessionRecorder implements Closeable {
+	private static final Logger LOG = Logger.getLogger(FcpSessionRecorder.class.getName());
+
+	public static final int MAGIC = 0x46435052; // FCPR
+	public static final byte SENT = 'S';
+	public static final byte RECEIVED = 'R';
+
+	private final DataOutputStream out;
+	private final long startTime;
+	private boolean closed;
+
+	public FcpSessionRecorder(Path file) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(
+					Files.newOutputStream(file)));
+		out.writeInt(MAGIC);
+		startTime = System.nanoTime();
+	}
+
+	/**
+	 * Records the bytes that were consumed from the buffers.
+	 * Errors are logged and end the recording; the connection is not
+	 * affected.
+	 * @param startPositions positions of the buffers before writing
+	 */
+	public synchronized void recordSent(ByteBuffer[] buffers,
+			int[] startPositions) {
+
+		final long time = System.nanoTime() - startTime;
+		for (int i=0; i<buffers.length; i++) {
+			final int length = buffers[i].position() - startPositions[i];
+			if (length > 0) {
+				writeRecord(SENT, time, buffers[i], startPositions[i],
+						length);
+			}
+		}
+	}
+
+	/**
+	 * Records the bytes that were just read into the buffer.
+	 */
+	public synchronized void recordReceived(ByteBuffer buffer, int length) {
+		writeRecord(RECEIVED, System.nanoTime() - startTime, buffer,
+				buffer.position() - length, length);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		out.close();
+	}
+
+	private void writeRecord(byte direction, long time, ByteBuffer buffer,
+			int offset, int length) {
+
+		if (closed) {
+			return;
+		}
+
+		try {
+			writeData(direction, time, buffer, offset, length);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Failed to record FCP session", e);
+			closed = true;
+			try {
+				out.close();
+			} catch (IOException ex) {
+				LOG.log(Level.FINE, "Failed to close recording", ex);
+			}
+		}
+	}
+
+	private void writeData(byte direction, long time, ByteBuffer buffer,
+			int offset, int length) throws IOException {
+
+		out.writeByte(direction);
+		out.writeLong(time);
+		out.writeInt(length);
+		if (buffer.hasArray()) {
+			out.write(buffer.array(), buffer.arrayOffset() + offset, length);
+		} else {
+			final byte[] data = new byte[length];
+			final ByteBuffer view = buffer.duplicate();
+			view.limit(offset + length);
+			view.position(offset);
+			view.get(data);
+			out.write(data);
+		}
+	}
+}
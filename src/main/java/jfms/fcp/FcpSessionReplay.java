@@ -0,0 +1,562 @@
+package jfms.fcp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plays back a session recorded with {@link FcpSessionRecorder}.
+ * The replay listens on a loopback port and takes the role of the node,
+ * so an unmodified FcpClient and everything built on it can be profiled
+ * offline with a captured workload.
+ *
+ * Requests are matched to the recording by message name and URI, in the
+ * order they were recorded; the recorded responses are sent with the
+ * identifier of the new request. With {@link Pacing#ORIGINAL} every
+ * response is delayed by the time it took in the recorded session, with
+ * {@link Pacing#FULL_SPEED} responses are sent immediately. Requests
+ * missing from the recording fail with GetFailed or PutFailed.
+ */
+public class FcpSessionReplay implements Closeable {
+	private static final Logger LOG = Logger.getLogger(FcpSessionReplay.class.getName());
+
+	// FRED FetchException/InsertException code for missing data
+	private static final int CODE_NOT_RECORDED = 28;
+	private static final int MAX_LINE_LENGTH = 65536;
+
+	public enum Pacing {
+		FULL_SPEED,
+		ORIGINAL
+	}
+
+	private final Pacing pacing;
+	private final ServerSocket serverSocket;
+	private final ScheduledExecutorService scheduler;
+	private final Map<String, Deque<Exchange>> exchanges = new HashMap<>();
+	private Message nodeHello;
+	private final AtomicInteger matchedCount = new AtomicInteger();
+	private final AtomicInteger unmatchedCount = new AtomicInteger();
+
+	/**
+	 * FCP message with the time its first byte was sent or received.
+	 */
+	private static class Message {
+		private final String name;
+		private final Map<String, String> fields;
+		private final byte[] data;
+		private final long time;
+
+		public Message(String name, Map<String, String> fields, byte[] data,
+				long time) {
+			this.name = name;
+			this.fields = fields;
+			this.data = data;
+			this.time = time;
+		}
+
+		public byte[] encode(String identifier) {
+			StringBuilder str = new StringBuilder(name);
+			str.append('\n');
+			for (Map.Entry<String, String> e : fields.entrySet()) {
+				str.append(e.getKey());
+				str.append('=');
+				if (e.getKey().equals(FcpResponse.IDENTIFIER)) {
+					str.append(identifier);
+				} else {
+					str.append(e.getValue());
+				}
+				str.append('\n');
+			}
+			str.append(data != null ? "Data\n" : "EndMessage\n");
+
+			final byte[] header = str.toString().getBytes(StandardCharsets.UTF_8);
+			if (data == null) {
+				return header;
+			}
+
+			final byte[] message = new byte[header.length + data.length];
+			System.arraycopy(header, 0, message, 0, header.length);
+			System.arraycopy(data, 0, message, header.length, data.length);
+			return message;
+		}
+	}
+
+	/**
+	 * Recorded request with all responses for its identifier.
+	 */
+	private static class Exchange {
+		private final long requestTime;
+		private final List<Message> responses = new ArrayList<>();
+
+		public Exchange(long requestTime) {
+			this.requestTime = requestTime;
+		}
+	}
+
+	/**
+	 * Recorded byte stream of one direction.
+	 */
+	private static class RecordedStream {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final List<long[]> chunks = new ArrayList<>();
+
+		public void add(byte[] data, long time) {
+			chunks.add(new long[]{bytes.size(), time});
+			bytes.write(data, 0, data.length);
+		}
+
+		public long getTime(int offset) {
+			long time = 0;
+			for (long[] chunk : chunks) {
+				if (chunk[0] > offset) {
+					break;
+				}
+				time = chunk[1];
+			}
+
+			return time;
+		}
+	}
+
+	/**
+	 * Reader for FCP messages in either direction.
+	 * Payload lengths are taken from DataLength, or from the
+	 * Files.N.DataLength fields of ClientPutComplexDir.
+	 */
+	private static class MessageReader {
+		private final InputStream in;
+
+		public MessageReader(InputStream in) {
+			this.in = in;
+		}
+
+		/**
+		 * @return next message, null at end of stream
+		 */
+		public Message read(long time) throws IOException {
+			String name = readLine();
+			while (name != null && name.isEmpty()) {
+				name = readLine();
+			}
+			if (name == null) {
+				return null;
+			}
+
+			final Map<String, String> fields = new LinkedHashMap<>();
+			String line;
+			while (true) {
+				line = readLine();
+				if (line == null) {
+					throw new EOFException("message truncated");
+				}
+				if (line.equals("EndMessage") || line.equals("Data")) {
+					break;
+				}
+
+				final int separator = line.indexOf('=');
+				if (separator > 0) {
+					fields.put(line.substring(0, separator),
+							line.substring(separator + 1));
+				}
+			}
+
+			byte[] data = null;
+			final long length = getDataLength(name, fields,
+					line.equals("Data"));
+			if (length >= 0) {
+				data = new byte[(int)length];
+				int offset = 0;
+				while (offset < data.length) {
+					final int bytesRead = in.read(data, offset,
+							data.length - offset);
+					if (bytesRead < 0) {
+						throw new EOFException("payload truncated");
+					}
+					offset += bytesRead;
+				}
+			}
+
+			return new Message(name, fields, data, time);
+		}
+
+		private static long getDataLength(String name,
+				Map<String, String> fields, boolean hasData) {
+
+			if (name.equals("ClientPutComplexDir")) {
+				long length = 0;
+				boolean direct = false;
+				for (int i=0; fields.containsKey("Files." + i + ".Name"); i++) {
+					final String prefix = "Files." + i + '.';
+					if ("direct".equals(fields.get(prefix + "UploadFrom"))) {
+						length += Long.parseLong(
+								fields.get(prefix + "DataLength"));
+						direct = true;
+					}
+				}
+				return direct ? length : -1;
+			}
+
+			if (hasData || "direct".equals(fields.get("UploadFrom"))) {
+				return Long.parseLong(fields.get(FcpResponse.DATA_LENGTH));
+			}
+
+			return -1;
+		}
+
+		private String readLine() throws IOException {
+			final ByteArrayOutputStream line = new ByteArrayOutputStream();
+			while (true) {
+				final int b = in.read();
+				if (b < 0) {
+					return line.size() > 0 ? line.toString("UTF-8") : null;
+				}
+				if (b == '\n') {
+					return line.toString("UTF-8");
+				}
+				if (line.size() >= MAX_LINE_LENGTH) {
+					throw new IOException("line too long");
+				}
+				line.write(b);
+			}
+		}
+	}
+
+	private class Connection implements Runnable {
+		private final Socket socket;
+		private final OutputStream out;
+		private final Map<String, List<ScheduledFuture<?>>> pending =
+			new ConcurrentHashMap<>();
+
+		public Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		@Override
+		public void run() {
+			try {
+				final MessageReader reader = new MessageReader(
+						new BufferedInputStream(socket.getInputStream()));
+				Message message;
+				while ((message = reader.read(0)) != null) {
+					handleMessage(message);
+				}
+			} catch (SocketException|EOFException e) {
+				LOG.log(Level.FINEST, "FCP client disconnected");
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Failed to read from FCP client", e);
+			}
+
+			close();
+		}
+
+		public void close() {
+			for (List<ScheduledFuture<?>> futures : pending.values()) {
+				futures.forEach(f -> f.cancel(false));
+			}
+
+			try {
+				socket.close();
+			} catch (IOException e) {
+				LOG.log(Level.FINEST, "Failed to close socket", e);
+			}
+		}
+
+		private void handleMessage(Message request) {
+			final String identifier = request.fields.get(FcpResponse.IDENTIFIER);
+			switch (request.name) {
+			case "ClientHello":
+				if (nodeHello != null) {
+					send(nodeHello.encode(null));
+				}
+				return;
+			case "RemoveRequest":
+				final List<ScheduledFuture<?>> futures =
+					pending.remove(identifier);
+				if (futures != null) {
+					futures.forEach(f -> f.cancel(false));
+				}
+				send(("PersistentRequestRemoved\n"
+						+ "Identifier=" + identifier + "\n"
+						+ "Global=false\n"
+						+ "EndMessage\n").getBytes(StandardCharsets.UTF_8));
+				return;
+			default:
+				break;
+			}
+
+			final Exchange exchange = takeExchange(request);
+			if (exchange == null) {
+				unmatchedCount.incrementAndGet();
+				LOG.log(Level.FINE, "{0} {1} not found in recording",
+						new Object[]{request.name,
+						request.fields.get(FcpResponse.URI)});
+				sendFailure(request, identifier);
+				return;
+			}
+
+			matchedCount.incrementAndGet();
+			final List<ScheduledFuture<?>> futures = new ArrayList<>();
+			for (Message response : exchange.responses) {
+				final byte[] message = response.encode(identifier);
+				long delay = 0;
+				if (pacing == Pacing.ORIGINAL) {
+					delay = Math.max(0, response.time - exchange.requestTime);
+				}
+				futures.add(scheduler.schedule(() -> send(message), delay,
+							TimeUnit.NANOSECONDS));
+			}
+			pending.put(identifier, futures);
+		}
+
+		private void sendFailure(Message request, String identifier) {
+			final String name;
+			switch (request.name) {
+			case "ClientGet":
+				name = "GetFailed";
+				break;
+			case "ClientPut":
+			case "ClientPutComplexDir":
+				name = "PutFailed";
+				break;
+			default:
+				return;
+			}
+
+			send((name + "\n"
+					+ "Identifier=" + identifier + "\n"
+					+ "Code=" + CODE_NOT_RECORDED + "\n"
+					+ "Fatal=true\n"
+					+ "Global=false\n"
+					+ "EndMessage\n").getBytes(StandardCharsets.UTF_8));
+		}
+
+		private void send(byte[] message) {
+			try {
+				synchronized (out) {
+					out.write(message);
+					out.flush();
+				}
+			} catch (IOException e) {
+				LOG.log(Level.FINEST, "Failed to send FCP response", e);
+				close();
+			}
+		}
+	}
+
+	public FcpSessionReplay(Path recording, Pacing pacing) throws IOException {
+		this.pacing = pacing;
+		load(recording);
+
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "FcpSessionReplay");
+			t.setDaemon(true);
+			return t;
+		});
+
+		final Thread acceptThread = new Thread(this::acceptConnections,
+				"FcpSessionReplay-accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return number of requests answered from the recording
+	 */
+	public int getMatchedCount() {
+		return matchedCount.get();
+	}
+
+	/**
+	 * @return number of requests that were not found in the recording
+	 */
+	public int getUnmatchedCount() {
+		return unmatchedCount.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+		scheduler.shutdownNow();
+	}
+
+	private void acceptConnections() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				final Thread t = new Thread(new Connection(socket),
+						"FcpSessionReplay-connection");
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					LOG.log(Level.WARNING, "Failed to accept connection", e);
+				}
+			}
+		}
+	}
+
+	private synchronized Exchange takeExchange(Message request) {
+		final Deque<Exchange> queue = exchanges.get(getRequestKey(request));
+		return queue != null ? queue.poll() : null;
+	}
+
+	private void load(Path recording) throws IOException {
+		final RecordedStream sent = new RecordedStream();
+		final RecordedStream received = new RecordedStream();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+						Files.newInputStream(recording)))) {
+			if (in.readInt() != FcpSessionRecorder.MAGIC) {
+				throw new IOException("not an FCP session recording");
+			}
+
+			while (true) {
+				final int direction = in.read();
+				if (direction < 0) {
+					break;
+				}
+				final long time = in.readLong();
+				final byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+
+				if (direction == FcpSessionRecorder.SENT) {
+					sent.add(data, time);
+				} else if (direction == FcpSessionRecorder.RECEIVED) {
+					received.add(data, time);
+				} else {
+					throw new IOException("invalid record type " + direction);
+				}
+			}
+		} catch (EOFException e) {
+			// recording was not closed properly; use what is complete
+			LOG.log(Level.FINE, "Recording truncated");
+		}
+
+		final Map<String, Exchange> exchangesById = new HashMap<>();
+		for (Message request : parse(sent)) {
+			final String identifier = request.fields.get(FcpResponse.IDENTIFIER);
+			if (identifier == null || request.name.equals("RemoveRequest")) {
+				continue;
+			}
+
+			final Exchange exchange = new Exchange(request.time);
+			exchangesById.put(identifier, exchange);
+			exchanges.computeIfAbsent(getRequestKey(request),
+					k -> new ArrayDeque<>()).add(exchange);
+		}
+
+		for (Message response : parse(received)) {
+			if (response.name.equals("NodeHello")) {
+				if (nodeHello == null) {
+					nodeHello = response;
+				}
+				continue;
+			}
+			if (response.name.equals("PersistentRequestRemoved")) {
+				continue;
+			}
+
+			final String identifier = response.fields.get(FcpResponse.IDENTIFIER);
+			final Exchange exchange = exchangesById.get(identifier);
+			if (exchange != null) {
+				exchange.responses.add(response);
+			}
+		}
+
+		LOG.log(Level.FINE, "Loaded {0} requests from recording",
+				exchangesById.size());
+	}
+
+	private static List<Message> parse(RecordedStream stream)
+		throws IOException {
+
+		final byte[] bytes = stream.bytes.toByteArray();
+		final CountingInputStream in = new CountingInputStream(bytes);
+		final MessageReader reader = new MessageReader(in);
+		final List<Message> messages = new ArrayList<>();
+		try {
+			while (true) {
+				final Message message = reader.read(
+						stream.getTime(in.getPosition()));
+				if (message == null) {
+					break;
+				}
+				messages.add(message);
+			}
+		} catch (EOFException e) {
+			LOG.log(Level.FINE, "Last recorded message incomplete");
+		}
+
+		return messages;
+	}
+
+	private static String getRequestKey(Message request) {
+		final String uri = request.fields.get(FcpResponse.URI);
+		return uri != null ? request.name + ' ' + uri : request.name;
+	}
+
+	private static class CountingInputStream extends InputStream {
+		private final byte[] data;
+		private int position;
+
+		public CountingInputStream(byte[] data) {
+			this.data = data;
+		}
+
+		public int getPosition() {
+			return position;
+		}
+
+		@Override
+		public int read() {
+			return position < data.length ? data[position++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position >= data.length) {
+				return -1;
+			}
+
+			final int count = Math.min(len, data.length - position);
+			System.arraycopy(data, position, b, off, count);
+			position += count;
+			return count;
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package jfms.fcp;
+
+import java.io.InputStream;
+
+/**
+ * FcpListener that consumes AllData payloads while they are received.
+ * The stream reads directly from the FCP connection and is only valid
+ * during the callback; unread data is skipped afterwards.
+ * finished(String, byte[]) is not called for listeners implementing this
+ * interface.
+ */
+public interface FcpStreamListener extends FcpListener {
+	void finished(String fcpIdentifier, InputStream data, long dataLength);
+}
@@ -0,0 +1,5 @@
+package jfms.fcp;
+
+public interface FcpSubscriptionListener {
+	void editionFound(String fcpIdentifier, String uri, long edition);
+}
@@ -0,0 +1,108 @@
+package jfms.fcp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative long values.
+ * Values are counted in log-linear buckets: each power of two is split
+ * into 32 sub-buckets, so recorded values are kept with a relative error
+ * of at most 1/32. Values below 32 are counted exactly.
+ * Recording is wait-free apart from maintaining the maximum. Readers see
+ * a consistent state only if no values are recorded concurrently.
+ */
+public class Histogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT =
+		SUB_BUCKET_COUNT * (64 - SUB_BUCKET_BITS);
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong totalValue = new AtomicLong();
+	private final AtomicLong maxValue = new AtomicLong();
+
+	public void record(long value) {
+		final long v = Math.max(value, 0);
+		counts.incrementAndGet(bucketIndex(v));
+		totalCount.incrementAndGet();
+		totalValue.addAndGet(v);
+
+		long max = maxValue.get();
+		while (v > max && !maxValue.compareAndSet(max, v)) {
+			max = maxValue.get();
+		}
+	}
+
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	public long getTotal() {
+		return totalValue.get();
+	}
+
+	public long getMax() {
+		return maxValue.get();
+	}
+
+	public double getMean() {
+		final long count = totalCount.get();
+		if (count == 0) {
+			return 0;
+		}
+
+		return (double)totalValue.get() / count;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of recorded values
+	 * fall. The result is the upper bound of the matching bucket, but never
+	 * larger than the maximum recorded value.
+	 * @param percentile percentile in the range [0, 100]
+	 * @return value at percentile, 0 if no values were recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		final long count = totalCount.get();
+		if (count == 0) {
+			return 0;
+		}
+
+		final double p = Math.min(Math.max(percentile, 0), 100);
+		final long target = Math.max(1, (long)Math.ceil(p / 100 * count));
+
+		long seen = 0;
+		for (int i=0; i<BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(bucketUpperBound(i), maxValue.get());
+			}
+		}
+
+		return maxValue.get();
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int)value;
+		}
+
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int shift = exponent - SUB_BUCKET_BITS;
+		final int subBucket = (int)(value >>> shift) - SUB_BUCKET_COUNT;
+
+		return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+
+		final int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+		final int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+		final long lowerBound = (long)(SUB_BUCKET_COUNT + subBucket) << shift;
+
+		return lowerBound + ((1L << shift) - 1);
+	}
+}
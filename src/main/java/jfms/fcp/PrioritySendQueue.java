@@ -0,0 +1,220 @@
+package jfms.fcp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Messages waiting to be written to the FCP socket.
+ * Requests are sorted into one queue per FCP priority class. The queues
+ * are served by smooth weighted round robin; every class has twice the
+ * weight of the next lower class, so bulk requests are delayed but never
+ * starved. Control messages have a separate queue that is always served
+ * first.
+ * Requests are only dequeued if the caller allows it, which is used to
+ * limit the number of requests outstanding at the node.
+ * A message returned by {@link #peek(boolean)} stays at the head until
+ * it is removed with {@link #poll()}, so partially written messages are
+ * completed before any other message is written.
+ *
+ * Any thread may add and remove messages without locking; the queues are
+ * lock-free. peek(), poll(), pollAny() and isReady() select the next
+ * message and must only be called by one thread at a time, the thread
+ * writing to the socket.
+ */
+class PrioritySendQueue<E> {
+	static final int CONTROL = Integer.MIN_VALUE;
+	static final int MAX_PRIORITY = 0;
+	static final int MIN_PRIORITY = 6;
+	// PriorityClass used by the node if the field is missing (BULK)
+	static final int DEFAULT_PRIORITY = 4;
+
+	private final Queue<E> control = new ConcurrentLinkedQueue<>();
+	private final Queue<E>[] requests;
+	private final int[] weights;
+	// only used by the consumer
+	private final int[] currentWeights;
+	private volatile E head;
+	private final AtomicInteger size = new AtomicInteger();
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	PrioritySendQueue() {
+		final int count = MIN_PRIORITY - MAX_PRIORITY + 1;
+		requests = new Queue[count];
+		weights = new int[count];
+		currentWeights = new int[count];
+		for (int i=0; i<count; i++) {
+			requests[i] = new ConcurrentLinkedQueue<>();
+			weights[i] = 1 << (count - 1 - i);
+		}
+	}
+
+	/**
+	 * @param priority FCP priority class, {@link #CONTROL} for messages
+	 * that are not subject to scheduling
+	 */
+	void add(E e, int priority) {
+		if (priority == CONTROL) {
+			control.add(e);
+		} else {
+			requests[lane(priority)].add(e);
+		}
+		size.incrementAndGet();
+	}
+
+	/**
+	 * @param requestsAllowed whether a request may be selected if no
+	 * control message is waiting
+	 * @return message to write next, null if none is available
+	 */
+	E peek(boolean requestsAllowed) {
+		if (head != null) {
+			return head;
+		}
+
+		E e = control.poll();
+		if (e == null && requestsAllowed) {
+			int lane;
+			// a lane may be emptied concurrently by removeRequest()
+			while (e == null && (lane = selectLane()) >= 0) {
+				e = requests[lane].poll();
+			}
+		}
+		head = e;
+
+		return e;
+	}
+
+	/**
+	 * Removes the message returned by the last call to peek().
+	 */
+	E poll() {
+		final E e = head;
+		if (e != null) {
+			head = null;
+			size.decrementAndGet();
+		}
+
+		return e;
+	}
+
+	/**
+	 * Removes any message, used to discard the queue.
+	 */
+	E pollAny() {
+		E e = head;
+		head = null;
+		if (e == null) {
+			e = control.poll();
+		}
+		for (int i=0; e == null && i<requests.length; i++) {
+			e = requests[i].poll();
+		}
+		if (e != null) {
+			size.decrementAndGet();
+		}
+
+		return e;
+	}
+
+	/**
+	 * Removes a waiting message. The message at the head is not removed.
+	 * @return true if the message was removed
+	 */
+	boolean remove(E e) {
+		if (control.remove(e)) {
+			size.decrementAndGet();
+			return true;
+		}
+
+		for (Queue<E> queue : requests) {
+			if (queue.remove(e)) {
+				size.decrementAndGet();
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Removes the first waiting request matching the filter.
+	 * The message at the head is not removed.
+	 * @return removed request, null if none matched
+	 */
+	E removeRequest(Predicate<E> filter) {
+		for (Queue<E> queue : requests) {
+			for (E e : queue) {
+				// fails if the consumer took the request meanwhile
+				if (filter.test(e) && queue.remove(e)) {
+					size.decrementAndGet();
+					return e;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return true if peek() would return a message
+	 */
+	boolean isReady(boolean requestsAllowed) {
+		if (head != null || !control.isEmpty()) {
+			return true;
+		}
+
+		return requestsAllowed && hasRequests();
+	}
+
+	boolean hasRequests() {
+		for (Queue<E> queue : requests) {
+			if (!queue.isEmpty()) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	int size() {
+		return size.get();
+	}
+
+	private int selectLane() {
+		int selected = -1;
+		int total = 0;
+		for (int i=0; i<requests.length; i++) {
+			if (requests[i].isEmpty()) {
+				// idle classes do not collect credit
+				currentWeights[i] = 0;
+				continue;
+			}
+
+			currentWeights[i] += weights[i];
+			total += weights[i];
+			if (selected < 0 || currentWeights[i] > currentWeights[selected]) {
+				selected = i;
+			}
+		}
+
+		if (selected >= 0) {
+			currentWeights[selected] -= total;
+		}
+
+		return selected;
+	}
+
+	private static int lane(int priority) {
+		if (priority < MAX_PRIORITY) {
+			return DEFAULT_PRIORITY - MAX_PRIORITY;
+		}
+
+		return Math.min(priority, MIN_PRIORITY) - MAX_PRIORITY;
+	}
+}
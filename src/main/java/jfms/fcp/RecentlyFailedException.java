@@ -0,0 +1,37 @@
+package jfms.fcp;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Completes the handle of a request that was not sent because the key
+ * failed recently.
+ */
+public class RecentlyFailedException extends FcpException {
+	private static final long serialVersionUID = 42L;
+
+	public RecentlyFailedException(String key) {
+		super("key failed recently: " + key);
+	}
+
+	/**
+	 * @return true if the handle was completed with a
+	 * RecentlyFailedException
+	 */
+	public static boolean isRecentlyFailed(CompletableFuture<?> future) {
+		if (!future.isCompletedExceptionally()) {
+			return false;
+		}
+
+		try {
+			future.join();
+		} catch (CompletionException e) {
+			return e.getCause() instanceof RecentlyFailedException;
+		} catch (CancellationException e) {
+			return false;
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,74 @@
+package jfms.fcp;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limit of requests outstanding at the node.
+ * The connections of a pool share one budget, so a request is sent on
+ * its connection as soon as any slot of the pool is free, and all
+ * connections together never exceed the limit.
+ */
+class RequestBudget {
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+	private volatile int limit = Integer.MAX_VALUE;
+
+	/**
+	 * Registers a callback that is run whenever slots become free.
+	 */
+	void addListener(Runnable listener) {
+		listeners.add(listener);
+	}
+
+	void setLimit(int limit) {
+		this.limit = limit;
+		slotsFreed();
+	}
+
+	int getLimit() {
+		return limit;
+	}
+
+	int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * @return true if a slot is free
+	 */
+	boolean isAvailable() {
+		return outstanding.get() < limit;
+	}
+
+	/**
+	 * Takes a slot if one is free.
+	 * @return true if a slot was taken
+	 */
+	boolean tryAcquire() {
+		int current;
+		do {
+			current = outstanding.get();
+			if (current >= limit) {
+				return false;
+			}
+		} while (!outstanding.compareAndSet(current, current + 1));
+
+		return true;
+	}
+
+	/**
+	 * Returns a slot taken with {@link #tryAcquire()}.
+	 */
+	void release() {
+		outstanding.decrementAndGet();
+		slotsFreed();
+	}
+
+	private void slotsFreed() {
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+}
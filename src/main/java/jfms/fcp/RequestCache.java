@@ -1,59 +1,299 @@
 package jfms.fcp;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
-import java.time.Instant;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-
+/**
+ * Negative cache for recently failed keys.
+ * Entries are additionally kept in a hashed time wheel with one bucket per
+ * minute. Expired entries are removed bucket by bucket as time advances,
+ * so no scan over all entries is required. The number of entries is
+ * bounded; if the limit is reached, the entries closest to expiry are
+ * evicted first.
+ * All methods are thread-safe.
+ */
 public class RequestCache {
 	private static final Logger LOG = Logger.getLogger(RequestCache.class.getName());
 
-	private final Map<String, Instant> negativeCacheEntries = new HashMap<>();
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	private static final int FILE_MAGIC = 0x6a464e43;
+	private static final int FILE_VERSION = 1;
+
+	private static final long TICK_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final int WHEEL_SIZE = 512; // > max TTL in minutes
+
+	private final int maxEntries;
+	private final LongSupplier clock;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final Queue<Entry>[] wheel;
+	private final ReentrantLock wheelLock = new ReentrantLock();
+	private volatile long currentTick;
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder expiredCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+
+	private static class Entry {
+		private final String key;
+		private final long expiry;
+
+		public Entry(String key, long expiry) {
+			this.key = key;
+			this.expiry = expiry;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public long getExpiry() {
+			return expiry;
+		}
+	}
+
+	public RequestCache() {
+		this(DEFAULT_MAX_ENTRIES, System::currentTimeMillis);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	RequestCache(int maxEntries, LongSupplier clock) {
+		this.maxEntries = maxEntries;
+		this.clock = clock;
+		this.currentTick = clock.getAsLong() / TICK_MILLIS;
+
+		wheel = new Queue[WHEEL_SIZE];
+		for (int i=0; i<WHEEL_SIZE; i++) {
+			wheel[i] = new ConcurrentLinkedQueue<>();
+		}
+	}
 
 	public void addNegativeCacheEntry(String key, int ttlInMinutes) {
-		final Instant expiry = Instant.now()
-				.plus(Duration.ofMinutes(ttlInMinutes));
-		negativeCacheEntries.put(key, expiry);
+		addEntry(key, clock.getAsLong() + ttlInMinutes * TICK_MILLIS);
 	}
 
 	public void addNegativeCacheEntry(String key, Duration ttl) {
-		final Instant expiry = Instant.now().plus(ttl);
-		negativeCacheEntries.put(key, expiry);
+		addEntry(key, clock.getAsLong() + ttl.toMillis());
 	}
 
 	public boolean isPresent(String key) {
-		final Instant expiry = negativeCacheEntries.get(key);
-		if (expiry == null) {
+		final long now = clock.getAsLong();
+		advance(now);
+
+		final Entry entry = entries.get(key);
+		if (entry == null) {
+			missCount.increment();
 			return false;
 		}
 
-		if (Instant.now().isBefore(expiry)) {
+		if (now < entry.getExpiry()) {
+			hitCount.increment();
 			return true;
 		} else {
 			LOG.log(Level.FINEST, "removing expired negative cache entry");
-			negativeCacheEntries.remove(key);
+			if (entries.remove(key, entry)) {
+				expiredCount.increment();
+			}
+			missCount.increment();
 			return false;
 		}
 	}
 
 	public void cleanup() {
-		final Instant now = Instant.now();
+		final long expiredBefore = expiredCount.sum();
+		advance(clock.getAsLong());
 
-		int removeCount = 0;
+		LOG.log(Level.FINEST, "Removed {0} entries from cache; "
+				+ "{1} entries kept", new Object[]{
+				expiredCount.sum() - expiredBefore, entries.size()});
+	}
 
-		for (Iterator<Map.Entry<String, Instant>> it=negativeCacheEntries.entrySet().iterator(); it.hasNext(); ) {
-			if (it.next().getValue().isBefore(now)) {
-				it.remove();
-				removeCount++;
+	/**
+	 * Writes a snapshot of all unexpired entries to a file.
+	 * The snapshot is written to a temporary file first and then moved
+	 * into place, so an interrupted write leaves the previous file intact.
+	 */
+	public void save(Path path) throws IOException {
+		final long now = clock.getAsLong();
+		final List<Entry> snapshot = new ArrayList<>(entries.size());
+		for (Entry entry : entries.values()) {
+			if (entry.getExpiry() > now) {
+				snapshot.add(entry);
 			}
 		}
 
-		LOG.log(Level.FINEST, "Removed {0} entries from cache; "
-				+ "{1} entries kept", new Object[]{
-				removeCount, negativeCacheEntries.size()});
+		final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(snapshot.size());
+			for (Entry entry : snapshot) {
+				out.writeLong(entry.getExpiry());
+				out.writeUTF(entry.getKey());
+			}
+		}
+		Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		LOG.log(Level.FINEST, "Saved {0} negative cache entries",
+				snapshot.size());
+	}
+
+	/**
+	 * Adds unexpired entries from a snapshot created by {@link #save(Path)}.
+	 * Existing entries with a later expiry are kept.
+	 * @return number of entries added
+	 */
+	public int load(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return 0;
+		}
+
+		final long now = clock.getAsLong();
+		int added = 0;
+		try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+				throw new IOException("unsupported negative cache file");
+			}
+
+			final int count = in.readInt();
+			for (int i=0; i<count; i++) {
+				final long expiry = in.readLong();
+				final String key = in.readUTF();
+				if (expiry <= now) {
+					continue;
+				}
+
+				final Entry entry = entries.get(key);
+				if (entry == null || entry.getExpiry() < expiry) {
+					addEntry(key, expiry);
+					added++;
+				}
+			}
+		}
+
+		LOG.log(Level.FINE, "Loaded {0} negative cache entries", added);
+		return added;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	public long getExpiredCount() {
+		return expiredCount.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+
+	private void addEntry(String key, long expiry) {
+		advance(clock.getAsLong());
+
+		final Entry entry = new Entry(key, expiry);
+		final Entry previous = entries.put(key, entry);
+		if (previous == null && entries.size() > maxEntries) {
+			evict();
+		}
+
+		wheel[slot(expiry / TICK_MILLIS)].add(entry);
+	}
+
+	/**
+	 * Removes expired entries from all buckets passed since the last call.
+	 * Only one thread processes the wheel; other threads do not wait.
+	 */
+	private void advance(long now) {
+		final long tick = now / TICK_MILLIS;
+		if (tick <= currentTick || !wheelLock.tryLock()) {
+			return;
+		}
+
+		try {
+			long t = currentTick;
+			final long lastTick = Math.min(tick, t + WHEEL_SIZE);
+			while (t < lastTick) {
+				expireBucket(wheel[slot(t)], now);
+				t++;
+			}
+			currentTick = tick;
+		} finally {
+			wheelLock.unlock();
+		}
+	}
+
+	private void expireBucket(Queue<Entry> bucket, long now) {
+		int size = bucket.size();
+		for (int i=0; i<size; i++) {
+			final Entry entry = bucket.poll();
+			if (entry == null) {
+				break;
+			}
+
+			if (entry.getExpiry() <= now) {
+				if (entries.remove(entry.getKey(), entry)) {
+					expiredCount.increment();
+				}
+			} else if (entries.get(entry.getKey()) == entry) {
+				// expires in a later round of the wheel
+				bucket.add(entry);
+			}
+		}
+	}
+
+	private void evict() {
+		wheelLock.lock();
+		try {
+			long t = currentTick;
+			final long lastTick = t + WHEEL_SIZE;
+			while (entries.size() > maxEntries && t < lastTick) {
+				final Queue<Entry> bucket = wheel[slot(t)];
+				Entry entry;
+				while (entries.size() > maxEntries &&
+						(entry = bucket.poll()) != null) {
+					if (entries.remove(entry.getKey(), entry)) {
+						evictionCount.increment();
+					}
+				}
+				t++;
+			}
+		} finally {
+			wheelLock.unlock();
+		}
+	}
+
+	private static int slot(long tick) {
+		return (int)(tick & (WHEEL_SIZE - 1));
 	}
 }
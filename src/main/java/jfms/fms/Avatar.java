@@ -3,6 +3,16 @@ package jfms.fms;
 import java.time.LocalDate;
 
 public class Avatar {
+	/** number of bytes needed by {@link #getImageType(byte[], int)} */
+	public static final int IMAGE_HEADER_LENGTH = 8;
+
+	private static final byte[] PNG_MAGIC =
+		{(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+	private static final byte[] JPEG_MAGIC = {(byte)0xff, (byte)0xd8, (byte)0xff};
+	private static final byte[] GIF87_MAGIC = {'G', 'I', 'F', '8', '7', 'a'};
+	private static final byte[] GIF89_MAGIC = {'G', 'I', 'F', '8', '9', 'a'};
+	private static final byte[] BMP_MAGIC = {'B', 'M'};
+
 	private final int identityId;
 	private final String key;
 	private final int tries;
@@ -37,6 +47,42 @@ public class Avatar {
 		return ext;
 	}
 
+	/**
+	 * Detects the image format from the first bytes of a file.
+	 * Only the signature is checked, the image is not decoded.
+	 * @param header start of the file
+	 * @param length number of valid bytes in header
+	 * @return extension of a supported format, null if unknown
+	 */
+	public static String getImageType(byte[] header, int length) {
+		if (startsWith(header, length, PNG_MAGIC)) {
+			return "png";
+		} else if (startsWith(header, length, JPEG_MAGIC)) {
+			return "jpg";
+		} else if (startsWith(header, length, GIF87_MAGIC) ||
+				startsWith(header, length, GIF89_MAGIC)) {
+			return "gif";
+		} else if (startsWith(header, length, BMP_MAGIC)) {
+			return "bmp";
+		}
+
+		return null;
+	}
+
+	private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+		if (length < prefix.length) {
+			return false;
+		}
+
+		for (int i=0; i<prefix.length; i++) {
+			if (data[i] != prefix[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
 	public int getIdentityId() {
 		return identityId;
 	}
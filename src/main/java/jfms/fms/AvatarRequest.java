@@ -1,12 +1,22 @@
 package jfms.fms;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.util.Arrays;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import jfms.config.Constants;
 import jfms.store.Store;
 
 public class AvatarRequest extends DownloadRequest {
+	private static final Logger LOG = Logger.getLogger(AvatarRequest.class.getName());
+
 	private final String key;
 	private final int identityId;
 	private int successful = 0;
@@ -23,15 +33,51 @@ public class AvatarRequest extends DownloadRequest {
 	}
 
 	@Override
-	public void finished(byte[] data) {
-		IdentityManager identityManager = FmsManager.getInstance()
-			.getIdentityManager();
+	public Path getDownloadDirectory() {
+		return Paths.get(Constants.AVATAR_DIR);
+	}
+
+	@Override
+	public void finished(InputStream data) {
+		final Path file;
+		try {
+			file = receiveToFile(getDownloadDirectory(), data);
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "Failed to read avatar", e);
+			error(Constants.CODE_PARSE_FAILED);
+			return;
+		}
+
+		try {
+			finished(file);
+		} finally {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				LOG.log(Level.FINE, "Failed to delete avatar file", e);
+			}
+		}
+	}
+
+	@Override
+	public void finished(Path file) {
+		avatarSaved(FmsManager.getInstance().getIdentityManager()
+				.saveAvatar(identityId, file));
+	}
 
-		final String extension = Avatar.getExtension(key);
-		boolean saved = identityManager.saveAvatar(identityId, extension, data);
+	@Override
+	public void finished(byte[] data) {
+		avatarSaved(FmsManager.getInstance().getIdentityManager()
+				.saveAvatar(identityId, data));
+	}
 
+	private void avatarSaved(String extension) {
 		final Store store = FmsManager.getInstance().getStore();
-		if (saved) {
+		if (extension != null) {
+			if (!extension.equals(Avatar.getExtension(key))) {
+				LOG.log(Level.FINE, "avatar type {0} does not match key {1}",
+						new Object[]{extension, key});
+			}
 			store.setAvatarExtension(identityId, extension);
 		} else {
 			store.setAvatarFailed(identityId, LocalDate.now());
@@ -49,10 +95,19 @@ public class AvatarRequest extends DownloadRequest {
 
 	@Override
 	public void error(int code) {
+		if (isTransientError(code)) {
+			return;
+		}
+
 		final Store store = FmsManager.getInstance().getStore();
 		store.setAvatarFailed(identityId, LocalDate.now());
 	}
 
+	@Override
+	public int getIdentityId() {
+		return identityId;
+	}
+
 	@Override
 	public int isSuccessful() {
 		return successful;
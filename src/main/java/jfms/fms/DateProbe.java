@@ -0,0 +1,182 @@
+package jfms.fms;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Concurrent search for the most recent day a document was published.
+ * Days before the start date are probed backwards in waves of doubling
+ * size: the start date alone, then the next 2 days, then 4 days, and so
+ * on. All days of a wave are requested at once; the next wave starts when
+ * no day of the current wave was found. Once a day is found, requests for
+ * older days are no longer needed and can be cancelled. A day found while
+ * more recent days are still outstanding is held back until they have
+ * failed, so only the most recent day is processed.
+ */
+class DateProbe {
+	private final RequestTracker startTracker;
+	private final Map<Long, DownloadRequest> outstanding = new HashMap<>();
+	private long nextOffset = 1;
+	private int waveSize = 1;
+	private int pending = 1;
+	private long foundOffset = -1;
+	private DownloadRequest deferred;
+	private long failOffset = Long.MAX_VALUE;
+	private LocalDate failDate;
+	private boolean stopped;
+
+	/**
+	 * @param startTracker tracker of the first request
+	 */
+	DateProbe(RequestTracker startTracker) {
+		this.startTracker = startTracker;
+	}
+
+	/**
+	 * @return number of days between the start date and the date of the
+	 * tracker
+	 */
+	long getOffset(RequestTracker tracker) {
+		return ChronoUnit.DAYS.between(tracker.getDate(),
+				startTracker.getDate());
+	}
+
+	/**
+	 * Registers the request for a day.
+	 */
+	synchronized void add(long offset, DownloadRequest request) {
+		outstanding.put(offset, request);
+	}
+
+	/**
+	 * Called when the day was found.
+	 * @param request request of the day, held back if more recent days
+	 * are still outstanding
+	 * @return true if the day is to be processed now, false if it is
+	 * outdated or held back
+	 */
+	synchronized boolean found(long offset, DownloadRequest request) {
+		outstanding.remove(offset);
+		if (foundOffset >= 0 && offset > foundOffset) {
+			return false;
+		}
+
+		foundOffset = offset;
+		if (hasNewerRequests(offset)) {
+			deferred = request;
+			return false;
+		}
+
+		deferred = null;
+		return true;
+	}
+
+	/**
+	 * Called after a more recent day than the most recent day found has
+	 * failed or was skipped.
+	 * @return request of the day held back by {@link #found}, if no more
+	 * recent day is outstanding anymore; null otherwise
+	 */
+	synchronized DownloadRequest takeDeferred() {
+		if (deferred == null || hasNewerRequests(foundOffset)) {
+			return null;
+		}
+
+		final DownloadRequest request = deferred;
+		deferred = null;
+
+		return request;
+	}
+
+	/**
+	 * @return outstanding requests for days before the most recent day
+	 * found
+	 */
+	synchronized List<DownloadRequest> takeOlderRequests() {
+		if (foundOffset < 0) {
+			return Collections.emptyList();
+		}
+
+		final List<DownloadRequest> requests = new ArrayList<>();
+		final Iterator<Map.Entry<Long, DownloadRequest>> iter =
+			outstanding.entrySet().iterator();
+		while (iter.hasNext()) {
+			final Map.Entry<Long, DownloadRequest> e = iter.next();
+			if (e.getKey() > foundOffset) {
+				requests.add(e.getValue());
+				iter.remove();
+			}
+		}
+
+		return requests;
+	}
+
+	/**
+	 * Called when the day was not found.
+	 * @param failDate date to remember as failed, null if none
+	 * @return trackers of the next wave, empty if the wave is not done
+	 * or the search has ended
+	 */
+	synchronized List<RequestTracker> missing(long offset,
+			LocalDate failDate) {
+
+		outstanding.remove(offset);
+		pending--;
+		if (failDate != null && offset < failOffset) {
+			failOffset = offset;
+			this.failDate = failDate;
+		}
+
+		if (pending > 0 || foundOffset >= 0 || stopped) {
+			return Collections.emptyList();
+		}
+
+		waveSize *= 2;
+		final List<RequestTracker> trackers =
+			startTracker.minusDays(nextOffset, waveSize);
+		nextOffset += waveSize;
+		pending = trackers.size();
+
+		return trackers;
+	}
+
+	/**
+	 * Called when the day is skipped. No further waves are started.
+	 */
+	synchronized void stop(long offset) {
+		outstanding.remove(offset);
+		pending--;
+		stopped = true;
+	}
+
+	/**
+	 * @return true if all days were probed without success
+	 */
+	synchronized boolean isExhausted() {
+		return pending <= 0 && foundOffset < 0 && !stopped;
+	}
+
+	/**
+	 * @return most recent failed day more recent than the given offset,
+	 * null if none
+	 */
+	synchronized LocalDate getFailDate(long beforeOffset) {
+		return failOffset < beforeOffset ? failDate : null;
+	}
+
+	private boolean hasNewerRequests(long offset) {
+		for (long o : outstanding.keySet()) {
+			if (o < offset) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
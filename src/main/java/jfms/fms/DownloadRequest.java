@@ -1,12 +1,30 @@
 package jfms.fms;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jfms.config.Constants;
 
 public abstract class DownloadRequest  {
+	private static final Logger LOG = Logger.getLogger(DownloadRequest.class.getName());
+
 	private String id;
 	private String key;
 	private DownloadRequest chainedRequest;
+	private List<DownloadRequest> fanOutRequests;
+	private List<DownloadRequest> cancelledRequests;
 	private int ttl;
+	private DownloadScheduler.Pipeline pipeline;
+	private long rank;
+	private volatile boolean cancelled;
 
 	public DownloadRequest(String id, String key) {
 		this.id = id;
@@ -56,6 +74,111 @@ public abstract class DownloadRequest  {
 		this.chainedRequest = chainedRequest;
 	}
 
+	/**
+	 * @return independent requests to be sent concurrently after this
+	 * request has finished, null if none
+	 */
+	public List<DownloadRequest> getFanOutRequests() {
+		return fanOutRequests;
+	}
+
+	public void setFanOutRequests(List<DownloadRequest> fanOutRequests) {
+		this.fanOutRequests = fanOutRequests;
+	}
+
+	/**
+	 * @return true if {@link #createParallelRequests()} may return
+	 * requests
+	 */
+	public boolean hasParallelRequests() {
+		return false;
+	}
+
+	/**
+	 * Called when this request is sent. The returned requests are sent
+	 * at the same time and belong to the same stage as this request.
+	 * @return requests to be sent together with this request
+	 */
+	public List<DownloadRequest> createParallelRequests() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * @return outstanding requests that are no longer needed after this
+	 * request has finished, null if none
+	 */
+	public List<DownloadRequest> getCancelledRequests() {
+		return cancelledRequests;
+	}
+
+	public void setCancelledRequests(List<DownloadRequest> cancelledRequests) {
+		this.cancelledRequests = cancelledRequests;
+	}
+
+	/**
+	 * @return pipeline the request belongs to, null if not scheduled
+	 * by a {@link DownloadScheduler}
+	 */
+	DownloadScheduler.Pipeline getPipeline() {
+		return pipeline;
+	}
+
+	void setPipeline(DownloadScheduler.Pipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * @return rank used when scheduled as fan-out request, lower ranks
+	 * are sent first
+	 */
+	long getRank() {
+		return rank;
+	}
+
+	void setRank(long rank) {
+		this.rank = rank;
+	}
+
+	/**
+	 * Marks a request that was cancelled before it was sent.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return true if the request must not be sent anymore
+	 */
+	boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Stores a payload in a new temporary file.
+	 * @param directory directory of the file, null for the default
+	 * temporary-file directory
+	 * @return the file, to be deleted by the caller
+	 */
+	static Path receiveToFile(Path directory, InputStream data)
+		throws IOException {
+
+		final Path file;
+		if (directory != null) {
+			Files.createDirectories(directory);
+			file = Files.createTempFile(directory, "download-", ".tmp");
+		} else {
+			file = Files.createTempFile("download-", ".tmp");
+		}
+		try {
+			Files.copy(data, file, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+
+		return file;
+	}
+
 	public String getNextId() {
 		final String currentId = getId();
 		String mainId;
@@ -76,11 +199,51 @@ public abstract class DownloadRequest  {
 		return str.toString();
 	}
 
+	/**
+	 * @return type of the requested document, null if not an FMS document
+	 */
+	public RequestType getType() {
+		return null;
+	}
+
+	/**
+	 * @return numeric ID of the identity the request belongs to,
+	 * -1 if not bound to a single identity
+	 */
+	public int getIdentityId() {
+		return -1;
+	}
+
 	public int isSuccessful() {
 		return -1;
 	}
 
-	public abstract void finished(byte[] data);
+	public void finished(byte[] data) {
+		finished(new ByteArrayInputStream(data));
+	}
+
+	public abstract void finished(InputStream data);
+
+	/**
+	 * @return directory where the payload is stored while it is
+	 * received, null to keep it in memory
+	 */
+	public Path getDownloadDirectory() {
+		return null;
+	}
+
+	/**
+	 * Called instead of finished(InputStream) if a download directory is
+	 * set. The file is deleted afterwards unless it was moved.
+	 */
+	public void finished(Path file) {
+		try (InputStream data = Files.newInputStream(file)) {
+			finished(data);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Failed to read downloaded file", e);
+			error(Constants.CODE_PARSE_FAILED);
+		}
+	}
 
 	public boolean redirect(String redirectURI) {
 		return false;
@@ -88,4 +251,13 @@ public abstract class DownloadRequest  {
 
 	public void error(int code) {
 	}
+
+	/**
+	 * @return true if the error says nothing about the document, e.g. a
+	 * timeout or a lost connection; the request may succeed later
+	 */
+	protected static boolean isTransientError(int code) {
+		return code == Constants.CODE_TIMEOUT ||
+			code == Constants.CODE_DISCONNECTED;
+	}
 }
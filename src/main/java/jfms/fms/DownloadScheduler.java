@@ -0,0 +1,313 @@
+package jfms.fms;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dependency-aware scheduling of download requests.
+ * Work is organized in pipelines of stages. The stages of a pipeline run
+ * one after another: the request of a stage is created once the previous
+ * stage has completed, including all chained requests. A stage may run
+ * several chains of requests concurrently and completes with the last
+ * of them. Pipelines do not
+ * wait for each other, e.g. the message list of one identity is requested
+ * while trust lists of other identities are still running.
+ *
+ * Ready requests are taken in the order of the rank of their pipeline,
+ * requests of the same rank in the order they became ready. Ranks share
+ * the space of message ranks, see MessageReferenceList.getRank().
+ *
+ * When the last pipeline has completed, the idle handler is run and may
+ * start new pipelines. If it does not, the scheduler is finished.
+ */
+class DownloadScheduler {
+	private static final Logger LOG = Logger.getLogger(DownloadScheduler.class.getName());
+
+	/**
+	 * Rank of pipelines without a rank of their own, e.g. identities:
+	 * after all messages on subscribed boards, before other messages.
+	 */
+	static final long DEFAULT_RANK =
+		MessageReferenceList.getRank(false, 0, 100) - 1;
+
+	private final Runnable idleHandler;
+	private final Lock lock = new ReentrantLock();
+	private final Condition cond = lock.newCondition();
+	private final Queue<ReadyRequest> ready = new PriorityQueue<>();
+	private final Queue<ReadyRequest> backgroundReady = new PriorityQueue<>();
+	private long sequence;
+	private int activePipelines;
+	private boolean idleHandlerRunning;
+	private boolean idleAgain;
+
+	interface Stage {
+		/**
+		 * Called when the previous stage has completed.
+		 * @return request of this stage, null to skip the stage
+		 */
+		DownloadRequest createRequest();
+
+		/**
+		 * Called when the request and all its chained requests are done.
+		 */
+		default void completed(boolean successful) {
+		}
+	}
+
+	static class Pipeline {
+		private final boolean background;
+		private final long rank;
+		private final Iterator<Stage> stages;
+		private Stage current;
+		private int pendingChains;
+		private boolean successful;
+
+		private Pipeline(boolean background, long rank, Stage[] stages) {
+			this.background = background;
+			this.rank = rank;
+			this.stages = Arrays.asList(stages).iterator();
+		}
+
+		/**
+		 * @return true if requests are only sent if no foreground
+		 * request is waiting
+		 */
+		boolean isBackground() {
+			return background;
+		}
+	}
+
+	private static class ReadyRequest implements Comparable<ReadyRequest> {
+		private final DownloadRequest request;
+		private final long rank;
+		private final long sequence;
+
+		private ReadyRequest(DownloadRequest request, long rank,
+				long sequence) {
+			this.request = request;
+			this.rank = rank;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(ReadyRequest r) {
+			final int cmp = Long.compare(rank, r.rank);
+			if (cmp != 0) {
+				return cmp;
+			}
+			return Long.compare(sequence, r.sequence);
+		}
+	}
+
+	DownloadScheduler(Runnable idleHandler) {
+		this.idleHandler = idleHandler;
+	}
+
+	/**
+	 * Starts a new pipeline with the default rank.
+	 * @param background whether the pipeline yields to foreground
+	 * pipelines
+	 */
+	void schedule(boolean background, Stage... stages) {
+		schedule(background, DEFAULT_RANK, stages);
+	}
+
+	/**
+	 * Starts a new pipeline.
+	 * @param background whether the pipeline yields to foreground
+	 * pipelines
+	 * @param rank requests of pipelines with lower ranks are taken first
+	 */
+	void schedule(boolean background, long rank, Stage... stages) {
+		final Pipeline pipeline = new Pipeline(background, rank, stages);
+		lock.lock();
+		try {
+			activePipelines++;
+		} finally {
+			lock.unlock();
+		}
+
+		advance(pipeline);
+	}
+
+	/**
+	 * Registers another chain of requests of the current stage.
+	 */
+	void chainStarted(Pipeline pipeline) {
+		lock.lock();
+		try {
+			pipeline.pendingChains++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts another chain of requests of the current stage. The request
+	 * is taken like the first request of a stage.
+	 */
+	void scheduleChain(Pipeline pipeline, DownloadRequest request) {
+		request.setPipeline(pipeline);
+		lock.lock();
+		try {
+			pipeline.pendingChains++;
+			enqueue(pipeline, request);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called when a chain of requests of the current stage is done.
+	 * After the last chain, the pipeline continues with the next stage.
+	 * @param successful whether the chain was successful; the stage is
+	 * successful if any of its chains was
+	 */
+	void stageCompleted(Pipeline pipeline, boolean successful) {
+		final Stage stage;
+		final boolean stageSuccessful;
+		lock.lock();
+		try {
+			pipeline.successful |= successful;
+			if (--pipeline.pendingChains > 0) {
+				return;
+			}
+			stage = pipeline.current;
+			stageSuccessful = pipeline.successful;
+			pipeline.current = null;
+		} finally {
+			lock.unlock();
+		}
+
+		if (stage != null) {
+			try {
+				stage.completed(stageSuccessful);
+			} catch (RuntimeException e) {
+				LOG.log(Level.WARNING, "Failed to complete download stage", e);
+			}
+		}
+
+		advance(pipeline);
+	}
+
+	/**
+	 * Waits for the next request. Foreground requests are returned
+	 * first, then in the order of their rank.
+	 * @return next request, null if all pipelines have completed
+	 */
+	DownloadRequest take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (true) {
+				ReadyRequest r = ready.poll();
+				if (r == null) {
+					r = backgroundReady.poll();
+				}
+				if (r != null) {
+					return r.request;
+				}
+				if (activePipelines == 0 && !idleHandlerRunning) {
+					return null;
+				}
+
+				cond.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int getActivePipelineCount() {
+		lock.lock();
+		try {
+			return activePipelines;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void advance(Pipeline pipeline) {
+		while (pipeline.stages.hasNext()) {
+			final Stage stage = pipeline.stages.next();
+			DownloadRequest request = null;
+			try {
+				request = stage.createRequest();
+			} catch (RuntimeException e) {
+				LOG.log(Level.WARNING, "Failed to create download request", e);
+			}
+
+			if (request != null) {
+				request.setPipeline(pipeline);
+				lock.lock();
+				try {
+					pipeline.current = stage;
+					pipeline.pendingChains = 1;
+					pipeline.successful = false;
+					enqueue(pipeline, request);
+				} finally {
+					lock.unlock();
+				}
+				return;
+			}
+		}
+
+		pipelineFinished();
+	}
+
+	private void enqueue(Pipeline pipeline, DownloadRequest request) {
+		final ReadyRequest r = new ReadyRequest(request, pipeline.rank,
+				sequence++);
+		if (pipeline.background) {
+			backgroundReady.add(r);
+		} else {
+			ready.add(r);
+		}
+		cond.signalAll();
+	}
+
+	private void pipelineFinished() {
+		lock.lock();
+		try {
+			activePipelines--;
+			if (activePipelines > 0) {
+				return;
+			}
+			if (idleHandlerRunning) {
+				// became idle again while the handler was running
+				idleAgain = true;
+				return;
+			}
+			idleHandlerRunning = true;
+		} finally {
+			lock.unlock();
+		}
+
+		boolean again = true;
+		while (again) {
+			try {
+				idleHandler.run();
+			} catch (RuntimeException e) {
+				LOG.log(Level.WARNING, "Exception in idle handler", e);
+			}
+
+			lock.lock();
+			try {
+				again = idleAgain && activePipelines == 0;
+				idleAgain = false;
+				if (!again) {
+					idleHandlerRunning = false;
+					cond.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
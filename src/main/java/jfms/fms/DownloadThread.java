@@ -1,27 +1,44 @@
 package jfms.fms;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import jfms.config.Constants;
 import jfms.fcp.FcpClient;
 import jfms.fcp.FcpException;
-import jfms.fcp.FcpListener;
+import jfms.fcp.FcpStreamListener;
+import jfms.fcp.RecentlyFailedException;
 import jfms.store.Store;
+import jfms.util.AdaptiveLimit;
+import jfms.util.OrderedExecutor;
 import jfms.util.RequestID;
 import jfms.util.RequestLimiter;
 
-public class DownloadThread implements FcpListener, Runnable {
+public class DownloadThread implements FcpStreamListener, Runnable {
 	private static final Logger LOG = Logger.getLogger(DownloadThread.class.getName());
+
+	// returned instead of an error code if a request was sent
+	private static final int QUEUED = 0;
+	private static final Long NOT_SENT = -1L;
 	private static int iteration = 0;
 
 	private final Map<String, DownloadRequest> fcpRequests = new ConcurrentHashMap<>();
@@ -34,7 +51,20 @@ public class DownloadThread implements FcpListener, Runnable {
 	private String countLabel;
 	private final RequestID requestID = new RequestID("request-");
 	private RequestLimiter requestLimiter;
+	private volatile AdaptiveLimit requestLimit = new AdaptiveLimit(
+			Integer.parseInt(Constants.DEFAULT_MAX_FCP_REQUESTS));
+	// time each request was written to the node, NOT_SENT while it waits
+	// in the send queue of the FCP client
+	private final Map<String, Long> sendTimes = new ConcurrentHashMap<>();
+	private volatile OrderedExecutor callbackExecutor;
 	private final MessageReferenceList globalMessageList = new MessageReferenceList();
+	private volatile DownloadScheduler scheduler;
+	private final Set<Integer> scheduledIdentities = ConcurrentHashMap.newKeySet();
+	private final Map<Integer, Mode> deferredMessageLists = new ConcurrentHashMap<>();
+	private final AtomicInteger inactiveMessageListCount = new AtomicInteger();
+	private volatile Set<Integer> trustListTrustedIds = Collections.emptySet();
+	private volatile Set<Integer> messageTrustedIds = Collections.emptySet();
+	private volatile boolean trustListsUpdated;
 
 	public enum Mode {
 		ACTIVE,
@@ -53,6 +83,18 @@ public class DownloadThread implements FcpListener, Runnable {
 		this.progressListener = progressListener;
 	}
 
+	/**
+	 * Sets the limit of concurrent requests. The limit is kept across
+	 * download cycles and takes effect with the next cycle.
+	 */
+	public void setRequestLimit(AdaptiveLimit requestLimit) {
+		this.requestLimit = requestLimit;
+	}
+
+	public AdaptiveLimit getRequestLimit() {
+		return requestLimit;
+	}
+
 	private void updateProgress(long workDone, long max) {
 		if (progressListener != null) {
 			progressListener.updateProgress(workDone, max);
@@ -81,23 +123,38 @@ public class DownloadThread implements FcpListener, Runnable {
 		updateMessage("No requests pending");
 		updateProgress(0, 1);
 
-		requestLimiter = new RequestLimiter();
+		requestLimiter = new RequestLimiter(requestLimit);
+		sendTimes.clear();
+		final OrderedExecutor executor = new OrderedExecutor("FcpCallback",
+				Constants.MAX_CALLBACK_THREADS,
+				Constants.MAX_PENDING_CALLBACKS);
+		callbackExecutor = executor;
+		final Store store = FmsManager.getInstance().getStore();
 
 		try {
+			// serve the request history of the sweep from memory
+			store.loadRequestHistory();
+
 			fcpClient.start();
 			fcpClient.cleanup();
 
 			final LocalDate today = LocalDate.now(ZoneOffset.UTC);
 
-			download(today, Mode.ACTIVE, true);
-			download(today, Mode.INACTIVE, true);
-			downloadAvatars(today);
+			download(today, true);
 		} catch (InterruptedException e) {
 			LOG.log(Level.FINE, "FMS download thread interrupted");
 		} catch (Exception e) {
 			LOG.log(Level.WARNING, "exception in FMS download thread", e);
 		}
 
+		callbackExecutor = null;
+		try {
+			executor.shutdown(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			LOG.log(Level.FINE, "interrupted while waiting for callbacks");
+		}
+		store.releaseRequestHistory();
+
 		updateTitle("Idle");
 		updateMessage("No requests pending");
 		updateProgress(0, 1);
@@ -123,73 +180,236 @@ public class DownloadThread implements FcpListener, Runnable {
 
 	@Override
 	public void error(String fcpIdentifier, int code) {
+		dispatch(fcpIdentifier, () -> handleError(fcpIdentifier, code));
+	}
+
+	@Override
+	public void finished(String fcpIdentifier, byte[] data) {
+		dispatch(fcpIdentifier, () -> handleFinished(fcpIdentifier,
+					new ByteArrayInputStream(data)));
+	}
+
+	@Override
+	public void finished(String fcpIdentifier, InputStream data,
+			long dataLength) {
+
+		final DownloadRequest request = fcpRequests.get(fcpIdentifier);
+		final Path directory = request != null ?
+			request.getDownloadDirectory() : null;
+		if (directory == null) {
+			if (callbackExecutor == null) {
+				// parse straight from the FCP connection
+				handleFinished(fcpIdentifier, data);
+				return;
+			}
+
+			if (dataLength <= Constants.MAX_BUFFERED_PAYLOAD) {
+				// detach small payloads from the FCP connection before
+				// handing them over
+				final byte[] payload;
+				try {
+					payload = readPayload(data, dataLength);
+				} catch (IOException e) {
+					LOG.log(Level.WARNING, "Failed to read FCP payload", e);
+					handleError(fcpIdentifier, Constants.CODE_PARSE_FAILED);
+					return;
+				}
+
+				finished(fcpIdentifier, payload);
+				return;
+			}
+		}
+
+		// stream larger payloads to disk instead of buffering them; this
+		// blocks the FCP receiver thread, but all requests are sent with
+		// MaxSize=Constants.MAX_REQUEST_SIZE, which bounds the write
+		final Path file;
+		try {
+			file = DownloadRequest.receiveToFile(directory, data);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Failed to store FCP payload", e);
+			handleError(fcpIdentifier, Constants.CODE_PARSE_FAILED);
+			return;
+		}
+
+		dispatch(fcpIdentifier, () -> {
+			handleFinished(fcpIdentifier, r -> r.finished(file));
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				LOG.log(Level.FINE, "Failed to delete temporary file", e);
+			}
+		});
+	}
+
+	@Override
+	public void redirect(String fcpIdentifier, String redirectURI) {
+		dispatch(fcpIdentifier, () -> handleRedirect(fcpIdentifier,
+					redirectURI));
+	}
+
+	private void handleError(String fcpIdentifier, int code) {
 		LOG.log(Level.FINE, "Request [{0}] failed", fcpIdentifier);
 
+		final DownloadRequest fcpRequest = fcpRequests.remove(fcpIdentifier);
+		if (fcpRequest == null) {
+			// cancelled requests may still get a response
+			LOG.log(Level.FINE, "got FCP response for unknown ID: {0}", fcpIdentifier);
+			return;
+		}
+
+		final long rtt = takeRtt(fcpIdentifier);
 		boolean lastInChain = true;
 		int success = 0;
 		try {
-			DownloadRequest fcpRequest = fcpRequests.remove(fcpIdentifier);
-			if (fcpRequest != null) {
-				fcpRequest.error(code);
-
-				DownloadRequest chainedRequest = fcpRequest.getChainedRequest();
-				if (chainedRequest != null) {
-					lastInChain = false;
-					LOG.log(Level.FINEST, "Got chained request!");
-					queueFcpRequest(chainedRequest);
-				}
-
-				success = fcpRequest.isSuccessful();
-			} else {
-				LOG.log(Level.WARNING, "got FCP response for unknown ID: {0}", fcpIdentifier);
+			fcpRequest.error(code);
+			cancelRequests(fcpRequest);
+
+			DownloadRequest chainedRequest = fcpRequest.getChainedRequest();
+			if (chainedRequest != null) {
+				LOG.log(Level.FINEST, "Got chained request!");
+				chainedRequest.setPipeline(fcpRequest.getPipeline());
+				lastInChain = !queueFcpRequest(chainedRequest);
 			}
+
+			success = fcpRequest.isSuccessful();
 		} catch (Exception e) {
 			LOG.log(Level.WARNING, "Failed to handle FCP error response", e);
 		}
 
-		if (lastInChain && success >= 0) {
-			if (success > 0) {
-				successfulCount++;
-			} else {
-				failedCount++;
-			}
-			updateDownloadProgress();
-
-			addMessageRequests();
-		}
+		requestCompleted(fcpRequest, lastInChain, success);
+		requestDone(rtt, DownloadRequest.isTransientError(code));
+	}
 
-		requestLimiter.requestDone();
+	private void handleFinished(String fcpIdentifier, InputStream data) {
+		handleFinished(fcpIdentifier, request -> request.finished(data));
 	}
 
-	@Override
-	public void finished(String fcpIdentifier, byte[] data) {
+	private void handleFinished(String fcpIdentifier,
+			Consumer<DownloadRequest> delivery) {
+
 		LOG.log(Level.FINEST,
 				"request finished: ID {0} in Thread {1}", new Object[]{
 				fcpIdentifier, Thread.currentThread().getId()});
 
+		final DownloadRequest fcpRequest = fcpRequests.remove(fcpIdentifier);
+		if (fcpRequest == null) {
+			// cancelled requests may still get a response
+			LOG.log(Level.FINE, "got FCP response for unknown ID: {0}",
+					fcpIdentifier);
+			return;
+		}
+
+		final long rtt = takeRtt(fcpIdentifier);
 		boolean lastInChain = true;
 		int success = 0;
 		try {
-			DownloadRequest fcpRequest = fcpRequests.remove(fcpIdentifier);
-			if (fcpRequest != null) {
-				fcpRequest.finished(data);
-
-				DownloadRequest chainedRequest = fcpRequest.getChainedRequest();
-				if (chainedRequest != null) {
-					lastInChain = false;
-					LOG.log(Level.FINEST, "Got chained request!");
-					queueFcpRequest(chainedRequest);
-				}
-
-				success = fcpRequest.isSuccessful();
-			} else {
-				LOG.log(Level.WARNING, "got FCP response for unknown ID: {0}",
-						fcpIdentifier);
+			delivery.accept(fcpRequest);
+			scheduleFanOutRequests(fcpRequest);
+			cancelRequests(fcpRequest);
+
+			DownloadRequest chainedRequest = fcpRequest.getChainedRequest();
+			if (chainedRequest != null) {
+				LOG.log(Level.FINEST, "Got chained request!");
+				chainedRequest.setPipeline(fcpRequest.getPipeline());
+				lastInChain = !queueFcpRequest(chainedRequest);
 			}
-		} catch (FcpException e) {
+
+			success = fcpRequest.isSuccessful();
+		} catch (Exception e) {
+			// the stage must be completed whatever went wrong
 			LOG.log(Level.WARNING, "Failed to handle FCP finished response", e);
 		}
 
+		requestCompleted(fcpRequest, lastInChain, success);
+		requestDone(rtt, false);
+	}
+
+	private void handleRedirect(String fcpIdentifier, String redirectURI) {
+		LOG.log(Level.FINEST,
+				"request redirected: ID {0} in Thread {1}", new Object[]{
+				fcpIdentifier, Thread.currentThread().getId()});
+		final DownloadRequest fcpRequest = fcpRequests.get(fcpIdentifier);
+		if (fcpRequest == null) {
+			LOG.log(Level.FINE, "got FCP response for unknown ID: {0}",
+					fcpIdentifier);
+			return;
+		}
+
+		final long rtt = takeRtt(fcpIdentifier);
+		boolean requeued = false;
+		try {
+			if (fcpRequest.redirect(redirectURI)) {
+				requeued = queueFcpRequest(fcpRequest);
+			}
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "Failed to handle FCP response", e);
+		}
+
+		if (!requeued) {
+			fcpRequests.remove(fcpIdentifier);
+			requestCompleted(fcpRequest, true, 0);
+		}
+		requestDone(rtt, false);
+	}
+
+	private void requestCompleted(DownloadRequest request,
+			boolean lastInChain, int success) {
+
+		updateCounts(lastInChain, success);
+
+		final DownloadScheduler.Pipeline pipeline =
+			request != null ? request.getPipeline() : null;
+		if (lastInChain && pipeline != null) {
+			// start the next stage before releasing the request slot
+			scheduler.stageCompleted(pipeline, success > 0);
+		}
+	}
+
+	/**
+	 * Schedules the fan-out requests as separate pipelines, so they are
+	 * sent concurrently within the request limit.
+	 */
+	private void scheduleFanOutRequests(DownloadRequest request) {
+		final List<DownloadRequest> fanOutRequests =
+			request.getFanOutRequests();
+		if (fanOutRequests == null) {
+			return;
+		}
+
+		LOG.log(Level.FINEST, "Scheduling {0} concurrent requests",
+				fanOutRequests.size());
+		final DownloadScheduler.Pipeline pipeline = request.getPipeline();
+		final boolean background = pipeline != null && pipeline.isBackground();
+		for (DownloadRequest r : fanOutRequests) {
+			scheduler.schedule(background, r.getRank(), () -> r);
+		}
+	}
+
+	/**
+	 * @return time since the request was written to the node, -1 if
+	 * unknown
+	 */
+	private long takeRtt(String fcpIdentifier) {
+		final Long sendTime = sendTimes.remove(fcpIdentifier);
+		if (sendTime == null || sendTime.equals(NOT_SENT)) {
+			return -1;
+		}
+
+		return System.nanoTime() - sendTime;
+	}
+
+	private void requestDone(long rtt, boolean dropped) {
+		if (rtt >= 0) {
+			requestLimiter.requestDone(rtt, dropped);
+		} else {
+			requestLimiter.requestDone();
+		}
+	}
+
+	private synchronized void updateCounts(boolean lastInChain,
+			int success) {
+
 		if (lastInChain && success >= 0) {
 			if (success > 0) {
 				successfulCount++;
@@ -197,33 +417,56 @@ public class DownloadThread implements FcpListener, Runnable {
 				failedCount++;
 			}
 			updateDownloadProgress();
+		}
+	}
 
-			addMessageRequests();
+	private synchronized void requestScheduled() {
+		totalCount++;
+		updateDownloadProgress();
+	}
+
+	/**
+	 * Runs a callback in the callback executor.
+	 * Callbacks for the same identity are processed in order.
+	 */
+	private void dispatch(String fcpIdentifier, Runnable callback) {
+		final OrderedExecutor executor = callbackExecutor;
+		if (executor == null) {
+			callback.run();
+			return;
 		}
 
-		requestLimiter.requestDone();
+		final DownloadRequest request = fcpRequests.get(fcpIdentifier);
+		final Object key;
+		if (request != null && request.getIdentityId() >= 0) {
+			key = request.getIdentityId();
+		} else {
+			key = fcpIdentifier;
+		}
+
+		executor.execute(key, callback);
 	}
 
-	@Override
-	public void redirect(String fcpIdentifier, String redirectURI) {
-		LOG.log(Level.FINEST,
-				"request redirected: ID {0} in Thread {1}", new Object[]{
-				fcpIdentifier, Thread.currentThread().getId()});
-		try {
-			DownloadRequest fcpRequest = fcpRequests.get(fcpIdentifier);
-			if (fcpRequest != null) {
-				if (fcpRequest.redirect(redirectURI)) {
-					queueFcpRequest(fcpRequest);
-				}
-			} else {
-				LOG.log(Level.WARNING, "got FCP response for unknown ID: {0}",
-						fcpIdentifier);
+	/**
+	 * Reads a small payload into memory.
+	 * @param dataLength number of bytes to read
+	 * @throws EOFException if the stream ends before dataLength bytes
+	 */
+	private static byte[] readPayload(InputStream data, long dataLength)
+		throws IOException {
+
+		final byte[] payload = new byte[(int)dataLength];
+		int offset = 0;
+		while (offset < payload.length) {
+			final int bytesRead = data.read(payload, offset,
+					payload.length - offset);
+			if (bytesRead < 0) {
+				throw new EOFException("payload truncated");
 			}
-		} catch (Exception e) {
-			LOG.log(Level.WARNING, "Failed to handle FCP response", e);
+			offset += bytesRead;
 		}
 
-		requestLimiter.requestDone();
+		return payload;
 	}
 
 	@Override
@@ -238,78 +481,359 @@ public class DownloadThread implements FcpListener, Runnable {
 		LOG.log(Level.WARNING, "unexpected keyPairGenerated");
 	}
 
-	private void queueFcpRequest(DownloadRequest fcpRequest)
+	/**
+	 * Queues the request. Recently failed requests and requests that
+	 * cannot be sent are skipped in favour of their chained requests.
+	 * @return false if the request and all its chained requests were
+	 * skipped
+	 */
+	private boolean queueFcpRequest(DownloadRequest fcpRequest)
 			throws FcpException {
 
 		DownloadRequest request = fcpRequest;
 		while (request != null) {
-			if (queueFcpRequestIfNotInCache(fcpRequest)) {
-				break;
+			final int code;
+			if (request.hasParallelRequests()) {
+				code = queueParallelRequests(request);
+			} else {
+				code = queueFcpRequestIfNotInCache(request);
+			}
+			if (code == QUEUED) {
+				return true;
+			}
+			request.error(code);
+			cancelRequests(request);
+
+			final DownloadRequest chainedRequest = request.getChainedRequest();
+			if (chainedRequest != null) {
+				chainedRequest.setPipeline(request.getPipeline());
+			}
+			request = chainedRequest;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Queues the request together with its parallel requests. Every
+	 * parallel request is an additional chain of the current stage.
+	 * Only as many parallel requests as the request limit allows are
+	 * sent at once; the others are handed back to the scheduler, which
+	 * sends them when slots become free.
+	 * @return {@link #QUEUED}, or the error code if the request itself
+	 * was skipped
+	 */
+	private int queueParallelRequests(DownloadRequest fcpRequest)
+		throws FcpException {
+
+		final DownloadScheduler.Pipeline pipeline = fcpRequest.getPipeline();
+		if (pipeline != null) {
+			// keep the stage open until all parallel requests are queued
+			scheduler.chainStarted(pipeline);
+		}
+
+		try {
+			final int code = queueFcpRequestIfNotInCache(fcpRequest);
+			if (code != QUEUED) {
+				return code;
+			}
+
+			// called from response callbacks as well, so do not wait
+			int available = requestLimiter.getAvailable();
+			for (DownloadRequest r : fcpRequest.createParallelRequests()) {
+				if (pipeline != null && available-- <= 0) {
+					scheduler.scheduleChain(pipeline, r);
+					continue;
+				}
+
+				r.setId(requestID.getNext());
+				r.setPipeline(pipeline);
+				if (pipeline != null) {
+					scheduler.chainStarted(pipeline);
+				}
+				requestScheduled();
+				if (!queueFcpRequest(r)) {
+					requestCompleted(r, true, 0);
+				}
+			}
+
+			return QUEUED;
+		} finally {
+			if (pipeline != null) {
+				scheduler.stageCompleted(pipeline, false);
+			}
+		}
+	}
+
+	/**
+	 * Cancels outstanding requests that are no longer needed.
+	 */
+	private void cancelRequests(DownloadRequest request) {
+		final List<DownloadRequest> cancelledRequests =
+			request.getCancelledRequests();
+		if (cancelledRequests == null) {
+			return;
+		}
+
+		for (DownloadRequest r : cancelledRequests) {
+			final String id = r.getId();
+			if (id == null) {
+				// still waiting in the scheduler
+				r.cancel();
+				continue;
 			}
-			request.error(Constants.CODE_RECENTLY_TRIED);
-			request = request.getChainedRequest();
+			if (fcpRequests.remove(id) == null) {
+				// already done
+				continue;
+			}
+
+			LOG.log(Level.FINEST, "Cancelling request [{0}]", id);
+			try {
+				fcpClient.cancel(id);
+			} catch (FcpException e) {
+				LOG.log(Level.FINE, "Failed to cancel request", e);
+			}
+			sendTimes.remove(id);
+			requestLimiter.requestDone();
+			requestCompleted(r, true, 0);
 		}
 	}
 
-	private boolean queueFcpRequestIfNotInCache(DownloadRequest fcpRequest)
+	/**
+	 * @return {@link #QUEUED}, {@link Constants#CODE_RECENTLY_TRIED} if
+	 * the key failed recently, {@link Constants#CODE_DISCONNECTED} if the
+	 * request could not be sent
+	 */
+	private int queueFcpRequestIfNotInCache(DownloadRequest fcpRequest)
 		throws FcpException {
 
 		final String key = fcpRequest.getKey();
 		final String id = fcpRequest.getId();
 
-		if (fcpClient.requestKey(id, key, this, fcpRequest.getTTL(),
-					fcpRequest.getAdditionalFields())) {
-			fcpRequests.put(id, fcpRequest);
-			requestLimiter.addRequest();
-			return true;
-		} else {
-			return false;
+		final RequestType type = fcpRequest.getType();
+		final String requestClass = type != null ? type.name() : null;
+
+		// register first, the response may arrive before requestKey returns
+		fcpRequests.put(id, fcpRequest);
+		sendTimes.put(id, NOT_SENT);
+		requestLimiter.addRequest();
+		int code = Constants.CODE_DISCONNECTED;
+		try {
+			final CompletableFuture<Void> future = fcpClient.requestKey(id,
+					key, this, fcpRequest.getTTL(),
+					fcpRequest.getAdditionalFields(),
+					getPriority(fcpRequest), requestClass);
+			if (RecentlyFailedException.isRecentlyFailed(future)) {
+				code = Constants.CODE_RECENTLY_TRIED;
+			} else if (!future.isCompletedExceptionally()) {
+				// a later failure is reported through the listener
+				code = QUEUED;
+				// waiting in the local send queue is not node latency;
+				// no-op if the response has already been handled
+				future.thenRun(() -> sendTimes.replace(id, NOT_SENT,
+							System.nanoTime()));
+			}
+		} finally {
+			if (code != QUEUED) {
+				fcpRequests.remove(id);
+				sendTimes.remove(id);
+				requestLimiter.requestDone();
+			}
 		}
+
+		return code;
 	}
 
-	private void download(LocalDate date, Mode mode, Boolean isFastMessageCheckEnabled)
+	/**
+	 * Messages and identities are needed to show new posts and are sent
+	 * first; avatars and requests for inactive identities are only
+	 * fetched in the background.
+	 */
+	private int getPriority(DownloadRequest request) {
+		final RequestType type = request.getType();
+		int priority = Constants.PRIORITY_BULK;
+		if (type != null) {
+			switch (type) {
+			case MESSAGE:
+			case IDENTITY:
+				priority = Constants.PRIORITY_INTERACTIVE;
+				break;
+			case MESSAGE_LIST:
+			case TRUST_LIST:
+				priority = Constants.PRIORITY_SEMI_INTERACTIVE;
+				break;
+			default:
+				priority = Constants.PRIORITY_UPDATE;
+				break;
+			}
+		}
+
+		final DownloadScheduler.Pipeline pipeline = request.getPipeline();
+		if (pipeline != null && pipeline.isBackground()) {
+			priority = Math.max(priority, Constants.PRIORITY_BULK);
+		}
+
+		return priority;
+	}
+
+	/**
+	 * Downloads the documents of all identities.
+	 * Every identity has its own pipeline: identity and trust list first,
+	 * then the message list; messages are requested as soon as message
+	 * lists arrive. Pipelines run concurrently, so a slow request only
+	 * delays the identity it belongs to. Identity introductions and
+	 * avatars do not depend on other requests and run alongside.
+	 */
+	private void download(LocalDate date, boolean isFastMessageCheckEnabled)
 		throws InterruptedException, FcpException {
 
-		LOG.log(Level.FINEST, "Starting downloading for {0} identities",
-				mode.toString().toLowerCase(Locale.ENGLISH));
+		final DownloadScheduler downloadScheduler =
+			new DownloadScheduler(() -> rescheduleIdentities(date));
+		scheduler = downloadScheduler;
+		globalMessageList.clear();
+		globalMessageList.setSubscribedBoards(FmsManager.getInstance()
+				.getBoardManager().getSubscribedBoardNames());
+		scheduledIdentities.clear();
+		deferredMessageLists.clear();
+		inactiveMessageListCount.set(0);
+		trustListsUpdated = false;
+
+		synchronized (this) {
+			countLabel = "documents";
+			successfulCount = 0;
+			failedCount = 0;
+			totalCount = 0;
+		}
+		updateTitle("Requesting documents");
+		updateDownloadProgress();
 
 		TrustManager trustManager = FmsManager.getInstance().getTrustManager();
 		if (trustManager.getTrustListTrustedIds().isEmpty()) {
 			LOG.log(Level.WARNING, "No trusted IDs found, skipping download");
-			return;
-		}
+		} else {
+			updateTrustedIds(trustManager);
 
-		if (iteration == 1 && mode == Mode.ACTIVE &&
-				isFastMessageCheckEnabled) {
+			final MessageListSubscriptions subscriptions =
+				FmsManager.getInstance().getMessageListSubscriptions();
+			if (subscriptions != null) {
+				subscriptions.retainAll(messageTrustedIds);
+			}
 
-			LOG.log(Level.FINE, "Performing fast message check");
-			downloadMessageLists(date, mode, true);
+			final boolean fastMessageCheck =
+				iteration == 1 && isFastMessageCheckEnabled;
+			if (fastMessageCheck) {
+				LOG.log(Level.FINE, "Performing fast message check");
+			}
+			scheduleIdentities(date, fastMessageCheck);
+			scheduleIdentityIntroductions(date);
 		}
+		scheduleAvatars(date);
+
+		DownloadRequest request;
+		while ((request = downloadScheduler.take()) != null) {
+			if (request.isCancelled()) {
+				LOG.log(Level.FINEST, "Skipping cancelled request for {0}",
+						request.getKey());
+				downloadScheduler.stageCompleted(request.getPipeline(), false);
+				continue;
+			}
 
-		boolean retry = true;
-		while (retry) {
-			retry = downloadTrustLists(date, mode);
+			requestLimiter.waitUntilReady();
+			request.setId(requestID.getNext());
+			requestScheduled();
+			if (!queueFcpRequest(request)) {
+				updateCounts(true, 0);
+				downloadScheduler.stageCompleted(request.getPipeline(), false);
+			}
 		}
 
-		downloadMessageLists(date, mode);
-		downloadIdentityIntroductions(date);
+		LOG.log(Level.FINEST, "Waiting for message downloads to finish");
+		requestLimiter.waitUntilReady(1);
+		LOG.log(Level.FINE, "download finished, request limit {0}, RTT {1}",
+				new Object[]{requestLimit.getLimit(), requestLimit.getRtt()});
+	}
 
-		LOG.log(Level.FINEST, "Finished downloading for {0} identities",
-				mode.toString().toLowerCase(Locale.ENGLISH));
+	private void updateTrustedIds(TrustManager trustManager) {
+		trustListTrustedIds = trustManager.getTrustListTrustedIds();
+		messageTrustedIds = trustManager.getMessageTrustedIds();
 	}
 
-	private void downloadAvatars(LocalDate date)
-		throws FcpException,InterruptedException {
+	/**
+	 * Starts pipelines for all eligible identities that were not
+	 * scheduled in this cycle yet.
+	 */
+	private void scheduleIdentities(LocalDate date, boolean fastMessageCheck) {
+		int fastCheckCount = 0;
+		int scheduledCount = 0;
+		for (Mode mode : Mode.values()) {
+			for (int identityId : getEligibleIdentities(date, mode)) {
+				final boolean messageTrusted =
+					messageTrustedIds.contains(identityId);
+				if (!messageTrusted &&
+						!trustListTrustedIds.contains(identityId)) {
+					continue;
+				}
+				if (!scheduledIdentities.add(identityId)) {
+					continue;
+				}
 
-		LOG.log(Level.FINEST, "Start downloading avatars");
+				final List<DownloadScheduler.Stage> stages = new ArrayList<>(3);
+				if (fastMessageCheck && mode == Mode.ACTIVE && messageTrusted
+						&& fastCheckCount < Constants.MAX_FAST_MESSAGE_CHECK_COUNT) {
+					stages.add(() -> createMessageListRequest(identityId,
+								date, globalMessageList, true));
+					fastCheckCount++;
+				}
+				stages.add(createTrustListStage(identityId, date));
+				stages.add(createMessageListStage(identityId, date, mode));
 
-		List<DownloadRequest> requests = new ArrayList<>();
+				scheduler.schedule(mode == Mode.INACTIVE,
+						stages.toArray(new DownloadScheduler.Stage[0]));
+				scheduledCount++;
+			}
+		}
+
+		LOG.log(Level.FINEST, "Scheduled {0,number,0} identities",
+				scheduledCount);
+	}
+
+	/**
+	 * Called when all pipelines have completed. If trust lists were
+	 * retrieved, trust is recalculated and identities that became trusted
+	 * are scheduled.
+	 */
+	private void rescheduleIdentities(LocalDate date) {
+		if (!trustListsUpdated) {
+			return;
+		}
+		trustListsUpdated = false;
+
+		LOG.log(Level.FINE, "trust lists updated, recalculating trust");
+		final TrustManager trustManager =
+			FmsManager.getInstance().getTrustManager();
+		trustManager.initialize();
+		updateTrustedIds(trustManager);
+
+		for (Map.Entry<Integer, Mode> e : deferredMessageLists.entrySet()) {
+			final int identityId = e.getKey();
+			final Mode mode = e.getValue();
+			if (messageTrustedIds.contains(identityId) &&
+					deferredMessageLists.remove(identityId, mode)) {
+				scheduler.schedule(mode == Mode.INACTIVE,
+						createMessageListStage(identityId, date, mode));
+			}
+		}
 
+		scheduleIdentities(date, false);
+	}
+
+	private void scheduleAvatars(LocalDate date) {
 		final Store store = FmsManager.getInstance().getStore();
 		store.populateAvatarTable();
 
 		List<Avatar> avatars = store.getMissingAvatars();
 
+		int count = 0;
 		for (Avatar a : avatars) {
 			final LocalDate lastFailDate = a.getLastFailDate();
 			int tries = a.getTries();
@@ -325,39 +849,13 @@ public class DownloadThread implements FcpListener, Runnable {
 				}
 			}
 
-			DownloadRequest request = new AvatarRequest(null,
+			final DownloadRequest request = new AvatarRequest(null,
 					a.getIdentityId(), a.getKey());
-			requests.add(request);
+			scheduler.schedule(true, () -> request);
+			count++;
 		}
 
-		downloadRequests("avatars", requests);
-
-		LOG.log(Level.FINEST, "Waiting for avatar downloads to finish");
-		requestLimiter.waitUntilReady(1);
-
-		LOG.log(Level.FINEST, "Finished downloading avatars");
-	}
-
-	private void downloadRequests(String label, List<DownloadRequest> requests)
-		throws FcpException, InterruptedException {
-
-		countLabel = label;
-		successfulCount = 0;
-		failedCount = 0;
-		totalCount = requests.size();
-
-		StringBuilder str = new StringBuilder();
-		str.append("Requesting ");
-		str.append(label);
-		updateTitle(str.toString());
-		updateDownloadProgress();
-
-		final int maxFcpRequests = Integer.parseInt(Constants.DEFAULT_MAX_FCP_REQUESTS);
-		for (DownloadRequest request : requests) {
-			requestLimiter.waitUntilReady(maxFcpRequests);
-			request.setId(requestID.getNext());
-			queueFcpRequest(request);
-		}
+		LOG.log(Level.FINEST, "Scheduled {0,number,0} avatars", count);
 	}
 
 	private DownloadRequest createTrustListRequest(int identityId, LocalDate date) {
@@ -402,56 +900,26 @@ public class DownloadThread implements FcpListener, Runnable {
 		return request;
 	}
 
-	private boolean downloadTrustLists(LocalDate date, Mode mode)
-		throws InterruptedException, FcpException {
+	private DownloadScheduler.Stage createTrustListStage(int identityId,
+			LocalDate date) {
 
-		TrustManager trustManager = FmsManager.getInstance().getTrustManager();
-		Set<Integer> trustlistTrustedIds = trustManager.getTrustListTrustedIds();
-
-		List<DownloadRequest> requests = new ArrayList<>();
+		return new DownloadScheduler.Stage() {
+			@Override
+			public DownloadRequest createRequest() {
+				if (!trustListTrustedIds.contains(identityId)) {
+					return null;
+				}
 
-		int processed = 0;
-		for (int identityId : getEligibleIdentities(date, mode)) {
-			if (!trustlistTrustedIds.contains(identityId)) {
-				continue;
+				return createTrustListRequest(identityId, date);
 			}
 
-			DownloadRequest request = createTrustListRequest(identityId, date);
-			if (request != null) {
-				requests.add(request);
+			@Override
+			public void completed(boolean successful) {
+				if (successful) {
+					trustListsUpdated = true;
+				}
 			}
-
-			processed++;
-		}
-
-		LOG.log(Level.FINEST,
-				"Checked {0,number,0}/{1,number,0} trust lists", new Object[]{
-				processed, trustlistTrustedIds.size()});
-		LOG.log(Level.FINEST, "Requesting {0,number,0} trust lists",
-				requests.size());
-
-		if (requests.isEmpty()) {
-			return false;
-		}
-
-		final String label;
-		if (mode == Mode.ACTIVE) {
-			label = "trust lists";
-		} else {
-			label = "inactive trust lists";
-		}
-		downloadRequests(label, requests);
-
-		LOG.log(Level.FINEST, "Waiting for trust lists to finish");
-		requestLimiter.waitUntilReady(1);
-		LOG.log(Level.FINE, "trust list download finished");
-
-		if (successfulCount > 0) {
-			trustManager.initialize();
-			return true;
-		} else {
-			return false;
-		}
+		};
 	}
 
 	private DownloadRequest createMessageListRequest(int identityId,
@@ -483,12 +951,33 @@ public class DownloadThread implements FcpListener, Runnable {
 					null);
 		} else {
 			// identity is up-to-date; request message list directly
+			int maxIndex = Constants.MAX_MESSAGELIST_INDEX;
+			boolean subscribed = false;
+			final MessageListSubscriptions subscriptions =
+				FmsManager.getInstance().getMessageListSubscriptions();
+			if (subscriptions != null && !fastMessageCheck) {
+				if (subscriptions.isSubscribed(identityId, date)) {
+					// only request the latest edition reported by the node
+					maxIndex = subscriptions.getLatestEdition(identityId,
+							date);
+					if (maxIndex < 0) {
+						return null;
+					}
+					subscribed = true;
+				} else {
+					// poll once; later editions are reported by the node
+					subscriptions.subscribe(identityId, ssk, date);
+				}
+			}
+
 			RequestTracker messageListTracker = RequestTracker.create(
-					RequestType.MESSAGE_LIST, identityId, date,
-					Constants.MAX_MESSAGELIST_INDEX);
+					RequestType.MESSAGE_LIST, identityId, date, maxIndex);
 			if (messageListTracker == null) {
 				return null;
 			}
+			if (subscribed) {
+				messageListTracker = messageListTracker.setIndex(maxIndex);
+			}
 			if (fastMessageCheck) {
 				messageListTracker.setFastMessageCheckEnabled(true);
 			}
@@ -509,70 +998,57 @@ public class DownloadThread implements FcpListener, Runnable {
 		return request;
 	}
 
-	private void downloadMessageLists(LocalDate date, Mode mode)
-		throws InterruptedException, FcpException {
-
-		downloadMessageLists(date, mode, false);
-	}
-
-	private void downloadMessageLists(LocalDate date, Mode mode,
-			boolean fastMessageCheck)
-
-		throws InterruptedException, FcpException {
+	/**
+	 * Creates the message list stage of a pipeline. Identities that are
+	 * not trusted yet are deferred until trust is recalculated. Without
+	 * subscriptions, identities are skipped if the predictor does not
+	 * expect a new message list.
+	 */
+	private DownloadScheduler.Stage createMessageListStage(int identityId,
+			LocalDate date, Mode mode) {
+
+		final FmsManager fmsManager = FmsManager.getInstance();
+		final MessageListPredictor predictor =
+			fmsManager.getMessageListSubscriptions() == null ?
+			fmsManager.getMessageListPredictor() : null;
+
+		return new DownloadScheduler.Stage() {
+			@Override
+			public DownloadRequest createRequest() {
+				if (!messageTrustedIds.contains(identityId)) {
+					deferredMessageLists.put(identityId, mode);
+					return null;
+				}
 
-		TrustManager trustManager = FmsManager.getInstance().getTrustManager();
-		Set<Integer> trustedIds = trustManager.getMessageTrustedIds();
+				if (mode == Mode.INACTIVE && inactiveMessageListCount.get() >=
+						Constants.MAX_INACTIVE_IDENTITY_REQUESTS) {
+					return null;
+				}
 
-		List<DownloadRequest> requests = new ArrayList<>();
-		globalMessageList.clear();
+				if (predictor != null &&
+						!predictor.shouldPoll(identityId, Instant.now())) {
+					LOG.log(Level.FINEST, "Skipping message list of ID {0}",
+							identityId);
+					return null;
+				}
 
-		int processed = 0;
-		for (int identityId : getEligibleIdentities(date, mode)) {
-			if (fastMessageCheck && processed >= Constants.MAX_FAST_MESSAGE_CHECK_COUNT) {
-				break;
-			}
+				final DownloadRequest request = createMessageListRequest(
+						identityId, date, globalMessageList, false);
+				if (request != null && mode == Mode.INACTIVE) {
+					inactiveMessageListCount.incrementAndGet();
+				}
 
-			if (!trustedIds.contains(identityId)) {
-				continue;
+				return request;
 			}
 
-			DownloadRequest request = createMessageListRequest(identityId,
-					date, globalMessageList, fastMessageCheck);
-			if (request != null) {
-				requests.add(request);
-				if (mode == Mode.INACTIVE && requests.size() >=
-						Constants.MAX_INACTIVE_IDENTITY_REQUESTS) {
-					break;
+			@Override
+			public void completed(boolean successful) {
+				if (predictor != null) {
+					predictor.pollCompleted(identityId, successful,
+							Instant.now());
 				}
 			}
-
-			processed++;
-		}
-
-		LOG.log(Level.FINEST,
-				"Checked {0,number,0}/{1,number,0} message lists",
-				new Object[]{processed, trustedIds.size()});
-		LOG.log(Level.FINEST, "Requesting {0,number,0} message lists",
-				requests.size());
-
-		if (requests.isEmpty()) {
-			return;
-		}
-
-		String label;
-		if (mode == Mode.ACTIVE) {
-			label = "message lists";
-		} else {
-			label = "inactive message lists";
-		}
-		if (fastMessageCheck) {
-			label += " (fast check)";
-		}
-		downloadRequests(label, requests);
-
-		LOG.log(Level.FINEST, "Waiting for message lists to finish");
-		requestLimiter.waitUntilReady(1);
-		LOG.log(Level.FINE, "message list download finished");
+		};
 	}
 
 	private List<Integer> getEligibleIdentities(LocalDate date, Mode mode) {
@@ -594,83 +1070,24 @@ public class DownloadThread implements FcpListener, Runnable {
 		}
 	}
 
-	private void downloadIdentityIntroductions(LocalDate date)
-			throws FcpException, InterruptedException {
-
+	private void scheduleIdentityIntroductions(LocalDate date) {
 		final Store store = FmsManager.getInstance().getStore();
-		List<Integer> localIdentityIds = store.retrieveLocalIdentities()
-			.entrySet()
-			.stream()
-			.map(Map.Entry::getKey)
-			.collect(Collectors.toList());
-
-		for (int localIdentityId : localIdentityIds) {
-			downloadIdentityIntroduction(localIdentityId, date);
-		}
-	}
-
-	private void downloadIdentityIntroduction(int localIdentityId,
-			LocalDate date)
-		throws InterruptedException, FcpException {
-
-		List<DownloadRequest> requests = new ArrayList<>();
-		Store store = FmsManager.getInstance().getStore();
-
-		LocalDate fromDate = date.minusDays(Constants.MAX_PUZZLE_AGE);
-		Map<DateIndex, IntroductionPuzzle> puzzles =
-			store.getUnsolvedPuzzles(localIdentityId, fromDate);
-
-		for (Map.Entry<DateIndex, IntroductionPuzzle> e : puzzles.entrySet()) {
-			DateIndex dateIndex = e.getKey();
-			IntroductionPuzzle puzzle = e.getValue();
-
-			DownloadRequest request = new IdentityIntroductionRequest(null,
-					localIdentityId, dateIndex.getDate(), dateIndex.getIndex(),
-					puzzle.getUuid(), puzzle.getSolution());
-			requests.add(request);
-		}
-
-		downloadRequests("identity introductions", requests);
+		final LocalDate fromDate = date.minusDays(Constants.MAX_PUZZLE_AGE);
 
-		LOG.log(Level.FINEST, "Waiting for identity introductions to finish");
-		requestLimiter.waitUntilReady(1);
-		LOG.log(Level.FINEST, "identity introductions finished");
-	}
+		for (int localIdentityId : store.retrieveLocalIdentities().keySet()) {
+			Map<DateIndex, IntroductionPuzzle> puzzles =
+				store.getUnsolvedPuzzles(localIdentityId, fromDate);
 
-	private void addMessageRequests() {
-		if (globalMessageList.isEmpty()) {
-			return;
-		}
+			for (Map.Entry<DateIndex, IntroductionPuzzle> e : puzzles.entrySet()) {
+				DateIndex dateIndex = e.getKey();
+				IntroductionPuzzle puzzle = e.getValue();
 
-		LOG.log(Level.FINEST, "Adding message requests ({0} remaining)",
-				globalMessageList.size());
-		RequestTracker requestTracker = RequestTracker.create(
-				Constants.FALLBACK_DATE,
-				Constants.MAX_MESSAGELIST_INDEX);
-		requestTracker.setSuccessCount(-1);
-
-		MessageReference msg = globalMessageList.remove();
-		MessageRequest msgRequest = new MessageRequest(null, -1, null,
-				msg, globalMessageList, requestTracker);
-
-		// check if we should update identity first
-		RequestTracker msgTracker = RequestTracker.createSingleRequest(
-				RequestType.IDENTITY, msg.getIdentityId(), msg.getDate());
-		final DownloadRequest request;
-		if (msgTracker == null) {
-			msgRequest.setId(requestID.getNext());
-			request = msgRequest;
-		} else {
-			request = new IdentityRequest(requestID.getNext(),
-					msg.getIdentityId(), msg.getSsk(), msgTracker,
-					IdentityRequest.SuccessAction.REQUEST_MESSAGE,
-					msgRequest);
-		}
-
-		try {
-			queueFcpRequest(request);
-		} catch (FcpException e) {
-			LOG.log(Level.WARNING, "Failed to add message request", e);
+				final DownloadRequest request = new IdentityIntroductionRequest(
+						null, localIdentityId, dateIndex.getDate(),
+						dateIndex.getIndex(), puzzle.getUuid(),
+						puzzle.getSolution());
+				scheduler.schedule(false, () -> request);
+			}
 		}
 	}
 }
@@ -1,7 +1,11 @@
 package jfms.fms;
 
+import java.nio.file.Paths;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -12,8 +16,10 @@ import java.util.logging.Logger;
 
 import jfms.config.Constants;
 import jfms.fcp.FcpClient;
+import jfms.fcp.FcpClientPool;
 import jfms.fcp.FcpStatusListener;
 import jfms.store.Store;
+import jfms.util.AdaptiveLimit;
 
 public class FmsManager implements FcpStatusListener {
 	private static final Logger LOG = Logger.getLogger(FmsManager.class.getName());
@@ -30,6 +36,14 @@ public class FmsManager implements FcpStatusListener {
 	private ProgressListener progressListener;
 	private FcpStatusListener statusListener;
 	private InsertThread insertThread;
+	private volatile MessageListSubscriptions messageListSubscriptions;
+	private volatile AdaptiveLimit requestLimit;
+	private volatile MessageListPredictor messageListPredictor;
+	private volatile int trustListProbeWindow =
+		Integer.parseInt(Constants.DEFAULT_TRUSTLIST_PROBE_WINDOW);
+	private volatile boolean identityDateProbeEnabled =
+		Boolean.parseBoolean(Constants.DEFAULT_PROBE_IDENTITY_DATES);
+	private DownloadThread downloadThread;
 
 	public static FmsManager getInstance() {
 		return instance;
@@ -49,18 +63,179 @@ public class FmsManager implements FcpStatusListener {
 	}
 
 	public void initialize(List<String> seedIdentities, String fcpHost, int fcpPort, boolean isOffline) throws SQLException {
-	    this.isOffline = isOffline;
-		fcpClient = new FcpClient("jfms", fcpHost, fcpPort);
+		initialize(seedIdentities, fcpHost, fcpPort,
+				Integer.parseInt(Constants.DEFAULT_FCP_CONNECTIONS), isOffline);
+	}
+
+	public void initialize(List<String> seedIdentities, String fcpHost,
+			int fcpPort, int fcpConnections, boolean isOffline)
+		throws SQLException {
+
+		this.isOffline = isOffline;
+		fcpClient = new FcpClientPool("jfms", fcpHost, fcpPort, fcpConnections);
+		fcpClient.setRequestCacheFile(Paths.get(Constants.REQUEST_CACHE_FILE));
 		fcpClient.setStatusListener(this);
+		fcpClient.setRequestTimeout(null,
+				Duration.ofSeconds(Constants.TIMEOUT_DEFAULT));
+		for (RequestType type : RequestType.values()) {
+			setRequestTimeout(type,
+					Duration.ofSeconds(getDefaultRequestTimeout(type)));
+		}
 		if (store == null) {
 			store = new Store(Constants.DATABASE_URL);
 		}
 		store.initialize(seedIdentities);
+		setMessageListSubscriptionsEnabled(Boolean.parseBoolean(
+				Constants.DEFAULT_SUBSCRIBE_MESSAGELISTS));
+		setAdaptiveRequestLimitEnabled(Boolean.parseBoolean(
+				Constants.DEFAULT_ADAPTIVE_FCP_REQUESTS));
+		setMessageListPredictionEnabled(Boolean.parseBoolean(
+				Constants.DEFAULT_PREDICT_MESSAGELISTS));
 		boardManager.initialize();
 		identityManager.initialize();
 		trustManager.initialize();
 	}
 
+	/**
+	 * Sets the time after which downloads of the given type are cancelled.
+	 * Must be called after initialize().
+	 * @param timeout timeout, null or zero to disable
+	 */
+	public void setRequestTimeout(RequestType type, Duration timeout) {
+		fcpClient.setRequestTimeout(type.name(), timeout);
+	}
+
+	/**
+	 * Enables USK subscriptions for message lists.
+	 * If enabled, the node reports new message list editions and only
+	 * these are downloaded; otherwise editions are probed one by one.
+	 * Must be called after initialize().
+	 */
+	public synchronized void setMessageListSubscriptionsEnabled(
+			boolean enabled) {
+
+		if (enabled && messageListSubscriptions == null) {
+			messageListSubscriptions = new MessageListSubscriptions(fcpClient);
+		} else if (!enabled && messageListSubscriptions != null) {
+			messageListSubscriptions.retainAll(Collections.emptySet());
+			messageListSubscriptions = null;
+		}
+	}
+
+	/**
+	 * @return message list subscriptions, null if disabled
+	 */
+	public MessageListSubscriptions getMessageListSubscriptions() {
+		return messageListSubscriptions;
+	}
+
+	/**
+	 * Enables skipping message lists of identities that are not expected
+	 * to have published a new one, based on their posting history.
+	 * Not used while message list subscriptions are enabled.
+	 * Must be called after initialize().
+	 */
+	public synchronized void setMessageListPredictionEnabled(boolean enabled) {
+		if (enabled && messageListPredictor == null) {
+			final MessageListPredictor predictor = new MessageListPredictor();
+			final int maxMessageAge =
+				Integer.parseInt(Constants.DEFAULT_MAX_MESSAGE_AGE);
+			predictor.initialize(store.getPublicationCounts(
+					LocalDate.now(ZoneOffset.UTC).minusDays(maxMessageAge)));
+			messageListPredictor = predictor;
+		} else if (!enabled) {
+			messageListPredictor = null;
+		}
+	}
+
+	/**
+	 * @return message list predictor, null if disabled
+	 */
+	public MessageListPredictor getMessageListPredictor() {
+		return messageListPredictor;
+	}
+
+	/**
+	 * Sets the number of trust list editions of an identity that are
+	 * requested concurrently. A window of 1 requests one edition after
+	 * another.
+	 */
+	public void setTrustListProbeWindow(int window) {
+		trustListProbeWindow = Math.max(window, 1);
+	}
+
+	public int getTrustListProbeWindow() {
+		return trustListProbeWindow;
+	}
+
+	/**
+	 * Enables searching the last day an identity was published in
+	 * concurrent waves of days instead of one day after another.
+	 */
+	public void setIdentityDateProbeEnabled(boolean enabled) {
+		identityDateProbeEnabled = enabled;
+	}
+
+	public boolean isIdentityDateProbeEnabled() {
+		return identityDateProbeEnabled;
+	}
+
+	/**
+	 * Enables adapting the number of concurrent downloads to the latency
+	 * of the node, starting from the configured maximum. If disabled, the
+	 * configured maximum is used as fixed limit.
+	 */
+	public synchronized void setAdaptiveRequestLimitEnabled(boolean enabled) {
+		final int maxRequests =
+			Integer.parseInt(Constants.DEFAULT_MAX_FCP_REQUESTS);
+		if (requestLimit != null) {
+			requestLimit.setListener(null);
+		}
+		if (enabled) {
+			requestLimit = new AdaptiveLimit(maxRequests,
+					Constants.MIN_ADAPTIVE_FCP_REQUESTS,
+					Constants.MAX_ADAPTIVE_FCP_REQUESTS);
+		} else {
+			requestLimit = new AdaptiveLimit(maxRequests);
+		}
+
+		// requests of all threads share the download budget at the node;
+		// if it is used up, the FCP client sends by priority class
+		if (fcpClient != null) {
+			requestLimit.setListener(fcpClient::setMaxOutstandingRequests);
+		}
+
+		if (downloadThread != null) {
+			downloadThread.setRequestLimit(requestLimit);
+		}
+	}
+
+	/**
+	 * @return limit of concurrent downloads with the observed round-trip
+	 * time
+	 */
+	public AdaptiveLimit getRequestLimit() {
+		return requestLimit;
+	}
+
+	private static int getDefaultRequestTimeout(RequestType type) {
+		switch (type) {
+		case IDENTITY:
+			return Constants.TIMEOUT_IDENTITY;
+		case TRUST_LIST:
+			return Constants.TIMEOUT_TRUSTLIST;
+		case MESSAGE_LIST:
+			return Constants.TIMEOUT_MESSAGELIST;
+		case MESSAGE:
+			return Constants.TIMEOUT_MESSAGE;
+		case INTRODUCTION_PUZZLE:
+		case IDENTITY_INTRODUCTION:
+			return Constants.TIMEOUT_INTRODUCTION;
+		default:
+			return Constants.TIMEOUT_DEFAULT;
+		}
+	}
+
 	public void initialize() throws SQLException {
 		initialize(null, Constants.DEFAULT_FCP_HOST, Integer.parseInt(Constants.DEFAULT_FCP_PORT), false);
 	}
@@ -77,7 +252,10 @@ public class FmsManager implements FcpStatusListener {
 
 	@Override
 	public synchronized void statusChanged(FcpClient.Status status) {
-		if (status != FcpClient.Status.CONNECTED) {
+		// FcpClient reconnects by itself, only a final disconnect stops
+		// the tasks
+		if (status == FcpClient.Status.DISCONNECTED ||
+				status == FcpClient.Status.CONNECT_FAILED) {
 			LOG.log(Level.INFO, "FCP disconnected, stopping tasks...");
 			shutdown(false);
 			if (!isOffline) {
@@ -184,7 +362,10 @@ public class FmsManager implements FcpStatusListener {
 		pool = new ScheduledThreadPoolExecutor(4);
 		pool.setRemoveOnCancelPolicy(true);
 
-		DownloadThread downloadThread = new DownloadThread(fcpClient);
+		downloadThread = new DownloadThread(fcpClient);
+		if (requestLimit != null) {
+			downloadThread.setRequestLimit(requestLimit);
+		}
 		if (progressListener != null) {
 			downloadThread.setProgressListener(progressListener);
 		}
@@ -210,6 +391,11 @@ public class FmsManager implements FcpStatusListener {
 			fcpClient.shutdown();
 		}
 
+		// subscriptions end with the FCP connection
+		if (messageListSubscriptions != null) {
+			messageListSubscriptions.clear();
+		}
+
 		if (awaitTermination) {
 			try {
 				// blocks UI if termination fails; limit to 5 seconds
@@ -223,6 +409,7 @@ public class FmsManager implements FcpStatusListener {
 
 		pool = null;
 		insertThread = null;
+		downloadThread = null;
 		DownloadThread.resetIteration();
 	}
 }
@@ -1,6 +1,6 @@
 package jfms.fms;
 
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.time.LocalDate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -29,11 +29,16 @@ public class IdentityIntroductionRequest extends DownloadRequest {
 	}
 
 	@Override
-	public void finished(byte[] data) {
+	public RequestType getType() {
+		return RequestType.IDENTITY_INTRODUCTION;
+	}
+
+	@Override
+	public void finished(InputStream data) {
 		Store store = FmsManager.getInstance().getStore();
 		store.setPuzzleSolved(localIdentityId, date, index);
 
-		String ssk = parser.parse(new ByteArrayInputStream(data));
+		String ssk = parser.parse(data);
 		if (ssk != null) {
 			FmsManager.getInstance().getIdentityManager()
 				.addIdentityFromPuzzle(ssk);
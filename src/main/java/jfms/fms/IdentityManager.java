@@ -1,10 +1,11 @@
 package jfms.fms;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -12,7 +13,6 @@ import java.util.Objects;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
-import javax.imageio.ImageIO;
 
 import jfms.config.Constants;
 import jfms.store.Store;
@@ -157,25 +157,64 @@ public class IdentityManager {
 		return data;
 	}
 
-	public boolean saveAvatar(int identityId, String extension, byte[] data) {
-		boolean success = false;
-		try {
-			// try to load image
-			// if loading fails, assume it's not an image
-			if (ImageIO.read(new ByteArrayInputStream(data)) == null) {
-				LOG.log(Level.FINE, "avatar key does not contain a supported image");
-				return false;
-			}
+	/**
+	 * Stores an avatar. The extension of the file is derived from the
+	 * image data, not from the key.
+	 * @return extension of the stored avatar, null if the data does not
+	 * contain a supported image
+	 */
+	public String saveAvatar(int identityId, byte[] data) {
+		final String extension = Avatar.getImageType(data, data.length);
+		if (extension == null) {
+			LOG.log(Level.FINE, "avatar key does not contain a supported image");
+			return null;
+		}
 
+		try {
 			Files.createDirectories(Paths.get(Constants.AVATAR_DIR));
 			Path path = getAvatarPath(identityId, extension);
 			Files.write(path, data);
-			success = true;
 		} catch (IOException e) {
 			LOG.log(Level.WARNING, "Failed to save avatar", e);
+			return null;
 		}
 
-		return success;
+		return extension;
+	}
+
+	/**
+	 * Moves a downloaded avatar into place.
+	 * The file must be located in the avatar directory. It is deleted if
+	 * it does not contain a supported image.
+	 * @return extension of the stored avatar, derived from the image
+	 * data, null on failure
+	 */
+	public String saveAvatar(int identityId, Path file) {
+		try {
+			final byte[] header = new byte[Avatar.IMAGE_HEADER_LENGTH];
+			int length = 0;
+			try (InputStream in = Files.newInputStream(file)) {
+				int bytesRead;
+				while (length < header.length && (bytesRead =
+							in.read(header, length, header.length - length)) >= 0) {
+					length += bytesRead;
+				}
+			}
+
+			final String extension = Avatar.getImageType(header, length);
+			if (extension == null) {
+				LOG.log(Level.FINE, "avatar key does not contain a supported image");
+				Files.delete(file);
+				return null;
+			}
+
+			Path path = getAvatarPath(identityId, extension);
+			Files.move(file, path, StandardCopyOption.REPLACE_EXISTING);
+			return extension;
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Failed to save avatar", e);
+			return null;
+		}
 	}
 
 	public void deleteAvatar(int identityId, String extension) {
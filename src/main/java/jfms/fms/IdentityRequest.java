@@ -1,6 +1,10 @@
 package jfms.fms;
 
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,6 +23,10 @@ public class IdentityRequest extends DownloadRequest {
 	private final MessageReferenceList messageList;
 	private final RequestTracker requestTracker;
 	private final MessageRequest messageRequest;
+	private final DateProbe probe;
+	private final List<RequestTracker> parallelTrackers;
+	// parsed document, kept while the day is held back by the probe
+	private Identity identity;
 
 	public enum SuccessAction {
 		NONE,
@@ -46,6 +54,17 @@ public class IdentityRequest extends DownloadRequest {
 			MessageReferenceList messageList,
 			MessageRequest messageRequest) {
 
+		this(id, identityId, ssk, requestTracker, successAction, messageList,
+				messageRequest, createProbe(requestTracker, successAction),
+				Collections.emptyList());
+	}
+
+	private IdentityRequest(String id, int identityId, String ssk,
+			RequestTracker requestTracker, SuccessAction successAction,
+			MessageReferenceList messageList,
+			MessageRequest messageRequest, DateProbe probe,
+			List<RequestTracker> parallelTrackers) {
+
 		super(id, Identity.getIdentityKey(ssk, requestTracker.getDate(),
 				requestTracker.getIndex()), Constants.TTL_IDENTITY);
 
@@ -56,12 +75,46 @@ public class IdentityRequest extends DownloadRequest {
 		this.successAction = successAction;
 		this.messageList = messageList;
 		this.messageRequest = messageRequest;
+		this.probe = probe;
+		this.parallelTrackers = parallelTrackers;
+
+		if (probe != null) {
+			probe.add(probe.getOffset(requestTracker), this);
+		}
+	}
+
+	private static DateProbe createProbe(RequestTracker requestTracker,
+			SuccessAction successAction) {
+		if (!FmsManager.getInstance().isIdentityDateProbeEnabled() ||
+				successAction == SuccessAction.REQUEST_MESSAGE ||
+				requestTracker.getFastMessageCheckEnabled()) {
+			return null;
+		}
+
+		return new DateProbe(requestTracker);
 	}
 
 	@Override
-	public void finished(byte[] data) {
-		Store store = FmsManager.getInstance().getStore();
-		Identity identity = identityParser.parse(new ByteArrayInputStream(data));
+	public boolean hasParallelRequests() {
+		return !parallelTrackers.isEmpty();
+	}
+
+	@Override
+	public List<DownloadRequest> createParallelRequests() {
+		final List<DownloadRequest> requests =
+			new ArrayList<>(parallelTrackers.size());
+		for (RequestTracker tracker : parallelTrackers) {
+			requests.add(new IdentityRequest(null, identityId, ssk, tracker,
+					successAction, messageList, messageRequest, probe,
+					Collections.emptyList()));
+		}
+
+		return requests;
+	}
+
+	@Override
+	public void finished(InputStream data) {
+		Identity identity = identityParser.parse(data);
 		if (identity == null) {
 			error(Constants.CODE_PARSE_FAILED);
 			return;
@@ -71,16 +124,44 @@ public class IdentityRequest extends DownloadRequest {
 		LOG.log(Level.FINE, "retrieved Identity of {0}",
 				identity.getFullName());
 
+		if (probe != null) {
+			this.identity = identity;
+			final boolean newest = probe.found(
+					probe.getOffset(requestTracker), this);
+			setCancelledRequests(probe.takeOlderRequests());
+			if (!newest) {
+				LOG.log(Level.FINEST, "Holding back or skipping identity {0}",
+						getKey());
+				return;
+			}
+			this.identity = null;
+		}
+
+		setChainedRequest(identityFound(identity, getNextId()));
+	}
+
+	/**
+	 * Stores the identity and creates the request of the success action.
+	 * @param nextId ID of the chained request
+	 * @return chained request, null if none
+	 */
+	private DownloadRequest identityFound(Identity identity, String nextId) {
+		LocalDate failDate = requestTracker.getFailDate();
+		if (probe != null) {
+			// all more recent days have failed by now
+			failDate = probe.getFailDate(probe.getOffset(requestTracker));
+		}
+
 		IdentityManager identityManager
 				= FmsManager.getInstance().getIdentityManager();
 		identityManager.updateIdentity(identityId, identity);
 
+		Store store = FmsManager.getInstance().getStore();
 		store.updateRequestHistory(identityId, RequestType.IDENTITY,
 				requestTracker.getDate(), requestTracker.getIndex());
-		if (requestTracker.getFailDate() != null) {
-			LOG.log(Level.FINEST, "saving fail date {0}",
-					requestTracker.getFailDate());
-			store.updateLastFailDate(identityId, requestTracker.getFailDate());
+		if (failDate != null) {
+			LOG.log(Level.FINEST, "saving fail date {0}", failDate);
+			store.updateLastFailDate(identityId, failDate);
 		}
 
 		switch (successAction) {
@@ -98,9 +179,9 @@ public class IdentityRequest extends DownloadRequest {
 
 			if (trustListTracker != null) {
 				trustListTracker = trustListTracker
-					.setFailDate(requestTracker.getFailDate());
-				setChainedRequest(new TrustListRequest(getNextId(),
-							identityId, ssk, trustListTracker));
+					.setFailDate(failDate);
+				return new TrustListRequest(nextId, identityId, ssk,
+						trustListTracker);
 			}
 			break;
 		case REQUEST_MESSAGELIST:
@@ -110,16 +191,31 @@ public class IdentityRequest extends DownloadRequest {
 					Constants.MAX_MESSAGELIST_INDEX);
 			if (messageListTracker != null) {
 				messageListTracker = messageListTracker
-					.setFailDate(requestTracker.getFailDate());
-				setChainedRequest(new MessageListRequest(getNextId(),
-						identityId, ssk,
-						messageList, messageListTracker));
+					.setFailDate(failDate);
+				return new MessageListRequest(nextId, identityId, ssk,
+						messageList, messageListTracker);
 			}
 			break;
 		case REQUEST_MESSAGE:
-			messageRequest.setId(getNextId());
-			setChainedRequest(messageRequest);
-			break;
+			messageRequest.setId(nextId);
+			return messageRequest;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Continues with a day that was found while this more recent day was
+	 * still outstanding.
+	 */
+	private void resumeDeferred() {
+		final IdentityRequest deferred = (IdentityRequest)probe.takeDeferred();
+		if (deferred != null) {
+			LOG.log(Level.FINEST, "continuing with identity {0}",
+					deferred.getKey());
+			setChainedRequest(deferred.identityFound(deferred.identity,
+						getNextId()));
+			deferred.identity = null;
 		}
 	}
 
@@ -142,7 +238,12 @@ public class IdentityRequest extends DownloadRequest {
 			return;
 		}
 
-		if (code == Constants.CODE_RECENTLY_TRIED) {
+		if (code == Constants.CODE_RECENTLY_TRIED || isTransientError(code)) {
+			// end the search without remembering the day as failed
+			if (probe != null) {
+				probe.stop(probe.getOffset(requestTracker));
+				resumeDeferred();
+			}
 			return;
 		}
 
@@ -153,6 +254,11 @@ public class IdentityRequest extends DownloadRequest {
 
 		requestTracker.setFail();
 
+		if (probe != null) {
+			probeEarlierDays();
+			return;
+		}
+
 		RequestTracker newTracker = requestTracker.minusDays(1);
 		if (newTracker != null) {
 			LOG.log(Level.FINEST, "retrying with date {0}", newTracker.getDate());
@@ -169,6 +275,44 @@ public class IdentityRequest extends DownloadRequest {
 		}
 	}
 
+	/**
+	 * Requests the next wave of days once all days of the current wave
+	 * have failed.
+	 */
+	private void probeEarlierDays() {
+		final List<RequestTracker> trackers = probe.missing(
+				probe.getOffset(requestTracker), requestTracker.getFailDate());
+		if (!trackers.isEmpty()) {
+			LOG.log(Level.FINEST, "retrying with dates {0} to {1}",
+					new Object[]{trackers.get(0).getDate(),
+					trackers.get(trackers.size() - 1).getDate()});
+			setChainedRequest(new IdentityRequest(getNextId(),
+					identityId, ssk, trackers.get(0), successAction,
+					messageList, null, probe,
+					new ArrayList<>(trackers.subList(1, trackers.size()))));
+		} else if (!probe.isExhausted()) {
+			resumeDeferred();
+		} else {
+			// mark day as permanently failed
+			final LocalDate failDate = probe.getFailDate(Long.MAX_VALUE);
+			if (failDate != null) {
+				LOG.log(Level.FINEST, "saving fail date {0}", failDate);
+				Store store = FmsManager.getInstance().getStore();
+				store.updateLastFailDate(identityId, failDate);
+			}
+		}
+	}
+
+	@Override
+	public RequestType getType() {
+		return RequestType.IDENTITY;
+	}
+
+	@Override
+	public int getIdentityId() {
+		return identityId;
+	}
+
 	@Override
 	public int isSuccessful() {
 		return requestTracker.getSuccessCount();
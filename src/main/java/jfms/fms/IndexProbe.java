@@ -0,0 +1,124 @@
+package jfms.fms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Speculative probing of the editions of a document for one day.
+ * Editions are inserted with consecutive indices, so instead of requesting
+ * one index after another, a window of indices is requested at once.
+ * Every index that is found requests the next index after the window.
+ * The first missing index ends probing: requests for higher indices that
+ * are still outstanding are no longer needed and can be cancelled.
+ */
+class IndexProbe {
+	private final int firstIndex;
+	private final int maxIndex;
+	private final int window;
+	private final Map<Integer, DownloadRequest> outstanding = new HashMap<>();
+	private boolean started;
+	private int nextIndex;
+	private int missingIndex = Integer.MAX_VALUE;
+	private int highestIndex = -1;
+
+	/**
+	 * @param firstIndex index of the first request
+	 * @param maxIndex highest index to probe
+	 * @param window number of indices requested concurrently
+	 */
+	IndexProbe(int firstIndex, int maxIndex, int window) {
+		this.firstIndex = firstIndex;
+		this.maxIndex = maxIndex;
+		this.window = window;
+		this.nextIndex = firstIndex + 1;
+	}
+
+	/**
+	 * Registers the request for an index.
+	 */
+	synchronized void add(int index, DownloadRequest request) {
+		outstanding.put(index, request);
+	}
+
+	/**
+	 * Starts the window. Only the first call returns indices.
+	 * @return indices to request in addition to the first index
+	 */
+	synchronized List<Integer> start() {
+		if (started) {
+			return Collections.emptyList();
+		}
+		started = true;
+
+		final List<Integer> indices = new ArrayList<>(window - 1);
+		while (nextIndex < firstIndex + window && nextIndex <= maxIndex &&
+				nextIndex < missingIndex) {
+			indices.add(nextIndex++);
+		}
+
+		return indices;
+	}
+
+	/**
+	 * Called when the index was found.
+	 * @return true if it is the highest index found so far
+	 */
+	synchronized boolean found(int index) {
+		outstanding.remove(index);
+		if (index > highestIndex) {
+			highestIndex = index;
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Called when the index was not found.
+	 * @return outstanding requests for higher indices
+	 */
+	synchronized List<DownloadRequest> missing(int index) {
+		outstanding.remove(index);
+		missingIndex = Math.min(missingIndex, index);
+
+		final List<DownloadRequest> cancelled = new ArrayList<>();
+		final Iterator<Map.Entry<Integer, DownloadRequest>> iter =
+			outstanding.entrySet().iterator();
+		while (iter.hasNext()) {
+			final Map.Entry<Integer, DownloadRequest> e = iter.next();
+			if (e.getKey() > missingIndex) {
+				cancelled.add(e.getValue());
+				iter.remove();
+			}
+		}
+
+		return cancelled;
+	}
+
+	/**
+	 * Called when the index could not be requested, e.g. after a
+	 * timeout. Unlike {@link #missing}, probing of higher indices goes on.
+	 */
+	synchronized void dropped(int index) {
+		outstanding.remove(index);
+	}
+
+	/**
+	 * @return next index to request, -1 if probing is done
+	 */
+	synchronized int nextIndex() {
+		if (nextIndex > maxIndex || nextIndex >= missingIndex) {
+			return -1;
+		}
+
+		return nextIndex++;
+	}
+
+	synchronized int getHighestIndex() {
+		return highestIndex;
+	}
+}
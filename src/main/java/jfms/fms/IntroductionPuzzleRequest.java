@@ -1,6 +1,6 @@
 package jfms.fms;
 
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,7 +25,12 @@ public class IntroductionPuzzleRequest extends DownloadRequest {
 	}
 
 	@Override
-	public void finished(byte[] data) {
+	public RequestType getType() {
+		return RequestType.INTRODUCTION_PUZZLE;
+	}
+
+	@Override
+	public void finished(InputStream data) {
 		IntroductionPuzzle puzzle = parsePuzzle(data);
 		if (puzzle != null) {
 			LOG.log(Level.FINEST, "Found puzzle with type {0}",
@@ -56,10 +61,10 @@ public class IntroductionPuzzleRequest extends DownloadRequest {
 		return ssk;
 	}
 
-	private IntroductionPuzzle parsePuzzle(byte[] data) {
+	private IntroductionPuzzle parsePuzzle(InputStream data) {
 		IntroductionPuzzleParser parser = new IntroductionPuzzleParser();
 		IntroductionPuzzle puzzle =
-			parser.parse(new ByteArrayInputStream(data));
+			parser.parse(data);
 		if (puzzle == null) {
 			return null;
 		}
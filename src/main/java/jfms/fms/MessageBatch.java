@@ -0,0 +1,36 @@
+package jfms.fms;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Messages of one message list that are requested concurrently.
+ * When the last message is done, the message list is marked as processed
+ * and the next edition is requested.
+ */
+public class MessageBatch {
+	private final MessageListRequest messageListRequest;
+	private final AtomicInteger pendingCount;
+
+	public MessageBatch(MessageListRequest messageListRequest, int size) {
+		this.messageListRequest = messageListRequest;
+		this.pendingCount = new AtomicInteger(size);
+	}
+
+	/**
+	 * Called once for every message, whether it was retrieved or not.
+	 * @param nextId ID for the next message list request
+	 * @return request for the next message list if this was the last
+	 * message, null otherwise
+	 */
+	public DownloadRequest messageDone(String nextId) {
+		if (pendingCount.decrementAndGet() > 0) {
+			return null;
+		}
+
+		return messageListRequest.createNextRequest(nextId);
+	}
+
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+}
@@ -0,0 +1,177 @@
+package jfms.fms;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jfms.config.Constants;
+
+/**
+ * Predicts when identities publish new message lists.
+ * For every identity the mean gap between publications is learned, first
+ * from the number of messages and message lists per day in the store,
+ * then from the outcome of polls. A message list is only requested if a new edition
+ * is likely: identities that post frequently are polled on every download
+ * cycle, identities with long gaps less often. Every poll without a new
+ * edition doubles the interval, up to a maximum.
+ */
+public class MessageListPredictor {
+	private static final Logger LOG = Logger.getLogger(MessageListPredictor.class.getName());
+
+	// fraction of the mean gap to wait between polls
+	private static final double POLL_FRACTION = 0.25;
+	private static final double GAP_WEIGHT = 0.25;
+	private static final int MAX_BACKOFF_SHIFT = 16;
+	private static final long SECONDS_PER_DAY = 86400;
+
+	private final Map<Integer, Cadence> cadences = new ConcurrentHashMap<>();
+	private final long minInterval;
+	private final long maxInterval;
+
+	private static class Cadence {
+		// mean gap between publications in seconds, -1 if unknown
+		private double meanGap = -1;
+		// epoch seconds, -1 if unknown
+		private long lastPublication = -1;
+		private long lastPoll = -1;
+		private int misses;
+	}
+
+	public MessageListPredictor() {
+		this(Duration.ofSeconds(Constants.MESSAGELIST_POLL_MIN_INTERVAL),
+				Duration.ofSeconds(Constants.MESSAGELIST_POLL_MAX_INTERVAL));
+	}
+
+	public MessageListPredictor(Duration minInterval, Duration maxInterval) {
+		this.minInterval = minInterval.getSeconds();
+		this.maxInterval = maxInterval.getSeconds();
+	}
+
+	/**
+	 * Learns the publication cadence from previous publications.
+	 * The editions of a day are assumed to be spread over the day, so an
+	 * identity posting several times a day gets a gap of a few hours,
+	 * not a day. Identities that already have a cadence are not changed.
+	 * @param publicationCounts number of editions per day
+	 */
+	public void initialize(
+			Map<Integer, SortedMap<LocalDate, Integer>> publicationCounts) {
+
+		for (Map.Entry<Integer, SortedMap<LocalDate, Integer>> e :
+				publicationCounts.entrySet()) {
+			final SortedMap<LocalDate, Integer> counts = e.getValue();
+			if (counts.isEmpty()) {
+				continue;
+			}
+
+			int editions = 0;
+			for (int count : counts.values()) {
+				editions += count;
+			}
+
+			final Cadence cadence = new Cadence();
+			final long first = toEpochSecond(counts.firstKey());
+			final long last = toEpochSecond(counts.lastKey());
+			if (editions > 1) {
+				final long period = last - first + SECONDS_PER_DAY;
+				cadence.meanGap = (double)period / editions;
+			}
+			cadence.lastPublication = last;
+			cadences.putIfAbsent(e.getKey(), cadence);
+		}
+
+		LOG.log(Level.FINE, "Learned publication cadence of {0} identities",
+				publicationCounts.size());
+	}
+
+	/**
+	 * @return true if a new message list of the identity is likely
+	 */
+	public boolean shouldPoll(int identityId, Instant now) {
+		final Cadence cadence = cadences.get(identityId);
+		if (cadence == null) {
+			return true;
+		}
+
+		synchronized (cadence) {
+			if (cadence.lastPoll < 0) {
+				return true;
+			}
+
+			return now.getEpochSecond() - cadence.lastPoll >=
+				getPollInterval(cadence);
+		}
+	}
+
+	/**
+	 * @return time between polls of the identity
+	 */
+	public Duration getPollInterval(int identityId) {
+		final Cadence cadence = cadences.get(identityId);
+		if (cadence == null) {
+			return Duration.ZERO;
+		}
+
+		synchronized (cadence) {
+			return Duration.ofSeconds(getPollInterval(cadence));
+		}
+	}
+
+	/**
+	 * Updates the cadence with the result of a poll.
+	 * @param newEdition whether a new message list was found
+	 */
+	public void pollCompleted(int identityId, boolean newEdition,
+			Instant now) {
+
+		final Cadence cadence = cadences.computeIfAbsent(identityId,
+				k -> new Cadence());
+		final long time = now.getEpochSecond();
+
+		synchronized (cadence) {
+			cadence.lastPoll = time;
+			if (!newEdition) {
+				cadence.misses++;
+				return;
+			}
+
+			cadence.misses = 0;
+			if (cadence.lastPublication >= 0) {
+				final long gap = Math.max(0, time - cadence.lastPublication);
+				if (cadence.meanGap < 0) {
+					cadence.meanGap = gap;
+				} else {
+					cadence.meanGap += GAP_WEIGHT * (gap - cadence.meanGap);
+				}
+			}
+			cadence.lastPublication = time;
+		}
+	}
+
+	public void clear() {
+		cadences.clear();
+	}
+
+	private long getPollInterval(Cadence cadence) {
+		long interval = minInterval;
+		if (cadence.meanGap >= 0) {
+			interval = Math.max(minInterval,
+					(long)(cadence.meanGap * POLL_FRACTION));
+		}
+
+		final int shift = Math.min(cadence.misses, MAX_BACKOFF_SHIFT);
+		interval = Math.max(interval, 1) << shift;
+
+		return Math.min(interval, maxInterval);
+	}
+
+	private static long toEpochSecond(LocalDate date) {
+		return date.atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+	}
+}
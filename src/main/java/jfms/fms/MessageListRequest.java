@@ -1,6 +1,7 @@
 package jfms.fms;
 
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentNavigableMap;
@@ -41,11 +42,11 @@ public class MessageListRequest extends DownloadRequest {
 	}
 
 	@Override
-	public void finished(byte[] data) {
+	public void finished(InputStream data) {
 		requestTracker.setSuccess();
 
 		MessageListParser messageListParser = new MessageListParser();
-		List<MessageReference> xmlMessageList = messageListParser.parse(new ByteArrayInputStream(data));
+		List<MessageReference> xmlMessageList = messageListParser.parse(data);
 
 		IdentityManager identityManager = FmsManager.getInstance().getIdentityManager();
 		Identity id = identityManager.getIdentity(identityId);
@@ -57,6 +58,8 @@ public class MessageListRequest extends DownloadRequest {
 		TrustManager trustManager = FmsManager.getInstance().getTrustManager();
 		boolean includeNullPeerTrust = true;
 
+		final List<MessageReference> knownMessages =
+			new ArrayList<>(xmlMessageList.size());
 		for (MessageReference m : xmlMessageList) {
 			final String msgSsk = m.getSsk();
 			if (msgSsk == null) {
@@ -77,53 +80,69 @@ public class MessageListRequest extends DownloadRequest {
 				m.setIdentityId(msgIdentityId);
 			}
 
-			messageList.addMessageToDownload(m);
+			knownMessages.add(m);
 		}
 
-		messageList.cleanup();
-		if (messageList.isEmpty()) {
-			if (requestTracker.getFastMessageCheckEnabled()) {
-				LOG.log(Level.FINEST, "fast message check mode: skipping further requests");
-				return;
+		final List<MessageReference> messages =
+			messageList.addMessagesToDownload(knownMessages);
+		if (messages.isEmpty()) {
+			final DownloadRequest nextRequest = createNextRequest(getNextId());
+			if (nextRequest != null) {
+				setChainedRequest(nextRequest);
 			}
-			final Store store = FmsManager.getInstance().getStore();
-			store.updateRequestHistory(identityId,
-					RequestType.MESSAGE_LIST,
-					requestTracker.getDate(),
-					requestTracker.getIndex());
-
-			RequestTracker nextTracker =
-				requestTracker.incrementIndex();
-			if (nextTracker != null)  {
-				setChainedRequest(new MessageListRequest(getNextId(),
-							identityId,
-							ssk,
-							messageList,
-							nextTracker));
-			}
-		} else {
-			MessageReference msg = messageList.remove();
-			MessageRequest msgRequest = new MessageRequest(null,
-					identityId, ssk,
-					msg,
-					messageList, requestTracker);
+			return;
+		}
+
+		// request all messages at once, in priority order; the next
+		// message list is requested after the last message
+		final MessageBatch batch = new MessageBatch(this, messages.size());
+		final List<DownloadRequest> requests = new ArrayList<>(messages.size());
+		for (MessageReference msg : messages) {
+			final long rank = messageList.getRank(msg);
+			final MessageRequest msgRequest = new MessageRequest(null, msg,
+					batch);
+			msgRequest.setRank(rank);
 
 			// check if we should update identity first
 			RequestTracker msgTracker = RequestTracker.createSingleRequest(
 					RequestType.IDENTITY, msg.getIdentityId(), msg.getDate());
 			if (msgTracker == null) {
-				msgRequest.setId(getNextId());
-				setChainedRequest(msgRequest);
+				requests.add(msgRequest);
 			} else {
-				// propagate success from MessageListRequests to chained
-				// MessageRequests (for statistics only)
-				msgTracker.setSuccess();
-				setChainedRequest(new IdentityRequest(getNextId(),
-					msg.getIdentityId(), msg.getSsk(), msgTracker,
+				final IdentityRequest identityRequest = new IdentityRequest(
+					null, msg.getIdentityId(), msg.getSsk(), msgTracker,
 					IdentityRequest.SuccessAction.REQUEST_MESSAGE,
-					msgRequest));
+					msgRequest);
+				identityRequest.setRank(rank);
+				requests.add(identityRequest);
 			}
 		}
+		setFanOutRequests(requests);
+	}
+
+	/**
+	 * Marks this message list as processed.
+	 * @return request for the next edition, null if there is none
+	 */
+	DownloadRequest createNextRequest(String nextId) {
+		if (requestTracker.getFastMessageCheckEnabled()) {
+			LOG.log(Level.FINEST, "fast message check mode: skipping further requests");
+			return null;
+		}
+
+		final Store store = FmsManager.getInstance().getStore();
+		store.updateRequestHistory(identityId,
+				RequestType.MESSAGE_LIST,
+				requestTracker.getDate(),
+				requestTracker.getIndex());
+
+		final RequestTracker nextTracker = requestTracker.incrementIndex();
+		if (nextTracker == null) {
+			return null;
+		}
+
+		return new MessageListRequest(nextId, identityId, ssk, messageList,
+				nextTracker);
 	}
 
 	@Override
@@ -143,6 +162,16 @@ public class MessageListRequest extends DownloadRequest {
 		return true;
 	}
 
+	@Override
+	public RequestType getType() {
+		return RequestType.MESSAGE_LIST;
+	}
+
+	@Override
+	public int getIdentityId() {
+		return identityId;
+	}
+
 	@Override
 	public int isSuccessful() {
 		return requestTracker.getSuccessCount();
@@ -0,0 +1,138 @@
+package jfms.fms;
+
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jfms.fcp.FcpClient;
+import jfms.fcp.FcpSubscriptionListener;
+import jfms.util.RequestID;
+
+/**
+ * USK subscriptions for the message lists of trusted identities.
+ * Instead of probing one edition after the other, the node is asked to
+ * report new editions of the message list of the current day. Message
+ * lists are then only requested if a new edition is known to exist.
+ * A subscription is tied to a day and replaced on day change.
+ */
+public class MessageListSubscriptions implements FcpSubscriptionListener {
+	private static final Logger LOG = Logger.getLogger(MessageListSubscriptions.class.getName());
+
+	private final FcpClient fcpClient;
+	private final RequestID requestID = new RequestID("subscription-");
+	private final Map<Integer, Subscription> subscriptions =
+		new ConcurrentHashMap<>();
+	private final Map<String, Subscription> subscriptionsByFcpId =
+		new ConcurrentHashMap<>();
+
+	private static class Subscription {
+		private final String fcpIdentifier;
+		private final int identityId;
+		private final LocalDate date;
+		private volatile int edition = -1;
+
+		public Subscription(String fcpIdentifier, int identityId,
+				LocalDate date) {
+			this.fcpIdentifier = fcpIdentifier;
+			this.identityId = identityId;
+			this.date = date;
+		}
+	}
+
+	public MessageListSubscriptions(FcpClient fcpClient) {
+		this.fcpClient = fcpClient;
+	}
+
+	/**
+	 * Subscribes to the message list of the identity for the given day.
+	 * An existing subscription for another day is cancelled.
+	 */
+	public void subscribe(int identityId, String ssk, LocalDate date) {
+		final Subscription existing = subscriptions.get(identityId);
+		if (existing != null) {
+			if (existing.date.equals(date)) {
+				return;
+			}
+			unsubscribe(existing);
+		}
+
+		final Subscription subscription = new Subscription(
+				requestID.getNext(), identityId, date);
+		subscriptions.put(identityId, subscription);
+		subscriptionsByFcpId.put(subscription.fcpIdentifier, subscription);
+
+		LOG.log(Level.FINEST, "Subscribing to message list of ID {0}",
+				identityId);
+		fcpClient.subscribeUSK(subscription.fcpIdentifier,
+				Identity.getMessageListKey(ssk, date, 0, false), this);
+	}
+
+	public boolean isSubscribed(int identityId, LocalDate date) {
+		final Subscription subscription = subscriptions.get(identityId);
+		return subscription != null && subscription.date.equals(date);
+	}
+
+	/**
+	 * @return latest edition reported by the node for the given day,
+	 * -1 if none was reported
+	 */
+	public int getLatestEdition(int identityId, LocalDate date) {
+		final Subscription subscription = subscriptions.get(identityId);
+		if (subscription == null || !subscription.date.equals(date)) {
+			return -1;
+		}
+
+		return subscription.edition;
+	}
+
+	/**
+	 * Cancels subscriptions of identities that are not in the set.
+	 */
+	public void retainAll(Set<Integer> identityIds) {
+		for (Subscription s : subscriptions.values()) {
+			if (!identityIds.contains(s.identityId)) {
+				unsubscribe(s);
+			}
+		}
+	}
+
+	/**
+	 * Forgets all subscriptions without notifying the node.
+	 * Used when the FCP connection was closed.
+	 */
+	public void clear() {
+		subscriptions.clear();
+		subscriptionsByFcpId.clear();
+	}
+
+	public int size() {
+		return subscriptions.size();
+	}
+
+	@Override
+	public void editionFound(String fcpIdentifier, String uri, long edition) {
+		final Subscription subscription =
+			subscriptionsByFcpId.get(fcpIdentifier);
+		if (subscription == null) {
+			return;
+		}
+
+		LOG.log(Level.FINEST, "Found message list edition {0} of ID {1}",
+				new Object[]{edition, subscription.identityId});
+		synchronized (subscription) {
+			if (edition > subscription.edition) {
+				subscription.edition = (int)Math.min(edition,
+						Integer.MAX_VALUE);
+			}
+		}
+	}
+
+	private void unsubscribe(Subscription subscription) {
+		subscriptions.remove(subscription.identityId, subscription);
+		subscriptionsByFcpId.remove(subscription.fcpIdentifier);
+		fcpClient.unsubscribeUSK(subscription.fcpIdentifier);
+	}
+}
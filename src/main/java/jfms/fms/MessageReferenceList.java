@@ -2,9 +2,12 @@ package jfms.fms;
 
 import java.time.LocalDate;
 import java.time.ZoneOffset;
-import java.util.ConcurrentModificationException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -12,18 +15,114 @@ import java.util.logging.Logger;
 import jfms.config.Constants;
 import jfms.store.Store;
 
+/**
+ * Messages found in message lists, ranked by download priority.
+ * Messages on subscribed boards come first, then newer messages, then
+ * messages of authors with higher peer message trust.
+ */
 public class MessageReferenceList {
 	private static final Logger LOG = Logger.getLogger(MessageReferenceList.class.getName());
 
-	private final Set<MessageReference> messageReferences = new HashSet<>();
+	private static final int MAX_RANK_AGE = 0xffffff;
+
 	private final Set<MessageReference> seenReferences = new HashSet<>();
+	private Set<String> subscribedBoards = Collections.emptySet();
+	private long sequence;
+
+	private static class Entry implements Comparable<Entry> {
+		private final MessageReference message;
+		private final long rank;
+		private final long sequence;
+
+		private Entry(MessageReference message, long rank, long sequence) {
+			this.message = message;
+			this.rank = rank;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry e) {
+			final int cmp = Long.compare(rank, e.rank);
+			if (cmp != 0) {
+				return cmp;
+			}
+			return Long.compare(sequence, e.sequence);
+		}
+	}
+
+	/**
+	 * Computes the download priority of a message.
+	 * @param subscribed whether the message is posted to a subscribed board
+	 * @param age age of the message in days
+	 * @param peerMessageTrust peer message trust of the author, -1 if none
+	 * @return rank of the message, lower ranks are downloaded first
+	 */
+	public static long getRank(boolean subscribed, long age,
+			int peerMessageTrust) {
+		long rank = subscribed ? 0 : 1;
+		rank = (rank << 24) | Math.min(Math.max(age, 0), MAX_RANK_AGE);
+
+		int trust = peerMessageTrust;
+		if (trust < 0) {
+			trust = Integer.parseInt(Constants.DEFAULT_MIN_PEER_MESSAGE_TRUST);
+		}
+		trust = Math.min(Math.max(trust, 0), 100);
+
+		return (rank << 8) | (100 - trust);
+	}
+
+	/**
+	 * Sets the boards whose messages are downloaded first.
+	 */
+	public synchronized void setSubscribedBoards(Collection<String> boards) {
+		subscribedBoards = new HashSet<>(boards);
+	}
+
+	/**
+	 * Adds the messages of a single message list. Messages that were already added, are not trusted, too
+	 * old or already stored are skipped.
+	 * @return new messages in priority order
+	 */
+	public List<MessageReference> addMessagesToDownload(
+			Collection<MessageReference> messages) {
+
+		final List<Entry> entries = new ArrayList<>(messages.size());
+		synchronized (this) {
+			for (MessageReference m : messages) {
+				final Entry entry = createEntry(m);
+				if (entry != null) {
+					entries.add(entry);
+				}
+			}
+		}
 
-	public synchronized void addMessageToDownload(MessageReference message) {
+		final Store store = FmsManager.getInstance().getStore();
+		final LocalDate oldestMessageDate = getOldestMessageDate();
+		final List<MessageReference> newMessages =
+			new ArrayList<>(entries.size());
+		Collections.sort(entries);
+		for (Entry e : entries) {
+			if (!isObsolete(e.message, oldestMessageDate, store)) {
+				newMessages.add(e.message);
+			}
+		}
+
+		LOG.log(Level.FINER, "Found {0} messages: {1} new", new Object[]{
+				messages.size(), newMessages.size()});
+
+		return newMessages;
+	}
+
+	/**
+	 * @return entry for the message, null if it was already added or is
+	 * not trusted
+	 */
+	private Entry createEntry(MessageReference message) {
 		// Clear the list of boards to make sure we won't have duplicates
-		// in messageReferences that differ only in boards
+		// in seenReferences that differ only in boards
 		final MessageReference strippedRef = message.strippedCopy();
 		if (!seenReferences.add(strippedRef)) {
-			return;
+			return null;
 		}
 
 		TrustManager trustManager = FmsManager.getInstance().getTrustManager();
@@ -44,70 +143,56 @@ public class MessageReferenceList {
 				peerMessageTrust >= Integer.parseInt(Constants.DEFAULT_MIN_PEER_MESSAGE_TRUST);
 		}
 
-		if (isTrusted) {
-			messageReferences.add(message);
+		if (!isTrusted) {
+			return null;
 		}
-	}
-
-	public void clear() {
-		messageReferences.clear();
-		seenReferences.clear();
-	}
 
-	public int size() {
-		return messageReferences.size();
+		return new Entry(message, getRank(message, peerMessageTrust),
+				sequence++);
 	}
 
-	public boolean isEmpty() {
-		return messageReferences.isEmpty();
+	/**
+	 * @return rank of the message, lower ranks are downloaded first
+	 */
+	public long getRank(MessageReference message) {
+		final TrustManager trustManager =
+			FmsManager.getInstance().getTrustManager();
+		return getRank(message,
+				trustManager.getPeerMessageTrust(message.getIdentityId()));
 	}
 
-	public void cleanup() {
-		Store store = FmsManager.getInstance().getStore();
-
-		LocalDate oldestMessageDate = LocalDate.now(ZoneOffset.UTC)
-			.minusDays(Integer.parseInt(Constants.DEFAULT_MAX_MESSAGE_AGE));
-
-		int oldCount = 0;
-		int existsCount = 0;
-		int totalCount = messageReferences.size();
-
-		Iterator<MessageReference> iter = messageReferences.iterator();
-		while (iter.hasNext()) {
-			MessageReference msg = iter.next();
-
-			boolean remove = false;
-			if (msg.getDate().compareTo(oldestMessageDate) < 0) {
-				oldCount++;
-				remove = true;
+	private synchronized long getRank(MessageReference message,
+			int peerMessageTrust) {
+		boolean subscribed = false;
+		final List<String> boards = message.getBoards();
+		if (boards != null) {
+			for (String board : boards) {
+				if (subscribedBoards.contains(board)) {
+					subscribed = true;
+					break;
+				}
 			}
+		}
 
-			if (!remove && store.messageExists(
-						msg.getIdentityId(),
-						msg.getDate(),
-						msg.getIndex())) {
-				existsCount++;
-				remove = true;
-			}
+		final long age = ChronoUnit.DAYS.between(message.getDate(),
+				LocalDate.now(ZoneOffset.UTC));
 
-			if (remove) {
-				iter.remove();
-			}
-		}
+		return getRank(subscribed, age, peerMessageTrust);
+	}
 
-		LOG.log(Level.FINER, "Found {0} messages: "
-				+ "{1} new, {2} too old, {3} already exist", new Object[]{
-				totalCount, messageReferences.size(), oldCount, existsCount});
+	public synchronized void clear() {
+		seenReferences.clear();
 	}
 
-	public MessageReference remove() {
-		Iterator<MessageReference> iter = messageReferences.iterator();
-		if (iter.hasNext()) {
-			MessageReference msg = iter.next();
-			iter.remove();
-			return msg;
-		} else {
-			return null;
-		}
+	private static LocalDate getOldestMessageDate() {
+		return LocalDate.now(ZoneOffset.UTC)
+			.minusDays(Integer.parseInt(Constants.DEFAULT_MAX_MESSAGE_AGE));
+	}
+
+	private static boolean isObsolete(MessageReference msg,
+			LocalDate oldestMessageDate, Store store) {
+		return msg.getDate().compareTo(oldestMessageDate) < 0 ||
+			store.messageExists(msg.getIdentityId(), msg.getDate(),
+					msg.getIndex());
 	}
 }
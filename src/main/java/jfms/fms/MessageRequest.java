@@ -1,57 +1,63 @@
 package jfms.fms;
 
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import jfms.config.Constants;
 import jfms.fms.xml.MessageParser;
-import jfms.store.Store;
 import jfms.util.UUID;
 
 public class MessageRequest extends DownloadRequest {
 	private static final Logger LOG = Logger.getLogger(MessageRequest.class.getName());
 	private static final MessageParser messageParser = new MessageParser();
 
-	private final int identityId;
-	private final String ssk;
 	private final MessageReference messageRef;
-	private final MessageReferenceList messageList;
-	private final RequestTracker requestTracker;
+	private final MessageBatch batch;
+	private boolean stored;
 
-	public MessageRequest(String id, int identityId, String ssk,
-			MessageReference msg,
-			MessageReferenceList messageList,
-			RequestTracker requestTracker) {
+	/**
+	 * @param batch batch the message belongs to, null for a single
+	 * message
+	 */
+	public MessageRequest(String id, MessageReference msg,
+			MessageBatch batch) {
 
 		super(id, Identity.getMessageKey(msg.getSsk(),
 				msg.getDate(), msg.getIndex()),
 				Constants.TTL_MESSAGE);
-		this.identityId = identityId;
-		this.ssk = ssk;
 		this.messageRef = msg;
-		this.messageList = messageList;
-		this.requestTracker = requestTracker;
+		this.batch = batch;
 	}
 
 	@Override
-	public void finished(byte[] data) {
+	public void finished(InputStream data) {
 		parseAndStore(data);
-		chainNextRequest();
+		messageDone();
 	}
 
 	@Override
 	public void error(int code) {
-		chainNextRequest();
+		messageDone();
+	}
+
+	@Override
+	public RequestType getType() {
+		return RequestType.MESSAGE;
+	}
+
+	@Override
+	public int getIdentityId() {
+		return messageRef.getIdentityId();
 	}
 
 	@Override
 	public int isSuccessful() {
-		return requestTracker.getSuccessCount();
+		return stored ? 1 : 0;
 	}
 
-	private void parseAndStore(byte[] data) {
-		Message message = messageParser.parse(new ByteArrayInputStream(data));
+	private void parseAndStore(InputStream data) {
+		Message message = messageParser.parse(data);
 		if (message == null) {
 			LOG.log(Level.INFO, "failed to parse message from {0}",
 					getKey());
@@ -77,56 +83,17 @@ public class MessageRequest extends DownloadRequest {
 		}
 
 		FmsManager.getInstance().getMessageManager().addMessage(message);
+		stored = true;
 	}
 
-	private void chainNextRequest() {
-		MessageReference msg = messageList.remove();
-
-		if (msg != null) {
-			MessageRequest msgRequest = new MessageRequest(null,
-					identityId, ssk,
-					msg,
-					messageList, requestTracker);
-
-			// check if we should update identity first
-			RequestTracker msgTracker = RequestTracker.createSingleRequest(
-					RequestType.IDENTITY, msg.getIdentityId(), msg.getDate());
-			if (msgTracker == null) {
-				msgRequest.setId(getNextId());
-				setChainedRequest(msgRequest);
-			} else {
-				setChainedRequest(new IdentityRequest(getNextId(),
-					msg.getIdentityId(), msg.getSsk(), msgTracker,
-					IdentityRequest.SuccessAction.REQUEST_MESSAGE,
-					msgRequest));
-			}
-		} else {
-			if (identityId < 0) {
-				// we are running message requests for a different ID
-				// -> no jfms.store update, no further msg list requests
-				return;
-			}
-
-			if (requestTracker.getFastMessageCheckEnabled()) {
-				LOG.log(Level.FINEST, "fast message check mode: skipping further requests");
-				return;
-			}
-
-			final Store store = FmsManager.getInstance().getStore();
-			store.updateRequestHistory(identityId,
-					RequestType.MESSAGE_LIST,
-					requestTracker.getDate(),
-					requestTracker.getIndex());
-
-			final RequestTracker nextTracker =
-				requestTracker.incrementIndex();
-			if (nextTracker != null) {
-				setChainedRequest(new MessageListRequest(getNextId(),
-							identityId,
-							ssk,
-							messageList,
-							nextTracker));
-			}
+	private void messageDone() {
+		if (batch == null) {
+			return;
+		}
+
+		final DownloadRequest nextRequest = batch.messageDone(getNextId());
+		if (nextRequest != null) {
+			setChainedRequest(nextRequest);
 		}
 	}
 }
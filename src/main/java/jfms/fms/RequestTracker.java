@@ -3,6 +3,8 @@ package jfms.fms;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
 
 import jfms.config.Constants;
 import jfms.store.Store;
@@ -123,6 +125,10 @@ public class RequestTracker {
 		return index;
 	}
 
+	public int getMaxIndex() {
+		return maxIndex;
+	}
+
 	public RequestTracker incrementIndex() {
 		if (index < maxIndex) {
 			return setIndex(index + 1);
@@ -162,6 +168,26 @@ public class RequestTracker {
 				fastMessageCheckEnabled);
 	}
 
+	/**
+	 * Trackers for consecutive days before the date of this tracker, as
+	 * far as {@link #minusDays(long)} allows.
+	 * @param daysToSubstract days before the date of this tracker of the
+	 * first tracker
+	 * @param count maximum number of trackers
+	 */
+	public List<RequestTracker> minusDays(long daysToSubstract, int count) {
+		final List<RequestTracker> trackers = new ArrayList<>(count);
+		for (int i=0; i<count; i++) {
+			final RequestTracker tracker = minusDays(daysToSubstract + i);
+			if (tracker == null) {
+				break;
+			}
+			trackers.add(tracker);
+		}
+
+		return trackers;
+	}
+
 	public void setFail() {
 		setFail(LocalDateTime.now(ZoneOffset.UTC));
 	}
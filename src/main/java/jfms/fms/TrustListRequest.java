@@ -1,6 +1,7 @@
 package jfms.fms;
 
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -17,43 +18,123 @@ public class TrustListRequest extends DownloadRequest {
 	private final int identityId;
 	private final String ssk;
 	private final RequestTracker requestTracker;
+	private final IndexProbe probe;
+	private final boolean firstProbe;
 
 	public TrustListRequest(String id, int identityId, String ssk,
 			RequestTracker requestTracker) {
 
+		this(id, identityId, ssk, requestTracker, createProbe(requestTracker),
+				true);
+	}
+
+	private TrustListRequest(String id, int identityId, String ssk,
+			RequestTracker requestTracker, IndexProbe probe,
+			boolean firstProbe) {
+
 		super(id, Identity.getTrustListKey(ssk,
 				requestTracker.getDate(), requestTracker.getIndex()),
 				Constants.TTL_TRUSTLIST);
 		this.identityId = identityId;
 		this.ssk = ssk;
 		this.requestTracker = requestTracker;
+		this.probe = probe;
+		this.firstProbe = firstProbe;
+
+		if (probe != null) {
+			probe.add(requestTracker.getIndex(), this);
+		}
+	}
+
+	private static IndexProbe createProbe(RequestTracker requestTracker) {
+		final int window = FmsManager.getInstance().getTrustListProbeWindow();
+		if (window <= 1 ||
+				requestTracker.getIndex() >= requestTracker.getMaxIndex()) {
+			return null;
+		}
+
+		return new IndexProbe(requestTracker.getIndex(),
+				requestTracker.getMaxIndex(), window);
+	}
+
+	@Override
+	public boolean hasParallelRequests() {
+		return probe != null && firstProbe;
+	}
+
+	@Override
+	public List<DownloadRequest> createParallelRequests() {
+		if (!hasParallelRequests()) {
+			return super.createParallelRequests();
+		}
+
+		final List<Integer> indices = probe.start();
+		final List<DownloadRequest> requests = new ArrayList<>(indices.size());
+		for (int index : indices) {
+			requests.add(new TrustListRequest(null, identityId, ssk,
+					requestTracker.setIndex(index), probe, false));
+		}
+
+		return requests;
 	}
 
 	@Override
-	public void finished(byte[] data) {
+	public void finished(InputStream data) {
 		requestTracker.setSuccess();
 
-		Store store = FmsManager.getInstance().getStore();
-		IdentityManager identityManager = FmsManager.getInstance().getIdentityManager();
+		// with concurrent probes, an older edition may arrive last
+		final boolean newest = probe == null ||
+			probe.found(requestTracker.getIndex());
+
+		if (newest) {
+			Store store = FmsManager.getInstance().getStore();
+			IdentityManager identityManager = FmsManager.getInstance().getIdentityManager();
 
-		List<Trust> trusts = trustListParser.parse(new ByteArrayInputStream(data));
+			List<Trust> trusts = trustListParser.parse(data);
 
-		Map<Integer, String> newIdentities =
-			store.saveTrustList(identityId, trusts);
-		if (newIdentities != null) {
-			for (Map.Entry<Integer,String> e : newIdentities.entrySet()) {
-				identityManager.addIdentityFromTrustList(
-						e.getKey(), e.getValue());
+			Map<Integer, String> newIdentities =
+				store.saveTrustList(identityId, trusts);
+			if (newIdentities != null) {
+				for (Map.Entry<Integer,String> e : newIdentities.entrySet()) {
+					identityManager.addIdentityFromTrustList(
+							e.getKey(), e.getValue());
+				}
 			}
-		}
 
-		store.updateRequestHistory(identityId, RequestType.TRUST_LIST,
-				requestTracker.getDate(), requestTracker.getIndex());
+			store.updateRequestHistory(identityId, RequestType.TRUST_LIST,
+					requestTracker.getDate(), requestTracker.getIndex());
+		} else {
+			LOG.log(Level.FINEST, "Skipping outdated trust list {0}",
+					getKey());
+		}
 
-		final RequestTracker nextTracker = requestTracker.incrementIndex();
+		RequestTracker nextTracker;
+		if (probe == null) {
+			nextTracker = requestTracker.incrementIndex();
+		} else {
+			final int nextIndex = probe.nextIndex();
+			nextTracker = nextIndex >= 0 ?
+				requestTracker.setIndex(nextIndex) : null;
+		}
 		if (nextTracker != null) {
 			setChainedRequest(new TrustListRequest(getNextId(), identityId, ssk,
-					nextTracker));
+					nextTracker, probe, false));
+		}
+	}
+
+	@Override
+	public void error(int code) {
+		if (probe != null && isTransientError(code)) {
+			// the edition may still exist, keep the other probes
+			probe.dropped(requestTracker.getIndex());
+		} else if (probe != null) {
+			final List<DownloadRequest> cancelled =
+				probe.missing(requestTracker.getIndex());
+			if (!cancelled.isEmpty()) {
+				LOG.log(Level.FINEST, "Trust list {0} not found, cancelling "
+						+ "{1} probes", new Object[]{getKey(), cancelled.size()});
+				setCancelledRequests(cancelled);
+			}
 		}
 	}
 
@@ -64,6 +145,16 @@ public class TrustListRequest extends DownloadRequest {
 		return false;
 	}
 
+	@Override
+	public RequestType getType() {
+		return RequestType.TRUST_LIST;
+	}
+
+	@Override
+	public int getIdentityId() {
+		return identityId;
+	}
+
 	@Override
 	public int isSuccessful() {
 		return requestTracker.getSuccessCount();
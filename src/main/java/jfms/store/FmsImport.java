@@ -21,11 +21,13 @@ public class FmsImport {
 
 	private final String fmsDbFile;
 	private Connection fmsConn;
+	private final Store store;
 	private final Connection jfmsConn;
 
 	public FmsImport(String fmsDbFile) {
 		this.fmsDbFile = fmsDbFile;
-		jfmsConn = FmsManager.getInstance().getStore().getConnection();
+		store = FmsManager.getInstance().getStore();
+		jfmsConn = store.getConnection();
 	}
 
 	public boolean startImport() {
@@ -61,6 +63,9 @@ public class FmsImport {
 			} catch (SQLException ex) {
 				Utils.logSqlException("failed to enable autocommit", ex);
 			}
+
+			// tables are committed one by one, even if the import fails
+			store.invalidateCaches();
 		}
 
 		try {
@@ -200,6 +200,67 @@ public class MessageImpl {
 		return exists;
 	}
 
+	static MessageIndex getMessageIndex(JDBCWrapper jdbcWrapper) {
+		final String selectMessages = "SELECT identity_id, insert_date, "
+			+ "insert_index "
+			+ "FROM message";
+
+		return jdbcWrapper.executeStatement(selectMessages,
+				MessageImpl::handleGetMessageIndex,
+				null);
+	}
+
+	static MessageIndex handleGetMessageIndex(ResultSet rs)
+		throws SQLException {
+
+		final MessageIndex index = new MessageIndex(0);
+		int skipped = 0;
+		while (rs.next()) {
+			final long key = MessageIndex.getKey(rs.getInt(1),
+					Utils.date(rs.getString(2)), rs.getInt(3));
+			if (key >= 0) {
+				index.add(key);
+			} else {
+				skipped++;
+			}
+		}
+
+		LOG.log(Level.FINE, "Indexed {0} messages, {1} not indexable",
+				new Object[]{index.size(), skipped});
+
+		return index;
+	}
+
+	/**
+	 * @return key of the message in the {@link MessageIndex}, -1 if the
+	 * message does not exist or cannot be indexed
+	 */
+	static long getMessageIndexKey(JDBCWrapper jdbcWrapper, int messageId) {
+		final String selectMessage = "SELECT identity_id, insert_date, "
+			+ "insert_index "
+			+ "FROM message "
+			+ "WHERE message_id=?";
+
+		return jdbcWrapper.executePreparedStatement(selectMessage,
+				s -> handleGetMessageIndexKey(s, messageId),
+				-1L);
+	}
+
+	static long handleGetMessageIndexKey(PreparedStatement pstmt,
+			int messageId) throws SQLException {
+
+		pstmt.setInt(1, messageId);
+
+		ResultSet rs = pstmt.executeQuery();
+		long key = -1;
+		if (rs.next()) {
+			key = MessageIndex.getKey(rs.getInt(1),
+					Utils.date(rs.getString(2)), rs.getInt(3));
+		}
+
+		return key;
+	}
+
 	static int saveMessage(JDBCWrapper jdbcWrapper, Message message,
 			Map<Integer,String> newBoards) {
 
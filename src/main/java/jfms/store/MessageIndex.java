@@ -0,0 +1,80 @@
+package jfms.store;
+
+import java.time.LocalDate;
+
+import jfms.util.BloomFilter;
+import jfms.util.LongHashSet;
+
+/**
+ * In-memory index of the (identity, insert date, insert index) triples
+ * of all stored messages.
+ * Every triple is packed into a single long. Lookups first check a Bloom
+ * filter, so most keys of new messages are rejected without touching the
+ * hash set. Triples that cannot be packed are not indexed and must be
+ * checked in the database.
+ */
+class MessageIndex {
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+	private static final int MIN_EXPECTED_SIZE = 1024;
+
+	private static final int IDENTITY_BITS = 27;
+	private static final int DAY_BITS = 21;
+	private static final int INDEX_BITS = 15;
+
+	private final LongHashSet keys;
+	private BloomFilter filter;
+
+	MessageIndex(int expectedSize) {
+		keys = new LongHashSet(expectedSize);
+		filter = createFilter(expectedSize);
+	}
+
+	/**
+	 * @return packed key, -1 if the triple cannot be packed
+	 */
+	static long getKey(int identityId, LocalDate insertDate,
+			int insertIndex) {
+		if (insertDate == null) {
+			return -1;
+		}
+
+		final long day = insertDate.toEpochDay();
+		if (identityId < 0 || identityId >= (1 << IDENTITY_BITS) ||
+				day < 0 || day >= (1 << DAY_BITS) ||
+				insertIndex < 0 || insertIndex >= (1 << INDEX_BITS)) {
+			return -1;
+		}
+
+		return ((long)identityId << (DAY_BITS + INDEX_BITS)) |
+			(day << INDEX_BITS) | insertIndex;
+	}
+
+	void add(long key) {
+		if (keys.add(key)) {
+			filter.add(key);
+			if (keys.size() > filter.getExpectedSize()) {
+				// keep the false positive rate by rebuilding the filter
+				filter = createFilter(keys.size() * 2);
+				keys.forEach(filter::add);
+			}
+		}
+	}
+
+	void remove(long key) {
+		// the filter keeps the key; a lookup will fail in the hash set
+		keys.remove(key);
+	}
+
+	boolean contains(long key) {
+		return filter.mightContain(key) && keys.contains(key);
+	}
+
+	int size() {
+		return keys.size();
+	}
+
+	private static BloomFilter createFilter(int expectedSize) {
+		return new BloomFilter(Math.max(expectedSize, MIN_EXPECTED_SIZE),
+				FALSE_POSITIVE_RATE);
+	}
+}
@@ -0,0 +1,144 @@
+package jfms.store;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import jfms.config.Constants;
+import jfms.fms.DateIndex;
+import jfms.fms.RequestType;
+
+/**
+ * In-memory copy of the request_history table.
+ * The columns of all rows are held in a single int array indexed by
+ * identity ID, dates as epoch days. Updates change the array and mark the
+ * row as dirty; dirty rows are written back in batches.
+ */
+class RequestHistoryCache {
+	static final int IDENTITY_DATE = 0;
+	static final int IDENTITY_INDEX = 1;
+	static final int FAIL_DATE = 2;
+	static final int TRUSTLIST_DATE = 3;
+	static final int TRUSTLIST_INDEX = 4;
+	static final int MESSAGELIST_DATE = 5;
+	static final int MESSAGELIST_INDEX = 6;
+	static final int COLUMN_COUNT = 7;
+
+	// SQL NULL
+	static final int NULL = Integer.MIN_VALUE;
+
+	private static final int MIN_CAPACITY = 256;
+
+	private int[] values = new int[0];
+	// rows present in the table
+	private final BitSet stored = new BitSet();
+	private final BitSet dirty = new BitSet();
+
+	static boolean isDateColumn(int column) {
+		return column == IDENTITY_DATE || column == FAIL_DATE ||
+			column == TRUSTLIST_DATE || column == MESSAGELIST_DATE;
+	}
+
+	int get(int identityId, int column) {
+		final int pos = identityId * COLUMN_COUNT + column;
+		if (identityId < 0 || pos >= values.length) {
+			return NULL;
+		}
+
+		return values[pos];
+	}
+
+	void set(int identityId, int column, int value) {
+		ensureCapacity(identityId);
+		values[identityId * COLUMN_COUNT + column] = value;
+	}
+
+	void setStored(int identityId) {
+		stored.set(identityId);
+	}
+
+	boolean isStored(int identityId) {
+		return stored.get(identityId);
+	}
+
+	DateIndex getLastRequestDateIndex(int identityId, RequestType type) {
+		final int dateColumn = getDateColumn(type);
+		final int date = get(identityId, dateColumn);
+		final int index = get(identityId, dateColumn + 1);
+		if (date == NULL || index == NULL) {
+			return RequestHistoryImpl.FALLBACK_DATE_INDEX;
+		}
+
+		return new DateIndex(LocalDate.ofEpochDay(date), index);
+	}
+
+	LocalDate getLastFailDate(int identityId) {
+		final int date = get(identityId, FAIL_DATE);
+		if (date == NULL) {
+			return Constants.FALLBACK_DATE;
+		}
+
+		return LocalDate.ofEpochDay(date);
+	}
+
+	void updateRequestHistory(int identityId, RequestType type,
+			LocalDate date, int index) {
+
+		final int dateColumn = getDateColumn(type);
+		set(identityId, dateColumn, (int)date.toEpochDay());
+		set(identityId, dateColumn + 1, index);
+		dirty.set(identityId);
+	}
+
+	void updateLastFailDate(int identityId, LocalDate date) {
+		set(identityId, FAIL_DATE, (int)date.toEpochDay());
+		dirty.set(identityId);
+	}
+
+	int getDirtyCount() {
+		return dirty.cardinality();
+	}
+
+	int[] getDirtyIdentityIds() {
+		return dirty.stream().toArray();
+	}
+
+	/**
+	 * Marks the rows as written back.
+	 */
+	void flushed(int[] identityIds) {
+		for (int identityId : identityIds) {
+			dirty.clear(identityId);
+			stored.set(identityId);
+		}
+	}
+
+	private void ensureCapacity(int identityId) {
+		final int required = (identityId + 1) * COLUMN_COUNT;
+		if (required <= values.length) {
+			return;
+		}
+
+		int capacity = Math.max(values.length, MIN_CAPACITY * COLUMN_COUNT);
+		while (capacity < required) {
+			capacity *= 2;
+		}
+
+		final int oldLength = values.length;
+		values = Arrays.copyOf(values, capacity);
+		Arrays.fill(values, oldLength, capacity, NULL);
+	}
+
+	private static int getDateColumn(RequestType type) {
+		switch (type) {
+		case IDENTITY:
+			return IDENTITY_DATE;
+		case TRUST_LIST:
+			return TRUSTLIST_DATE;
+		case MESSAGE_LIST:
+			return MESSAGELIST_DATE;
+		default:
+			throw new AssertionError("invalid type: " + type.name());
+		}
+	}
+}
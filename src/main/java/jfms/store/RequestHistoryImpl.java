@@ -3,7 +3,15 @@ package jfms.store;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import jfms.config.Constants;
 import jfms.fms.DateIndex;
@@ -13,6 +21,13 @@ public class RequestHistoryImpl {
 	public static final DateIndex FALLBACK_DATE_INDEX = new DateIndex(
 			Constants.FALLBACK_DATE, -1);
 
+	// in the order of the RequestHistoryCache columns
+	private static final String[] CACHE_COLUMNS = {
+		"last_identity_date", "last_identity_index", "last_fail_date",
+		"last_trustlist_date", "last_trustlist_index",
+		"last_messagelist_date", "last_messagelist_index"
+	};
+
 	static DateIndex getLastRequestDateIndex(JDBCWrapper jdbcWrapper,
 			Integer identityId, RequestType type) {
 
@@ -159,6 +174,159 @@ public class RequestHistoryImpl {
 		return true;
 	}
 
+	static RequestHistoryCache getRequestHistoryCache(
+			JDBCWrapper jdbcWrapper) {
+
+		final String selectHistory = "SELECT identity_id, "
+			+ String.join(", ", CACHE_COLUMNS) + " "
+			+ "FROM request_history";
+
+		return jdbcWrapper.executeStatement(selectHistory,
+				RequestHistoryImpl::handleGetRequestHistoryCache,
+				null);
+	}
+
+	static RequestHistoryCache handleGetRequestHistoryCache(ResultSet rs)
+		throws SQLException {
+
+		RequestHistoryCache cache = new RequestHistoryCache();
+
+		while (rs.next()) {
+			final int identityId = rs.getInt(1);
+			cache.setStored(identityId);
+			for (int column=0; column<CACHE_COLUMNS.length; column++) {
+				int value = RequestHistoryCache.NULL;
+				if (RequestHistoryCache.isDateColumn(column)) {
+					String dateStr = rs.getString(column + 2);
+					if (dateStr != null) {
+						value = (int)Utils.date(dateStr).toEpochDay();
+					}
+				} else {
+					int index = rs.getInt(column + 2);
+					if (!rs.wasNull()) {
+						value = index;
+					}
+				}
+				cache.set(identityId, column, value);
+			}
+		}
+
+		return cache;
+	}
+
+	/**
+	 * Writes the complete rows of the given identities back in a single
+	 * transaction.
+	 */
+	static boolean updateRequestHistory(JDBCWrapper jdbcWrapper,
+			RequestHistoryCache cache, int[] identityIds) {
+
+		return jdbcWrapper.executeTransaction(
+				w -> handleUpdateRequestHistory(w, cache, identityIds),
+				false);
+	}
+
+	static boolean handleUpdateRequestHistory(JDBCWrapper jdbcWrapper,
+			RequestHistoryCache cache, int[] identityIds)
+		throws SQLException {
+
+		final String updateHistory = "UPDATE request_history "
+			+ "SET " + String.join("=?, ", CACHE_COLUMNS) + "=? "
+			+ "WHERE identity_id=?";
+		final String insertHistory = "INSERT INTO request_history "
+			+ "(" + String.join(", ", CACHE_COLUMNS) + ", identity_id) "
+			+ "VALUES(?,?,?,?,?,?,?,?)";
+
+		try (PreparedStatement updateStmt = jdbcWrapper.prepareStatement(updateHistory);
+				PreparedStatement insertStmt = jdbcWrapper.prepareStatement(insertHistory)) {
+
+			final List<Integer> updatedIds = new ArrayList<>();
+			for (int identityId : identityIds) {
+				if (cache.isStored(identityId)) {
+					addHistoryRow(updateStmt, cache, identityId);
+					updatedIds.add(identityId);
+				} else {
+					addHistoryRow(insertStmt, cache, identityId);
+				}
+			}
+
+			// rows may have been removed since the cache was loaded
+			final int[] rowCounts = updateStmt.executeBatch();
+			for (int i=0; i<rowCounts.length; i++) {
+				if (rowCounts[i] == 0) {
+					addHistoryRow(insertStmt, cache, updatedIds.get(i));
+				}
+			}
+
+			insertStmt.executeBatch();
+		}
+
+		return true;
+	}
+
+	private static void addHistoryRow(PreparedStatement pstmt,
+			RequestHistoryCache cache, int identityId) throws SQLException {
+
+		for (int column=0; column<CACHE_COLUMNS.length; column++) {
+			final int value = cache.get(identityId, column);
+			final boolean isDate = RequestHistoryCache.isDateColumn(column);
+			if (value == RequestHistoryCache.NULL) {
+				pstmt.setNull(column + 1,
+						isDate ? Types.VARCHAR : Types.INTEGER);
+			} else if (isDate) {
+				pstmt.setString(column + 1,
+						Utils.format(LocalDate.ofEpochDay(value)));
+			} else {
+				pstmt.setInt(column + 1, value);
+			}
+		}
+		pstmt.setInt(CACHE_COLUMNS.length + 1, identityId);
+		pstmt.addBatch();
+	}
+
+	static Map<Integer, SortedMap<LocalDate, Integer>> getPublicationCounts(
+			JDBCWrapper jdbcWrapper, LocalDate fromDate) {
+
+		final String selectCounts = "SELECT identity_id, insert_date, "
+			+ "MAX(insert_index) + 1 "
+			+ "FROM message "
+			+ "WHERE insert_date >= ? "
+			+ "GROUP BY identity_id, insert_date "
+			+ "UNION ALL "
+			+ "SELECT identity_id, last_messagelist_date, "
+			+ "last_messagelist_index + 1 "
+			+ "FROM request_history "
+			+ "WHERE last_messagelist_date >= ?";
+
+		return jdbcWrapper.executePreparedStatement(selectCounts,
+				s -> handleGetPublicationCounts(s, fromDate),
+				Collections.emptyMap());
+	}
+
+	static Map<Integer, SortedMap<LocalDate, Integer>> handleGetPublicationCounts(
+			PreparedStatement pstmt, LocalDate fromDate)
+		throws SQLException {
+
+		Map<Integer, SortedMap<LocalDate, Integer>> counts = new HashMap<>();
+
+		final String dateStr = Utils.format(fromDate);
+		pstmt.setString(1, dateStr);
+		pstmt.setString(2, dateStr);
+		ResultSet rs = pstmt.executeQuery();
+		while (rs.next()) {
+			final int identityId = rs.getInt(1);
+			final String date = rs.getString(2);
+			final int count = rs.getInt(3);
+			if (date != null && count > 0) {
+				// both sources count the editions of the same day
+				counts.computeIfAbsent(identityId, k -> new TreeMap<>())
+					.merge(Utils.date(date), count, Math::max);
+			}
+		}
+
+		return counts;
+	}
+
 	private static String getHistoryColumnName(RequestType type, String basename) {
 		StringBuilder str = new StringBuilder("last_");
 
@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,10 +36,14 @@ public final class Store {
 	private static final Logger LOG = Logger.getLogger(Store.class.getName());
 	private static final String DB_VERSION_KEY = "db_version";
 	private static final String DB_VERSION = "0.3";
+	private static final int REQUEST_HISTORY_BATCH_SIZE = 100;
 
 	private final Connection connection;
 	private final JDBCWrapper jdbcWrapper;
 	private final String info;
+	private MessageIndex messageIndex;
+	private boolean messageIndexFailed;
+	private RequestHistoryCache requestHistoryCache;
 
 	public static boolean databaseExists(String dbName) {
 		boolean exists = Files.exists(Paths.get(dbName));
@@ -96,6 +101,16 @@ public final class Store {
 		return connection;
 	}
 
+	/**
+	 * Drops in-memory copies of tables. Must be called after tables were
+	 * changed through {@link #getConnection()}, e.g. by an import.
+	 */
+	public synchronized void invalidateCaches() {
+		messageIndex = null;
+		messageIndexFailed = false;
+		reloadRequestHistory();
+	}
+
 	public void close() throws SQLException {
 		connection.close();
 	}
@@ -118,6 +133,7 @@ public final class Store {
 	public synchronized List<Integer> getActiveIdentities(
 			LocalDate activeSince, LocalDate singleUseAddedSince) {
 
+		flushRequestHistory();
 		return IdentityImpl.getActiveIdentities(jdbcWrapper,
 				activeSince, singleUseAddedSince);
 	}
@@ -126,6 +142,7 @@ public final class Store {
 			LocalDate inactiveSince, LocalDate notFailedSince,
 			LocalDate singleUseAddedSince) {
 
+		flushRequestHistory();
 		return IdentityImpl.getInactiveIdentities(jdbcWrapper,
 				inactiveSince, notFailedSince, singleUseAddedSince);
 	}
@@ -135,6 +152,7 @@ public final class Store {
 	}
 
 	public synchronized Set<String> getRecentSsks(LocalDate fromDate) {
+		flushRequestHistory();
 		return IdentityImpl.getRecentSsks(jdbcWrapper, fromDate);
 	}
 
@@ -192,9 +210,29 @@ public final class Store {
 		return MessageImpl.getAttachments(jdbcWrapper, messageId);
 	}
 
+	/**
+	 * Checks whether a message exists.
+	 * The in-memory message index is used if possible; it is loaded on
+	 * first use.
+	 */
 	public synchronized boolean messageExists(int identityId,
 			LocalDate insertDate, int insertIndex) {
 
+		if (messageIndex == null && !messageIndexFailed) {
+			messageIndex = MessageImpl.getMessageIndex(jdbcWrapper);
+			if (messageIndex == null) {
+				LOG.log(Level.WARNING, "Failed to load message index, "
+						+ "messages are looked up in the database");
+				messageIndexFailed = true;
+			}
+		}
+
+		final long key = MessageIndex.getKey(identityId, insertDate,
+				insertIndex);
+		if (messageIndex != null && key >= 0) {
+			return messageIndex.contains(key);
+		}
+
 		return MessageImpl.messageExists(jdbcWrapper,
 				identityId, insertDate, insertIndex);
 	}
@@ -202,11 +240,32 @@ public final class Store {
 	public synchronized int saveMessage(Message message,
 			Map<Integer, String> newBoards) {
 
-		return MessageImpl.saveMessage(jdbcWrapper, message, newBoards);
+		final int messageId = MessageImpl.saveMessage(jdbcWrapper, message,
+				newBoards);
+		if (messageId != -1 && messageIndex != null) {
+			final long key = MessageIndex.getKey(message.getIdentityId(),
+					message.getInsertDate(), message.getInsertIndex());
+			if (key >= 0) {
+				messageIndex.add(key);
+			}
+		}
+
+		return messageId;
 	}
 
 	public synchronized boolean removeMessage(int messageId) {
-		return MessageImpl.removeMessage(jdbcWrapper, messageId);
+		long key = -1;
+		if (messageIndex != null) {
+			key = MessageImpl.getMessageIndexKey(jdbcWrapper, messageId);
+		}
+
+		final boolean removed = MessageImpl.removeMessage(jdbcWrapper,
+				messageId);
+		if (removed && key >= 0) {
+			messageIndex.remove(key);
+		}
+
+		return removed;
 	}
 
 	public synchronized void setMessageRead(int messageId, boolean read) {
@@ -283,9 +342,34 @@ public final class Store {
 
 	//----- REQUEST HISTORY -----//
 
+	/**
+	 * Loads the request history into memory.
+	 * Until {@link #releaseRequestHistory} is called, request history is
+	 * read from memory and updates are written back in batches.
+	 */
+	public synchronized void loadRequestHistory() {
+		flushRequestHistory();
+		requestHistoryCache = RequestHistoryImpl.getRequestHistoryCache(
+				jdbcWrapper);
+	}
+
+	/**
+	 * Writes pending updates back and drops the in-memory request
+	 * history.
+	 */
+	public synchronized void releaseRequestHistory() {
+		flushRequestHistory();
+		requestHistoryCache = null;
+	}
+
 	public synchronized DateIndex getLastRequestDateIndex(Integer identityId,
 			RequestType type) {
 
+		if (requestHistoryCache != null) {
+			return requestHistoryCache.getLastRequestDateIndex(identityId,
+					type);
+		}
+
 		return RequestHistoryImpl.getLastRequestDateIndex(jdbcWrapper,
 				identityId, type);
 	}
@@ -293,20 +377,85 @@ public final class Store {
 	public synchronized void updateRequestHistory(Integer identityId,
 			RequestType type, LocalDate date, int index) {
 
+		if (requestHistoryCache != null) {
+			requestHistoryCache.updateRequestHistory(identityId, type, date,
+					index);
+			flushRequestHistoryBatch();
+			return;
+		}
+
 		RequestHistoryImpl.updateRequestHistory(jdbcWrapper,
 				identityId, type, date, index);
 	}
 
+	/**
+	 * Get the number of message and message list editions identities
+	 * published per day.
+	 */
+	public synchronized Map<Integer, SortedMap<LocalDate, Integer>>
+		getPublicationCounts(LocalDate fromDate) {
+
+		flushRequestHistory();
+		return RequestHistoryImpl.getPublicationCounts(jdbcWrapper, fromDate);
+	}
+
 	public synchronized LocalDate getLastFailDate(Integer identityId) {
+		if (requestHistoryCache != null) {
+			return requestHistoryCache.getLastFailDate(identityId);
+		}
+
 		return RequestHistoryImpl.getLastFailDate(jdbcWrapper, identityId);
 	}
 
 	public synchronized void updateLastFailDate(Integer identityId,
 			LocalDate date) {
 
+		if (requestHistoryCache != null) {
+			requestHistoryCache.updateLastFailDate(identityId, date);
+			flushRequestHistoryBatch();
+			return;
+		}
+
 		RequestHistoryImpl.updateLastFailDate(jdbcWrapper, identityId, date);
 	}
 
+	/**
+	 * Reloads the in-memory request history, if loaded, after the table
+	 * was changed behind it. Pending updates are dropped.
+	 */
+	private void reloadRequestHistory() {
+		if (requestHistoryCache != null) {
+			requestHistoryCache = RequestHistoryImpl.getRequestHistoryCache(
+					jdbcWrapper);
+		}
+	}
+
+	private void flushRequestHistoryBatch() {
+		if (requestHistoryCache.getDirtyCount() >= REQUEST_HISTORY_BATCH_SIZE) {
+			flushRequestHistory();
+		}
+	}
+
+	/**
+	 * Writes pending request history updates to the database. Must be
+	 * called before queries that read the request_history table.
+	 */
+	private void flushRequestHistory() {
+		if (requestHistoryCache == null ||
+				requestHistoryCache.getDirtyCount() == 0) {
+			return;
+		}
+
+		final int[] identityIds = requestHistoryCache.getDirtyIdentityIds();
+		if (RequestHistoryImpl.updateRequestHistory(jdbcWrapper,
+					requestHistoryCache, identityIds)) {
+			requestHistoryCache.flushed(identityIds);
+		} else {
+			LOG.log(Level.WARNING, "failed to write request history of "
+					+ "{0} identities", identityIds.length);
+		}
+	}
+
 
 	//----- LOCAL IDENTITY -----//
 
@@ -585,6 +734,7 @@ public final class Store {
 	public synchronized int countRemovableIdentities(LocalDate date,
 			boolean inactiveOnly) {
 
+		flushRequestHistory();
 		return MaintenanceImpl.countRemovableIdentities(jdbcWrapper,
 				date, inactiveOnly);
 	}
@@ -592,8 +742,12 @@ public final class Store {
 	public synchronized boolean removeIdentities(LocalDate date,
 			boolean inactiveOnly) {
 
-		return MaintenanceImpl.removeIdentities(jdbcWrapper,
+		flushRequestHistory();
+		final boolean removed = MaintenanceImpl.removeIdentities(jdbcWrapper,
 				date, inactiveOnly);
+		reloadRequestHistory();
+
+		return removed;
 	}
 
 	//----- JFMS INFO -----//
@@ -0,0 +1,149 @@
+package jfms.util;
+
+import java.time.Duration;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Concurrency limit that adapts to the round-trip time of requests.
+ * Two moving averages of the RTT are kept: a short one following recent
+ * requests and a long one serving as baseline. While the short RTT stays
+ * close to the baseline and the limit is fully used, the limit grows by
+ * one per window of completed requests. If the short RTT exceeds the
+ * baseline by more than the tolerance, requests are queueing at the node
+ * and the limit is reduced multiplicatively; dropped requests (timeouts,
+ * lost connections) reduce it even further. At most one decrease happens
+ * per window, so a burst of slow responses counts as a single event.
+ */
+public class AdaptiveLimit {
+	private static final Logger LOG = Logger.getLogger(AdaptiveLimit.class.getName());
+
+	private static final double SHORT_RTT_WEIGHT = 0.1;
+	private static final double LONG_RTT_WEIGHT = 0.01;
+	private static final double RTT_TOLERANCE = 2.0;
+	private static final double QUEUEING_BACKOFF = 0.9;
+	private static final double DROP_BACKOFF = 0.5;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private double limit;
+	private double shortRtt = -1;
+	private double longRtt = -1;
+	private int samplesSinceDecrease = Integer.MAX_VALUE;
+	private IntConsumer listener;
+
+	/**
+	 * Creates a limit that does not change.
+	 */
+	public AdaptiveLimit(int limit) {
+		this(limit, limit, limit);
+	}
+
+	public AdaptiveLimit(int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1 || maxLimit < minLimit) {
+			throw new IllegalArgumentException("invalid limit range");
+		}
+
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+	}
+
+	/**
+	 * @return number of requests that may be in flight
+	 */
+	public synchronized int getLimit() {
+		return (int)limit;
+	}
+
+	/**
+	 * Sets a listener that is called with the current limit and after
+	 * every change of it.
+	 */
+	public synchronized void setListener(IntConsumer listener) {
+		this.listener = listener;
+		if (listener != null) {
+			listener.accept((int)limit);
+		}
+	}
+
+	/**
+	 * @return recent round-trip time, null if no request completed yet
+	 */
+	public synchronized Duration getRtt() {
+		return shortRtt < 0 ? null : Duration.ofNanos((long)shortRtt);
+	}
+
+	/**
+	 * @return long-term round-trip time used as baseline, null if no
+	 * request completed yet
+	 */
+	public synchronized Duration getBaselineRtt() {
+		return longRtt < 0 ? null : Duration.ofNanos((long)longRtt);
+	}
+
+	/**
+	 * Updates the limit with a completed request.
+	 * @param rttNanos time between sending the request and its completion
+	 * @param inFlight number of requests in flight, including this one
+	 * @param dropped whether the request failed because of overload
+	 * rather than returning a result
+	 */
+	public synchronized void addSample(long rttNanos, int inFlight,
+			boolean dropped) {
+
+		if (samplesSinceDecrease < Integer.MAX_VALUE) {
+			samplesSinceDecrease++;
+		}
+
+		if (dropped) {
+			// the duration of a timeout is not a latency sample
+			decrease(DROP_BACKOFF);
+			return;
+		}
+
+		if (shortRtt < 0) {
+			shortRtt = rttNanos;
+			longRtt = rttNanos;
+		} else {
+			shortRtt += SHORT_RTT_WEIGHT * (rttNanos - shortRtt);
+			longRtt += LONG_RTT_WEIGHT * (rttNanos - longRtt);
+		}
+
+		final int oldLimit = (int)limit;
+		if (shortRtt > longRtt * RTT_TOLERANCE) {
+			decrease(QUEUEING_BACKOFF);
+		} else if (inFlight >= (int)limit && limit < maxLimit) {
+			// only grow if the current limit is actually used
+			limit = Math.min(maxLimit, limit + 1 / limit);
+			if ((int)limit != oldLimit) {
+				limitChanged();
+			}
+		}
+	}
+
+	private void decrease(double backoff) {
+		if (samplesSinceDecrease < (int)limit) {
+			return;
+		}
+
+		final double newLimit = Math.max(minLimit, limit * backoff);
+		if ((int)newLimit != (int)limit) {
+			LOG.log(Level.FINE, "Reducing request limit to {0}",
+					(int)newLimit);
+		}
+		final int oldLimit = (int)limit;
+		limit = newLimit;
+		samplesSinceDecrease = 0;
+		if ((int)limit != oldLimit) {
+			limitChanged();
+		}
+	}
+
+	private void limitChanged() {
+		if (listener != null) {
+			listener.accept((int)limit);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package jfms.util;
+
+/**
+ * Bloom filter for primitive long values.
+ * A negative answer is always correct; a positive answer is wrong with
+ * about the configured probability as long as no more than the expected
+ * number of values has been added. Values cannot be removed. Not
+ * thread-safe.
+ */
+public class BloomFilter {
+	private final long[] bits;
+	private final long bitCount;
+	private final int hashCount;
+	private final int expectedSize;
+
+	/**
+	 * @param expectedSize number of values the filter is sized for
+	 * @param falsePositiveRate false positive rate at the expected size
+	 */
+	public BloomFilter(int expectedSize, double falsePositiveRate) {
+		final int n = Math.max(expectedSize, 1);
+		final double ln2 = Math.log(2);
+		final long m = (long)Math.ceil(
+				-n * Math.log(falsePositiveRate) / (ln2 * ln2));
+
+		this.bits = new long[(int)Math.max(1, (m + 63) / 64)];
+		this.bitCount = bits.length * 64L;
+		this.hashCount = Math.max(1, (int)Math.round((double)bitCount / n * ln2));
+		this.expectedSize = n;
+	}
+
+	public void add(long value) {
+		final long h1 = mix(value);
+		final long h2 = mix(h1) | 1;
+		for (int i=0; i<hashCount; i++) {
+			final long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+			bits[(int)(bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @return false if the value was definitely not added
+	 */
+	public boolean mightContain(long value) {
+		final long h1 = mix(value);
+		final long h2 = mix(h1) | 1;
+		for (int i=0; i<hashCount; i++) {
+			final long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+			if ((bits[(int)(bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public int getExpectedSize() {
+		return expectedSize;
+	}
+
+	public int getHashCount() {
+		return hashCount;
+	}
+
+	private static long mix(long value) {
+		// finalizer of MurmurHash3
+		long h = value;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+}
@@ -0,0 +1,181 @@
+package jfms.util;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Set of primitive long values.
+ * Open addressing with linear probing; values are stored in a single
+ * array without boxing. Removal shifts following entries back, so no
+ * tombstones are needed. Not thread-safe.
+ */
+public class LongHashSet {
+	private static final float LOAD_FACTOR = 0.5f;
+	private static final int MIN_CAPACITY = 16;
+	private static final long EMPTY = 0;
+
+	private long[] table;
+	private boolean containsEmpty;
+	private int size;
+
+	public LongHashSet() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize number of values to hold without resizing
+	 */
+	public LongHashSet(int expectedSize) {
+		table = new long[getCapacity(expectedSize)];
+	}
+
+	/**
+	 * @return true if the value was not present
+	 */
+	public boolean add(long value) {
+		if (value == EMPTY) {
+			if (containsEmpty) {
+				return false;
+			}
+			containsEmpty = true;
+			size++;
+			return true;
+		}
+
+		final int mask = table.length - 1;
+		int pos = hash(value) & mask;
+		while (table[pos] != EMPTY) {
+			if (table[pos] == value) {
+				return false;
+			}
+			pos = (pos + 1) & mask;
+		}
+
+		table[pos] = value;
+		size++;
+		if (size > table.length * LOAD_FACTOR) {
+			rehash(table.length * 2);
+		}
+
+		return true;
+	}
+
+	public boolean contains(long value) {
+		if (value == EMPTY) {
+			return containsEmpty;
+		}
+
+		final int mask = table.length - 1;
+		int pos = hash(value) & mask;
+		while (table[pos] != EMPTY) {
+			if (table[pos] == value) {
+				return true;
+			}
+			pos = (pos + 1) & mask;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return true if the value was present
+	 */
+	public boolean remove(long value) {
+		if (value == EMPTY) {
+			if (!containsEmpty) {
+				return false;
+			}
+			containsEmpty = false;
+			size--;
+			return true;
+		}
+
+		final int mask = table.length - 1;
+		int pos = hash(value) & mask;
+		while (table[pos] != value) {
+			if (table[pos] == EMPTY) {
+				return false;
+			}
+			pos = (pos + 1) & mask;
+		}
+
+		// move back entries that would no longer be found
+		int gap = pos;
+		int next = (gap + 1) & mask;
+		while (table[next] != EMPTY) {
+			final int home = hash(table[next]) & mask;
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				table[gap] = table[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		table[gap] = EMPTY;
+		size--;
+
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(table, EMPTY);
+		containsEmpty = false;
+		size = 0;
+	}
+
+	public void forEach(LongConsumer action) {
+		if (containsEmpty) {
+			action.accept(EMPTY);
+		}
+		for (long value : table) {
+			if (value != EMPTY) {
+				action.accept(value);
+			}
+		}
+	}
+
+	private void rehash(int capacity) {
+		final long[] oldTable = table;
+		final int mask = capacity - 1;
+		table = new long[capacity];
+		for (long value : oldTable) {
+			if (value == EMPTY) {
+				continue;
+			}
+			int pos = hash(value) & mask;
+			while (table[pos] != EMPTY) {
+				pos = (pos + 1) & mask;
+			}
+			table[pos] = value;
+		}
+	}
+
+	private static int getCapacity(int expectedSize) {
+		final long minCapacity = (long)Math.ceil(expectedSize / LOAD_FACTOR);
+		int capacity = MIN_CAPACITY;
+		while (capacity < minCapacity && capacity < (1 << 30)) {
+			capacity <<= 1;
+		}
+
+		return capacity;
+	}
+
+	private static int hash(long value) {
+		// finalizer of MurmurHash3
+		long h = value;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return (int)h;
+	}
+}
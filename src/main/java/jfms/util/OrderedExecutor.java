@@ -0,0 +1,113 @@
+package jfms.util;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks on a bounded thread pool.
+ * Tasks submitted with the same key are executed one after another in
+ * submission order; tasks with different keys may run concurrently.
+ * If the pool is saturated or shut down, the task runs in the submitting
+ * thread, so no task is ever dropped.
+ */
+public class OrderedExecutor {
+	private static final Logger LOG = Logger.getLogger(OrderedExecutor.class.getName());
+
+	private final ThreadPoolExecutor executor;
+	private final Map<Object, TaskQueue> queues = new ConcurrentHashMap<>();
+
+	private class TaskQueue implements Runnable {
+		private final Object key;
+		private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+		public TaskQueue(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			final Runnable[] task = new Runnable[1];
+			queues.computeIfPresent(key, (k, q) -> {
+				task[0] = q.tasks.peek();
+				return q;
+			});
+
+			try {
+				if (task[0] != null) {
+					task[0].run();
+				}
+			} catch (RuntimeException e) {
+				LOG.log(Level.WARNING, "Exception in task", e);
+			} finally {
+				// remove finished task; schedule the next one if present
+				final boolean[] more = new boolean[1];
+				queues.computeIfPresent(key, (k, q) -> {
+					q.tasks.poll();
+					more[0] = !q.tasks.isEmpty();
+					return more[0] ? q : null;
+				});
+
+				if (more[0]) {
+					schedule(this);
+				}
+			}
+		}
+	}
+
+	public OrderedExecutor(String name, int threads, int queueCapacity) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads,
+				60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(queueCapacity),
+				r -> {
+					Thread t = new Thread(r,
+							name + '-' + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				},
+				(r, e) -> r.run());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	public void execute(Object key, Runnable task) {
+		final boolean[] start = new boolean[1];
+		final TaskQueue queue = queues.compute(key, (k, q) -> {
+			TaskQueue taskQueue = q;
+			if (taskQueue == null) {
+				taskQueue = new TaskQueue(k);
+				start[0] = true;
+			}
+			taskQueue.tasks.add(task);
+			return taskQueue;
+		});
+
+		if (start[0]) {
+			schedule(queue);
+		}
+	}
+
+	/**
+	 * Stops accepting new work in the pool and waits for running tasks.
+	 * Tasks submitted afterwards run in the submitting thread.
+	 */
+	public void shutdown(long timeout, TimeUnit unit)
+		throws InterruptedException {
+
+		executor.shutdown();
+		if (!executor.awaitTermination(timeout, unit)) {
+			LOG.log(Level.INFO, "Failed to terminate callback threads");
+		}
+	}
+
+	private void schedule(TaskQueue queue) {
+		executor.execute(queue);
+	}
+}
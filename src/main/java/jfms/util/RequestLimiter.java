@@ -12,8 +12,21 @@ public class RequestLimiter {
 
 	private final Lock lock = new ReentrantLock();
 	private final Condition cond = lock.newCondition();
+	private final AdaptiveLimit limit;
 	private volatile int pendingRequests = 0;
 
+	public RequestLimiter() {
+		this(null);
+	}
+
+	/**
+	 * @param limit limit used by {@link #waitUntilReady()}, updated with
+	 * the round-trip times passed to {@link #requestDone(long, boolean)}
+	 */
+	public RequestLimiter(AdaptiveLimit limit) {
+		this.limit = limit;
+	}
+
 	public void addRequest() {
 		lock.lock();
 		try {
@@ -33,6 +46,61 @@ public class RequestLimiter {
 		}
 	}
 
+	/**
+	 * Marks a request as done and updates the limit.
+	 * @param rttNanos time since the request was sent
+	 * @param dropped whether the request failed because of overload
+	 */
+	public void requestDone(long rttNanos, boolean dropped) {
+		lock.lock();
+		try {
+			if (limit != null) {
+				limit.addSample(rttNanos, pendingRequests, dropped);
+			}
+			pendingRequests--;
+			cond.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of requests that can be added without exceeding
+	 * the current limit
+	 */
+	public int getAvailable() {
+		if (limit == null) {
+			throw new IllegalStateException("no limit set");
+		}
+
+		lock.lock();
+		try {
+			return Math.max(0, limit.getLimit() - pendingRequests);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until fewer requests than the current limit are pending.
+	 */
+	public void waitUntilReady() throws InterruptedException {
+		if (limit == null) {
+			throw new IllegalStateException("no limit set");
+		}
+
+		lock.lock();
+		try {
+			while (pendingRequests >= limit.getLimit()) {
+				LOG.log(Level.FINEST, "requests pending: {0}/{1}", new Object[]{
+						pendingRequests, limit.getLimit()});
+				cond.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	public void waitUntilReady(int maxRequests) throws InterruptedException {
 		lock.lock();
 		try {
@@ -0,0 +1,322 @@
+package jfms.fcp;
+
+import java.nio.charset.StandardCharsets;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import jfms.config.Constants;
+
+public class FcpClientTest {
+	private static final String SSK =
+		"SSK@abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQ,"
+		+ "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQ,AQACAAE/";
+	private static final String USK = "USK" + SSK.substring(3);
+
+	private FcpNodeSimulator node;
+	private FcpClient client;
+	private final Listener listener = new Listener();
+	private final List<FcpClient.Status> statusChanges =
+		new CopyOnWriteArrayList<>();
+
+	private static class Listener implements FcpListener {
+		private final Map<String, CompletableFuture<String>> results =
+			new ConcurrentHashMap<>();
+
+		public String await(String identifier) throws Exception {
+			return result(identifier).get(10, TimeUnit.SECONDS);
+		}
+
+		private CompletableFuture<String> result(String identifier) {
+			return results.computeIfAbsent(identifier,
+					k -> new CompletableFuture<>());
+		}
+
+		@Override
+		public void error(String fcpIdentifier, int code) {
+			result(fcpIdentifier).complete("error:" + code);
+		}
+
+		@Override
+		public void redirect(String fcpIdentifier, String redirectURI) {
+			result(fcpIdentifier).complete("redirect:" + redirectURI);
+		}
+
+		@Override
+		public void finished(String fcpIdentifier, byte[] data) {
+			result(fcpIdentifier).complete(
+					new String(data, StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public void putSuccessful(String fcpIdentifier, String key) {
+			result(fcpIdentifier).complete("put:" + key);
+		}
+
+		@Override
+		public void keyPairGenerated(String fcpIdentifier, String publicKey,
+				String privateKey) {
+			result(fcpIdentifier).complete("ssk:" + publicKey);
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		node = new FcpNodeSimulator();
+		node.setLatency(1, 5, TimeUnit.MILLISECONDS);
+
+		client = new FcpClient("test", "127.0.0.1", node.getPort());
+		client.setStatusListener(statusChanges::add);
+		client.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.shutdown();
+		node.close();
+	}
+
+	@Test
+	public void testRequest() throws Exception {
+		node.putData(SSK + "test.xml", "hello".getBytes(StandardCharsets.UTF_8));
+
+		client.requestKey("get-1", SSK + "test.xml", listener, 0);
+		client.requestKey("get-2", SSK + "missing.xml", listener, 60);
+
+		Assert.assertEquals("hello", listener.await("get-1"));
+		Assert.assertEquals("error:" + FcpNodeSimulator.CODE_DATA_NOT_FOUND,
+				listener.await("get-2"));
+
+		// failed key is cached and not requested again
+		for (int i=0; i<100; i++) {
+			if (client.isRecentlyFailed(SSK + "missing.xml")) {
+				break;
+			}
+			Thread.sleep(10);
+		}
+		Assert.assertTrue(RecentlyFailedException.isRecentlyFailed(
+					client.requestKey("get-3", SSK + "missing.xml",
+						listener, 60)));
+		Assert.assertEquals(2, node.getGetCount());
+	}
+
+	@Test
+	public void testUskRedirect() throws Exception {
+		node.putData(USK + "list/3/list.xml", new byte[]{'x'});
+
+		client.requestKey("get-1", USK + "list/1/list.xml", listener, 0);
+		Assert.assertEquals("redirect:" + USK + "list/3/list.xml",
+				listener.await("get-1"));
+	}
+
+	@Test
+	public void testInsertAndRequest() throws Exception {
+		client.insertKey("put-1", SSK + "insert.xml",
+				"inserted".getBytes(StandardCharsets.UTF_8), listener);
+		Assert.assertEquals("put:" + SSK + "insert.xml",
+				listener.await("put-1"));
+
+		FcpDirectoryEntry[] files = {
+			new FcpDirectoryEntry("a.xml", new byte[]{'a'}),
+			new FcpDirectoryEntry("b.xml", new byte[]{'b', 'b'})
+		};
+		client.insertDirectory("put-2", USK + "dir/0/", files, "a.xml",
+				listener, null);
+		Assert.assertEquals("put:" + USK + "dir/0/", listener.await("put-2"));
+
+		client.requestKey("get-1", SSK + "insert.xml", listener, 0);
+		client.requestKey("get-2", USK + "dir/0/b.xml", listener, 0);
+		Assert.assertEquals("inserted", listener.await("get-1"));
+		Assert.assertEquals("bb", listener.await("get-2"));
+	}
+
+	@Test
+	public void testGenerateKeyPair() throws Exception {
+		client.generateKeyPair("ssk-1", listener);
+		Assert.assertTrue(listener.await("ssk-1").startsWith("ssk:SSK@"));
+	}
+
+	@Test
+	public void testRequestWithoutConnection() throws Exception {
+		final FcpClient idle = new FcpClient("idle", "127.0.0.1",
+				node.getPort());
+		Assert.assertFalse(idle.isRunning());
+
+		// the request is dropped instead of waiting for a timeout
+		final CompletableFuture<Void> future = idle.requestKey("get-1",
+				SSK + "test.xml", listener, 60, null, 0, "TEST");
+		Assert.assertTrue(future.isCompletedExceptionally());
+		Assert.assertFalse(RecentlyFailedException.isRecentlyFailed(future));
+		Assert.assertTrue(idle.getListenerMap().isEmpty());
+		Assert.assertEquals(0, idle.getMetrics().getInFlight());
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		node.putData(SSK + "test.xml", new byte[100]);
+
+		client.requestKey("get-1", SSK + "test.xml", listener, 0,
+				null, 0, "TEST");
+		listener.await("get-1");
+
+		FcpMetrics.RequestClassMetrics metrics =
+			client.getMetrics().getRequestClass("TEST");
+		Assert.assertEquals(100, metrics.getPayloadBytes());
+		Assert.assertEquals(1, metrics.getLatency(FcpMetrics.CODE_SUCCESS)
+				.getCount());
+		Assert.assertEquals(0, client.getMetrics().getInFlight());
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		node.putData(SSK + "slow.xml", new byte[]{'x'});
+		node.setLatency(5, 5, TimeUnit.SECONDS);
+		client.setRequestTimeout("TEST", Duration.ofSeconds(1));
+
+		client.requestKey("get-1", SSK + "slow.xml", listener, 0,
+				null, 0, "TEST");
+		Assert.assertEquals("error:" + Constants.CODE_TIMEOUT,
+				listener.await("get-1"));
+		Assert.assertEquals(0, client.getMetrics().getInFlight());
+	}
+
+	@Test
+	public void testReconnect() throws Exception {
+		node.putData(SSK + "test.xml", "hello".getBytes(StandardCharsets.UTF_8));
+		node.setLatency(500, 500, TimeUnit.MILLISECONDS);
+
+		client.requestKey("get-1", SSK + "test.xml", listener, 0);
+		Thread.sleep(100);
+		node.disconnectClients();
+		node.setLatency(1, 5, TimeUnit.MILLISECONDS);
+
+		// request is sent again after the connection is restored
+		Assert.assertEquals("hello", listener.await("get-1"));
+		Assert.assertEquals(2, node.getGetCount());
+		Assert.assertTrue(statusChanges.contains(FcpClient.Status.RECONNECTING));
+		Assert.assertFalse(statusChanges.contains(FcpClient.Status.DISCONNECTED));
+		Assert.assertEquals(0, client.getMetrics().getInFlight());
+	}
+
+	@Test
+	public void testSubscribeUSK() throws Exception {
+		final Map<String, CompletableFuture<Long>> editions =
+			new ConcurrentHashMap<>();
+		editions.put("sub-1", new CompletableFuture<>());
+		node.putData(USK + "list/2/list.xml", new byte[]{'x'});
+
+		client.subscribeUSK("sub-1", USK + "list/0", (id, uri, edition) -> {
+			if (edition == 2) {
+				editions.get(id).complete(edition);
+			} else if (edition == 5) {
+				editions.get("sub-2").complete(edition);
+			}
+		});
+		Assert.assertEquals(2, (long)editions.get("sub-1")
+				.get(10, TimeUnit.SECONDS));
+
+		// new editions are pushed without further requests
+		editions.put("sub-2", new CompletableFuture<>());
+		node.putData(USK + "list/5/list.xml", new byte[]{'x'});
+		Assert.assertEquals(5, (long)editions.get("sub-2")
+				.get(10, TimeUnit.SECONDS));
+		Assert.assertEquals(0, node.getGetCount());
+
+		client.unsubscribeUSK("sub-1");
+	}
+
+	@Test
+	public void testMaxOutstandingRequests() throws Exception {
+		node.putData(SSK + "bulk.xml", new byte[]{'b'});
+		node.putData(SSK + "message.xml", new byte[]{'m'});
+		node.setLatency(200, 200, TimeUnit.MILLISECONDS);
+		client.setMaxOutstandingRequests(1);
+
+		client.requestKey("get-1", SSK + "bulk.xml", listener, 0, null, 4);
+		client.requestKey("get-2", SSK + "bulk.xml", listener, 0, null, 4);
+		client.requestKey("get-3", SSK + "message.xml", listener, 0, null, 1);
+
+		// higher priority class is sent as soon as the first request is done
+		Assert.assertEquals("m", listener.await("get-3"));
+		Assert.assertFalse(listener.result("get-2").isDone());
+		Assert.assertEquals("b", listener.await("get-2"));
+		Assert.assertEquals("b", listener.await("get-1"));
+		Assert.assertEquals(0, client.getQueuedRequestCount());
+
+		// time spent in the send queue is not part of the latency
+		final Histogram latency = client.getMetrics()
+			.getRequestClass(FcpMetrics.DEFAULT_REQUEST_CLASS)
+			.getLatency(FcpMetrics.CODE_SUCCESS);
+		Assert.assertEquals(3, latency.getCount());
+		Assert.assertTrue(latency.getMax() < 400000);
+	}
+
+	@Test
+	public void testPoolStatus() throws Exception {
+		final List<FcpClient.Status> poolChanges = new CopyOnWriteArrayList<>();
+		final FcpClientPool pool = new FcpClientPool("test", "127.0.0.1",
+				node.getPort(), 3);
+		pool.setStatusListener(poolChanges::add);
+		try {
+			pool.start();
+			Assert.assertEquals(Arrays.asList(FcpClient.Status.CONNECTED),
+					poolChanges);
+		} finally {
+			pool.shutdown();
+		}
+
+		// a failed start is reported once
+		final int closedPort;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			closedPort = socket.getLocalPort();
+		}
+		final FcpClientPool failingPool = new FcpClientPool("test",
+				"127.0.0.1", closedPort, 2);
+		failingPool.setStatusListener(poolChanges::add);
+		poolChanges.clear();
+		try {
+			failingPool.start();
+			Assert.fail("start succeeded");
+		} catch (FcpException e) {
+			Assert.assertEquals(Arrays.asList(FcpClient.Status.CONNECT_FAILED),
+					poolChanges);
+		}
+	}
+
+	@Test
+	public void testPoolRequestLimit() throws Exception {
+		node.putData(SSK + "test.xml", "hello".getBytes(StandardCharsets.UTF_8));
+		node.setLatency(200, 200, TimeUnit.MILLISECONDS);
+		final FcpClientPool pool = new FcpClientPool("test", "127.0.0.1",
+				node.getPort(), 2);
+		pool.setStatusListener(s -> {});
+		try {
+			pool.start();
+			pool.setMaxOutstandingRequests(1);
+
+			// the limit holds for all connections together
+			final long start = System.nanoTime();
+			for (int i=0; i<3; i++) {
+				pool.requestKey("get-" + i, SSK + "test.xml", listener, 0);
+			}
+			for (int i=0; i<3; i++) {
+				Assert.assertEquals("hello", listener.await("get-" + i));
+			}
+			Assert.assertTrue(System.nanoTime() - start >=
+					TimeUnit.MILLISECONDS.toNanos(550));
+			Assert.assertEquals(0, pool.getQueuedRequestCount());
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,756 @@
+package jfms.fcp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stand-in for a Freenet node speaking a subset of FCP 2.0.
+ * Supported messages are ClientHello, ClientGet (ReturnType=direct),
+ * ClientPut and ClientPutComplexDir (UploadFrom=direct), GenerateSSK,
+ * RemoveRequest, SubscribeUSK and UnsubscribeUSK.
+ *
+ * Content is kept in memory. Inserted data can be requested afterwards.
+ * USK requests for a missing edition are redirected to the next newer
+ * edition, like the node does for USK updates. Subscribers are notified
+ * when a newer edition of a USK is stored. Latency, random failures
+ * and failures for individual keys can be configured.
+ *
+ * The simulator listens on an ephemeral port on the loopback interface;
+ * use {@link #getPort()} to connect.
+ */
+public class FcpNodeSimulator implements Closeable {
+	private static final Logger LOG = Logger.getLogger(FcpNodeSimulator.class.getName());
+
+	// FRED FetchException codes
+	public static final int CODE_TOO_BIG = 21;
+	public static final int CODE_DATA_NOT_FOUND = 13;
+	public static final int CODE_PERMANENT_REDIRECT = 27;
+	public static final int CODE_ALL_DATA_NOT_FOUND = 28;
+
+	private static final String KEY_CHARS =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789~-";
+	private static final int MAX_LINE_LENGTH = 65536;
+
+	private final ServerSocket serverSocket;
+	private final Thread acceptThread;
+	private final ScheduledExecutorService scheduler;
+	private final List<Connection> connections = new CopyOnWriteArrayList<>();
+
+	private final Map<String, byte[]> content = new ConcurrentHashMap<>();
+	private final Map<String, NavigableSet<Long>> uskEditions =
+		new ConcurrentHashMap<>();
+	private final Map<String, Integer> keyFailures = new ConcurrentHashMap<>();
+	private final Map<String, String> redirects = new ConcurrentHashMap<>();
+	private final Map<String, Long> latestEditions = new ConcurrentHashMap<>();
+	private final List<UskSubscription> subscriptions =
+		new CopyOnWriteArrayList<>();
+
+	private volatile long minLatency;
+	private volatile long maxLatency;
+	private volatile double failureRate;
+	private volatile int failureCode = CODE_ALL_DATA_NOT_FOUND;
+
+	private final AtomicLong getCount = new AtomicLong();
+	private final AtomicLong getSuccessCount = new AtomicLong();
+	private final AtomicLong putCount = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	private static class UskSubscription {
+		private final Connection connection;
+		private final String identifier;
+		private final String base;
+		private long edition;
+
+		public UskSubscription(Connection connection, String identifier,
+				String base, long edition) {
+			this.connection = connection;
+			this.identifier = identifier;
+			this.base = base;
+			this.edition = edition;
+		}
+	}
+
+	private class Connection implements Runnable {
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private final Set<String> removedRequests =
+			ConcurrentHashMap.newKeySet();
+
+		public Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final String name = readLine();
+					if (name == null) {
+						break;
+					}
+					if (name.isEmpty()) {
+						continue;
+					}
+
+					final Map<String, String> fields = readFields();
+					handleMessage(this, name, fields);
+				}
+			} catch (SocketException|EOFException e) {
+				LOG.log(Level.FINEST, "FCP client disconnected");
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Failed to read from FCP client", e);
+			}
+
+			close();
+		}
+
+		public void close() {
+			connections.remove(this);
+			subscriptions.removeIf(s -> s.connection == this);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				LOG.log(Level.FINEST, "Failed to close socket", e);
+			}
+		}
+
+		public void send(String header, byte[] data) {
+			final byte[] headerBytes = header.getBytes(StandardCharsets.UTF_8);
+			try {
+				synchronized (out) {
+					out.write(headerBytes);
+					if (data != null) {
+						out.write(data);
+					}
+					out.flush();
+				}
+				bytesSent.addAndGet(headerBytes.length +
+						(data != null ? data.length : 0));
+			} catch (IOException e) {
+				LOG.log(Level.FINEST, "Failed to send FCP response", e);
+				close();
+			}
+		}
+
+		public boolean isRemoved(String identifier) {
+			return removedRequests.remove(identifier);
+		}
+
+		public void setRemoved(String identifier) {
+			removedRequests.add(identifier);
+		}
+
+		public byte[] readData(long length) throws IOException {
+			if (length < 0 || length > Integer.MAX_VALUE) {
+				throw new IOException("invalid DataLength: " + length);
+			}
+
+			final byte[] data = new byte[(int)length];
+			int offset = 0;
+			while (offset < data.length) {
+				final int bytesRead = in.read(data, offset,
+						data.length - offset);
+				if (bytesRead < 0) {
+					throw new EOFException();
+				}
+				offset += bytesRead;
+			}
+
+			return data;
+		}
+
+		private Map<String, String> readFields() throws IOException {
+			final Map<String, String> fields = new HashMap<>();
+			while (true) {
+				final String line = readLine();
+				if (line == null) {
+					throw new EOFException();
+				}
+				if (line.equals("EndMessage") || line.equals("Data")) {
+					return fields;
+				}
+
+				final int separator = line.indexOf('=');
+				if (separator > 0) {
+					fields.put(line.substring(0, separator),
+							line.substring(separator + 1));
+				}
+			}
+		}
+
+		private String readLine() throws IOException {
+			final ByteArrayOutputStream line = new ByteArrayOutputStream();
+			while (true) {
+				final int b = in.read();
+				if (b < 0) {
+					return line.size() > 0 ? line.toString("UTF-8") : null;
+				}
+				if (b == '\n') {
+					return line.toString("UTF-8");
+				}
+				if (line.size() >= MAX_LINE_LENGTH) {
+					throw new IOException("line too long");
+				}
+				line.write(b);
+			}
+		}
+	}
+
+	public FcpNodeSimulator() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		scheduler = Executors.newScheduledThreadPool(2, r -> {
+			Thread t = new Thread(r,
+					"FcpNodeSimulator-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		acceptThread = new Thread(this::acceptConnections,
+				"FcpNodeSimulator-accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Sets the delay between receiving a request and sending the final
+	 * response. The delay is chosen uniformly from [min, max].
+	 */
+	public void setLatency(long min, long max, TimeUnit unit) {
+		minLatency = unit.toMillis(min);
+		maxLatency = Math.max(minLatency, unit.toMillis(max));
+	}
+
+	/**
+	 * Lets a fraction of all ClientGet requests fail, even if the data is
+	 * available.
+	 * @param failureRate probability of failure in the range [0, 1]
+	 * @param code FetchException code sent in GetFailed
+	 */
+	public void setFailureRate(double failureRate, int code) {
+		this.failureRate = failureRate;
+		this.failureCode = code;
+	}
+
+	/**
+	 * Stores data that can be retrieved with ClientGet.
+	 * For USKs, the edition is registered for redirects.
+	 */
+	public void putData(String uri, byte[] data) {
+		content.put(uri, data);
+
+		final UskKey usk = UskKey.parse(uri);
+		if (usk != null) {
+			uskEditions.computeIfAbsent(usk.getSite(),
+					k -> new ConcurrentSkipListSet<>())
+				.add(usk.getEdition());
+			latestEditions.merge(usk.getBase(), usk.getEdition(), Math::max);
+			for (UskSubscription s : subscriptions) {
+				if (s.base.equals(usk.getBase())) {
+					notifySubscriber(s, usk.getEdition());
+				}
+			}
+		}
+	}
+
+	public byte[] getData(String uri) {
+		return content.get(uri);
+	}
+
+	public int getDataCount() {
+		return content.size();
+	}
+
+	/**
+	 * Lets all ClientGet requests for the URI fail.
+	 */
+	public void setKeyFailure(String uri, int code) {
+		keyFailures.put(uri, code);
+	}
+
+	/**
+	 * Answers ClientGet requests for the URI with a redirect.
+	 */
+	public void setRedirect(String uri, String redirectURI) {
+		redirects.put(uri, redirectURI);
+	}
+
+	public long getGetCount() {
+		return getCount.get();
+	}
+
+	public long getGetSuccessCount() {
+		return getSuccessCount.get();
+	}
+
+	public long getPutCount() {
+		return putCount.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Closes all client connections. Data is kept.
+	 */
+	public void disconnectClients() {
+		for (Connection connection : connections) {
+			connection.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+		disconnectClients();
+		scheduler.shutdownNow();
+	}
+
+	private void acceptConnections() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				final Connection connection = new Connection(socket);
+				connections.add(connection);
+
+				final Thread t = new Thread(connection,
+						"FcpNodeSimulator-connection");
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					LOG.log(Level.WARNING, "Failed to accept connection", e);
+				}
+			}
+		}
+	}
+
+	private void handleMessage(Connection connection, String name,
+			Map<String, String> fields) throws IOException {
+
+		LOG.log(Level.FINEST, "[SIM] received {0}", name);
+
+		switch (name) {
+		case "ClientHello":
+			connection.send("NodeHello\n"
+					+ "FCPVersion=2.0\n"
+					+ "Node=Fred\n"
+					+ "Version=Fred,0.7,1.0,1484\n"
+					+ "Build=1484\n"
+					+ "Revision=simulator\n"
+					+ "ConnectionIdentifier=" + randomKey(16) + "\n"
+					+ "EndMessage\n", null);
+			break;
+		case "ClientGet":
+			handleClientGet(connection, fields);
+			break;
+		case "ClientPut":
+			handleClientPut(connection, fields);
+			break;
+		case "ClientPutComplexDir":
+			handleClientPutComplexDir(connection, fields);
+			break;
+		case "GenerateSSK":
+			handleGenerateSSK(connection, fields);
+			break;
+		case "SubscribeUSK":
+			handleSubscribeUSK(connection, fields);
+			break;
+		case "UnsubscribeUSK":
+			final String subscriptionId = fields.get("Identifier");
+			subscriptions.removeIf(s -> s.connection == connection &&
+					s.identifier.equals(subscriptionId));
+			break;
+		case "RemoveRequest":
+			final String identifier = fields.get("Identifier");
+			connection.setRemoved(identifier);
+			connection.send("PersistentRequestRemoved\n"
+					+ "Identifier=" + identifier + "\n"
+					+ "Global=false\n"
+					+ "EndMessage\n", null);
+			break;
+		default:
+			LOG.log(Level.INFO, "[SIM] ignoring unsupported message {0}",
+					name);
+			break;
+		}
+	}
+
+	private void handleClientGet(Connection connection,
+			Map<String, String> fields) {
+
+		getCount.incrementAndGet();
+
+		final String identifier = fields.get("Identifier");
+		final String uri = fields.get("URI");
+		final long maxSize = parseLong(fields.get("MaxSize"), Long.MAX_VALUE);
+
+		final String response;
+		byte[] data = null;
+
+		final Integer keyFailure = keyFailures.get(uri);
+		final String redirect = redirects.get(uri);
+		if (keyFailure != null) {
+			response = getFailed(identifier, keyFailure, null);
+		} else if (redirect != null) {
+			response = getFailed(identifier, CODE_PERMANENT_REDIRECT,
+					redirect);
+		} else if (failureRate > 0 &&
+				ThreadLocalRandom.current().nextDouble() < failureRate) {
+			response = getFailed(identifier, failureCode, null);
+		} else {
+			data = content.get(uri);
+			if (data == null) {
+				final String newerURI = findNewerEdition(uri);
+				if (newerURI != null) {
+					response = getFailed(identifier, CODE_PERMANENT_REDIRECT,
+							newerURI);
+				} else {
+					response = getFailed(identifier, CODE_DATA_NOT_FOUND,
+							null);
+				}
+			} else if (data.length > maxSize) {
+				response = getFailed(identifier, CODE_TOO_BIG, null);
+				data = null;
+			} else {
+				getSuccessCount.incrementAndGet();
+				response = "AllData\n"
+					+ "Identifier=" + identifier + "\n"
+					+ "Global=false\n"
+					+ "DataLength=" + data.length + "\n"
+					+ "Data\n";
+			}
+		}
+
+		final byte[] payload = data;
+		respondLater(connection, identifier, () ->
+				connection.send(response, payload));
+	}
+
+	private void handleClientPut(Connection connection,
+			Map<String, String> fields) throws IOException {
+
+		putCount.incrementAndGet();
+
+		final String identifier = fields.get("Identifier");
+		String uri = fields.get("URI");
+		byte[] data = new byte[0];
+		if ("direct".equals(fields.get("UploadFrom"))) {
+			data = connection.readData(
+					parseLong(fields.get("DataLength"), -1));
+		}
+
+		if (uri.startsWith("CHK@")) {
+			uri = "CHK@" + randomKey(43) + ',' + randomKey(43) + ",AAMC--8";
+		}
+		putData(uri, data);
+
+		final String response = putSuccessful(identifier, uri);
+		respondLater(connection, identifier, () ->
+				connection.send(response, null));
+	}
+
+	private void handleClientPutComplexDir(Connection connection,
+			Map<String, String> fields) throws IOException {
+
+		putCount.incrementAndGet();
+
+		final String identifier = fields.get("Identifier");
+		final String uri = fields.get("URI");
+		final String baseURI = uri.endsWith("/") ? uri : uri + '/';
+
+		final List<String> names = new ArrayList<>();
+		final List<byte[]> files = new ArrayList<>();
+		for (int i=0; fields.containsKey("Files." + i + ".Name"); i++) {
+			final String prefix = "Files." + i + '.';
+			names.add(fields.get(prefix + "Name"));
+			if ("direct".equals(fields.get(prefix + "UploadFrom"))) {
+				files.add(null);
+			} else {
+				files.add(new byte[0]);
+			}
+		}
+
+		// payloads of all direct uploads follow the header in order
+		for (int i=0; i<names.size(); i++) {
+			if (files.get(i) == null) {
+				final long length = parseLong(
+						fields.get("Files." + i + ".DataLength"), -1);
+				files.set(i, connection.readData(length));
+			}
+		}
+
+		for (int i=0; i<names.size(); i++) {
+			putData(baseURI + names.get(i), files.get(i));
+		}
+
+		final String response = putSuccessful(identifier, uri);
+		respondLater(connection, identifier, () ->
+				connection.send(response, null));
+	}
+
+	private void handleGenerateSSK(Connection connection,
+			Map<String, String> fields) {
+
+		final String routingKey = randomKey(43);
+		final String cryptoKey = randomKey(43);
+		final String response = "SSKKeypair\n"
+			+ "Identifier=" + fields.get("Identifier") + "\n"
+			+ "InsertURI=SSK@" + randomKey(43) + ',' + cryptoKey
+			+ ",AQECAAE/\n"
+			+ "RequestURI=SSK@" + routingKey + ',' + cryptoKey
+			+ ",AQACAAE/\n"
+			+ "EndMessage\n";
+
+		connection.send(response, null);
+	}
+
+	private void handleSubscribeUSK(Connection connection,
+			Map<String, String> fields) {
+
+		final String identifier = fields.get("Identifier");
+		final String uri = fields.get("URI");
+		final UskKey usk = UskKey.parse(uri);
+		if (usk == null) {
+			connection.send("ProtocolError\n"
+					+ "Identifier=" + identifier + "\n"
+					+ "Code=4\n"
+					+ "Fatal=false\n"
+					+ "EndMessage\n", null);
+			return;
+		}
+
+		final UskSubscription subscription = new UskSubscription(connection,
+				identifier, usk.getBase(), usk.getEdition() - 1);
+		subscriptions.add(subscription);
+		connection.send("SubscribedUSK\n"
+				+ "Identifier=" + identifier + "\n"
+				+ "URI=" + uri + "\n"
+				+ "DontPoll=false\n"
+				+ "EndMessage\n", null);
+
+		final Long latest = latestEditions.get(usk.getBase());
+		if (latest != null) {
+			notifySubscriber(subscription, latest);
+		}
+	}
+
+	private void notifySubscriber(UskSubscription subscription, long edition) {
+		synchronized (subscription) {
+			if (edition <= subscription.edition) {
+				return;
+			}
+			subscription.edition = edition;
+		}
+
+		subscription.connection.send("SubscribedUSKUpdate\n"
+				+ "Identifier=" + subscription.identifier + "\n"
+				+ "Edition=" + edition + "\n"
+				+ "URI=USK@" + subscription.base.substring(4) + '/' + edition
+				+ "\n"
+				+ "NewKnownGood=true\n"
+				+ "NewSlotToo=true\n"
+				+ "EndMessage\n", null);
+	}
+
+	private void respondLater(Connection connection, String identifier,
+			Runnable response) {
+
+		final Runnable task = () -> {
+			if (!connection.isRemoved(identifier)) {
+				response.run();
+			}
+		};
+
+		final long min = minLatency;
+		final long max = maxLatency;
+		if (max <= 0) {
+			task.run();
+			return;
+		}
+
+		final long delay = min == max ? min :
+			ThreadLocalRandom.current().nextLong(min, max + 1);
+		scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private String findNewerEdition(String uri) {
+		final UskKey usk = UskKey.parse(uri);
+		if (usk == null) {
+			return null;
+		}
+
+		final NavigableSet<Long> editions = uskEditions.get(usk.getSite());
+		if (editions == null) {
+			return null;
+		}
+
+		for (Long edition : editions.tailSet(usk.getEdition(), false)) {
+			final String newerURI = usk.withEdition(edition);
+			if (content.containsKey(newerURI)) {
+				return newerURI;
+			}
+		}
+
+		return null;
+	}
+
+	private static String getFailed(String identifier, int code,
+			String redirectURI) {
+
+		StringBuilder str = new StringBuilder("GetFailed\n");
+		str.append("Identifier=").append(identifier).append('\n');
+		str.append("Code=").append(code).append('\n');
+		str.append("Fatal=true\n");
+		if (redirectURI != null) {
+			str.append("RedirectURI=").append(redirectURI).append('\n');
+		}
+		str.append("Global=false\n");
+		str.append("EndMessage\n");
+
+		return str.toString();
+	}
+
+	private static String putSuccessful(String identifier, String uri) {
+		return "PutSuccessful\n"
+			+ "Identifier=" + identifier + "\n"
+			+ "URI=" + uri + "\n"
+			+ "Global=false\n"
+			+ "EndMessage\n";
+	}
+
+	private static long parseLong(String value, long defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Creates a random string that is valid in the key parts of an SSK.
+	 */
+	public static String randomKey(int length) {
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final char[] key = new char[length];
+		for (int i=0; i<length; i++) {
+			key[i] = KEY_CHARS.charAt(random.nextInt(KEY_CHARS.length()));
+		}
+
+		return new String(key);
+	}
+
+	/**
+	 * USK in the form USK@keys/site/edition[/path].
+	 */
+	private static class UskKey {
+		private final String keys;
+		private final String site;
+		private final long edition;
+		private final String path;
+
+		private UskKey(String keys, String site, long edition, String path) {
+			this.keys = keys;
+			this.site = site;
+			this.edition = edition;
+			this.path = path;
+		}
+
+		public static UskKey parse(String uri) {
+			if (!uri.startsWith("USK@")) {
+				return null;
+			}
+
+			final String[] parts = uri.split("/", 4);
+			if (parts.length < 3) {
+				return null;
+			}
+
+			final long edition;
+			try {
+				edition = Long.parseLong(parts[2]);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+
+			return new UskKey(parts[0], parts[1], edition,
+					parts.length > 3 ? parts[3] : null);
+		}
+
+		/**
+		 * @return key and site name, identifies all editions of the USK
+		 */
+		public String getBase() {
+			return keys + '/' + site;
+		}
+
+		/**
+		 * @return URI without edition, identifies all editions of a file
+		 */
+		public String getSite() {
+			StringBuilder str = new StringBuilder(keys);
+			str.append('/').append(site).append("//");
+			if (path != null) {
+				str.append(path);
+			}
+
+			return str.toString();
+		}
+
+		public long getEdition() {
+			return edition;
+		}
+
+		public String withEdition(long newEdition) {
+			StringBuilder str = new StringBuilder(keys);
+			str.append('/').append(site).append('/').append(newEdition);
+			if (path != null) {
+				str.append('/').append(path);
+			}
+
+			return str.toString();
+		}
+	}
+}
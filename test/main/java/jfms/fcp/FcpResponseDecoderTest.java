@@ -0,0 +1,116 @@
+package jfms.fcp;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FcpResponseDecoderTest {
+	private static ReadableByteChannel createChannel(String str) {
+		return Channels.newChannel(new ByteArrayInputStream(
+					str.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	@Test
+	public void testGetFailed() throws Exception {
+		final String msg = "GetFailed\n"
+			+ "Code=28\n"
+			+ "Identifier=request-1.2\n"
+			+ "ShortCodeDescription=All data not found\n"
+			+ "Fatal=true\n"
+			+ "RedirectURI=USK@abc/MessageList/5/MessageList.xml\n"
+			+ "EndMessage\n";
+
+		FcpResponseDecoder decoder = new FcpResponseDecoder();
+		FcpResponse response = new FcpResponse();
+		decoder.decode(createChannel(msg), response);
+
+		Assert.assertEquals("GetFailed", response.getName());
+		Assert.assertEquals("request-1.2", response.getIdentifier());
+		Assert.assertEquals(28, response.getCode());
+		Assert.assertEquals("28", response.getField("Code"));
+		Assert.assertEquals("USK@abc/MessageList/5/MessageList.xml",
+				response.getRedirectURI());
+		Assert.assertNull(response.getField("Fatal"));
+		Assert.assertNull(response.getData());
+	}
+
+	@Test
+	public void testAllData() throws Exception {
+		final String msg = "\nAllData\n"
+			+ "Identifier=request-7\n"
+			+ "DataLength=5\n"
+			+ "Data\n"
+			+ "hello"
+			+ "PutSuccessful\n"
+			+ "Identifier=insert-3\n"
+			+ "URI=CHK@xyz\n"
+			+ "EndMessage\n";
+
+		FcpResponseDecoder decoder = new FcpResponseDecoder();
+		ReadableByteChannel channel = createChannel(msg);
+		FcpResponse response = new FcpResponse();
+
+		decoder.decode(channel, response);
+		Assert.assertEquals("AllData", response.getName());
+		Assert.assertEquals("request-7", response.getIdentifier());
+		Assert.assertEquals(5, response.getDataLength());
+		Assert.assertEquals("hello",
+				new String(response.getData(), StandardCharsets.US_ASCII));
+
+		decoder.decode(channel, response);
+		Assert.assertEquals("PutSuccessful", response.getName());
+		Assert.assertEquals("insert-3", response.getIdentifier());
+		Assert.assertEquals("CHK@xyz", response.getURI());
+		Assert.assertEquals(-1, response.getCode());
+		Assert.assertNull(response.getData());
+	}
+
+	@Test
+	public void testUnknownMessageKeepsFields() throws Exception {
+		final String msg = "NodeHello\n"
+			+ "FCPVersion=2.0\n"
+			+ "Revision=build01480\n"
+			+ "EndMessage\n";
+
+		FcpResponseDecoder decoder = new FcpResponseDecoder();
+		FcpResponse response = new FcpResponse();
+		decoder.decode(createChannel(msg), response);
+
+		Assert.assertEquals("NodeHello", response.getName());
+		Assert.assertEquals("build01480", response.getField("Revision"));
+		Assert.assertEquals("2.0", response.getField("FCPVersion"));
+	}
+
+	@Test
+	public void testLargePayload() throws Exception {
+		StringBuilder payload = new StringBuilder();
+		for (int i=0; i<3000; i++) {
+			payload.append(i % 10);
+		}
+		final String msg = "AllData\n"
+			+ "Identifier=request-1\n"
+			+ "DataLength=" + payload.length() + "\n"
+			+ "Data\n"
+			+ payload;
+
+		FcpResponseDecoder decoder = new FcpResponseDecoder();
+		FcpResponse response = new FcpResponse();
+		decoder.decode(createChannel(msg), response);
+
+		Assert.assertEquals(payload.toString(),
+				new String(response.getData(), StandardCharsets.US_ASCII));
+	}
+
+	@Test(expected = FcpException.class)
+	public void testDataLengthMissing() throws Exception {
+		final String msg = "AllData\n"
+			+ "Identifier=request-1\n"
+			+ "Data\n";
+
+		FcpResponseDecoder decoder = new FcpResponseDecoder();
+		decoder.decode(createChannel(msg), new FcpResponse());
+	}
+}
@@ -0,0 +1,131 @@
+package jfms.fcp;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FcpSessionReplayTest {
+	private static final String SSK =
+		"SSK@abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQ,"
+		+ "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQ,AQACAAE/";
+	private static final String USK = "USK" + SSK.substring(3);
+
+	private Path recording;
+
+	private static class Listener implements FcpListener {
+		private final Map<String, CompletableFuture<String>> results =
+			new ConcurrentHashMap<>();
+
+		public String await(String identifier) throws Exception {
+			return result(identifier).get(10, TimeUnit.SECONDS);
+		}
+
+		private CompletableFuture<String> result(String identifier) {
+			return results.computeIfAbsent(identifier,
+					k -> new CompletableFuture<>());
+		}
+
+		@Override
+		public void error(String fcpIdentifier, int code) {
+			result(fcpIdentifier).complete("error:" + code);
+		}
+
+		@Override
+		public void redirect(String fcpIdentifier, String redirectURI) {
+			result(fcpIdentifier).complete("redirect:" + redirectURI);
+		}
+
+		@Override
+		public void finished(String fcpIdentifier, byte[] data) {
+			result(fcpIdentifier).complete(
+					new String(data, StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public void putSuccessful(String fcpIdentifier, String key) {
+			result(fcpIdentifier).complete("put:" + key);
+		}
+
+		@Override
+		public void keyPairGenerated(String fcpIdentifier, String publicKey,
+				String privateKey) {
+			result(fcpIdentifier).complete("ssk:" + publicKey);
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		recording = Files.createTempFile("fcp-session", ".rec");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(recording);
+	}
+
+	@Test
+	public void testRecordAndReplay() throws Exception {
+		final Listener recorded = new Listener();
+		try (FcpNodeSimulator node = new FcpNodeSimulator()) {
+			node.setLatency(1, 5, TimeUnit.MILLISECONDS);
+			node.putData(SSK + "test.xml", "hello".getBytes(StandardCharsets.UTF_8));
+			node.putData(USK + "list/3/list.xml", new byte[]{'x'});
+
+			final FcpClient client = new FcpClient("record", "127.0.0.1",
+					node.getPort());
+			client.setStatusListener(status -> {});
+			client.setSessionRecordFile(recording);
+			client.start();
+			client.requestKey("get-1", SSK + "test.xml", recorded, 0);
+			client.requestKey("get-2", SSK + "missing.xml", recorded, 0);
+			client.requestKey("get-3", USK + "list/1/list.xml", recorded, 0);
+			client.insertKey("put-1", SSK + "insert.xml",
+					"inserted".getBytes(StandardCharsets.UTF_8), recorded);
+			recorded.await("get-1");
+			recorded.await("get-2");
+			recorded.await("get-3");
+			recorded.await("put-1");
+			client.shutdown();
+			client.setSessionRecordFile(null);
+		}
+
+		final Listener replayed = new Listener();
+		try (FcpSessionReplay replay = new FcpSessionReplay(recording,
+					FcpSessionReplay.Pacing.ORIGINAL)) {
+			final FcpClient client = new FcpClient("replay", "127.0.0.1",
+					replay.getPort());
+			client.setStatusListener(status -> {});
+			client.start();
+
+			// identifiers differ from the recording
+			client.requestKey("replay-1", SSK + "test.xml", replayed, 0);
+			client.requestKey("replay-2", SSK + "missing.xml", replayed, 0);
+			client.requestKey("replay-3", USK + "list/1/list.xml", replayed, 0);
+			client.insertKey("replay-4", SSK + "insert.xml",
+					"inserted".getBytes(StandardCharsets.UTF_8), replayed);
+			client.requestKey("replay-5", SSK + "unknown.xml", replayed, 0);
+
+			Assert.assertEquals(recorded.await("get-1"),
+					replayed.await("replay-1"));
+			Assert.assertEquals(recorded.await("get-2"),
+					replayed.await("replay-2"));
+			Assert.assertEquals(recorded.await("get-3"),
+					replayed.await("replay-3"));
+			Assert.assertEquals(recorded.await("put-1"),
+					replayed.await("replay-4"));
+			Assert.assertTrue(replayed.await("replay-5").startsWith("error:"));
+			Assert.assertEquals(4, replay.getMatchedCount());
+			Assert.assertEquals(1, replay.getUnmatchedCount());
+
+			client.shutdown();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package jfms.fcp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+	@Test
+	public void testBucketBounds() {
+		for (long v : new long[]{0, 1, 31, 32, 33, 63, 64, 1000, 123456789,
+				Long.MAX_VALUE}) {
+			final long upper = Histogram.bucketUpperBound(
+					Histogram.bucketIndex(v));
+			Assert.assertTrue(upper >= v);
+			Assert.assertTrue(upper - v <= v / 32);
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		Histogram histogram = new Histogram();
+		for (int i=1; i<=1000; i++) {
+			histogram.record(i);
+		}
+
+		Assert.assertEquals(1000, histogram.getCount());
+		Assert.assertEquals(1000, histogram.getMax());
+		Assert.assertEquals(500.5, histogram.getMean(), 0.001);
+
+		final long median = histogram.getValueAtPercentile(50);
+		Assert.assertTrue(median >= 500 && median <= 500 + 500 / 32);
+		Assert.assertEquals(1000, histogram.getValueAtPercentile(100));
+		Assert.assertEquals(1, histogram.getValueAtPercentile(0));
+	}
+
+	@Test
+	public void testEmpty() {
+		Histogram histogram = new Histogram();
+		Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+		Assert.assertEquals(0, histogram.getMean(), 0);
+	}
+}
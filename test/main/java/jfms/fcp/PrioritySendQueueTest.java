@@ -0,0 +1,109 @@
+package jfms.fcp;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrioritySendQueueTest {
+	@Test
+	public void testControlFirst() {
+		PrioritySendQueue<String> queue = new PrioritySendQueue<>();
+		queue.add("get", 0);
+		queue.add("remove", PrioritySendQueue.CONTROL);
+
+		Assert.assertEquals("remove", queue.peek(true));
+		Assert.assertEquals("remove", queue.poll());
+		Assert.assertEquals("get", queue.peek(true));
+		Assert.assertEquals("get", queue.poll());
+		Assert.assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testWeightedOrder() {
+		PrioritySendQueue<String> queue = new PrioritySendQueue<>();
+		for (int i=0; i<100; i++) {
+			queue.add("bulk", 4);
+			queue.add("semi", 2);
+		}
+
+		// class 2 has four times the weight of class 4, but class 4 is
+		// still served
+		int semi = 0;
+		for (int i=0; i<50; i++) {
+			if (queue.peek(true).equals("semi")) {
+				semi++;
+			}
+			queue.poll();
+		}
+		Assert.assertEquals(40, semi);
+		Assert.assertEquals(150, queue.size());
+	}
+
+	@Test
+	public void testRequestsNotAllowed() {
+		PrioritySendQueue<String> queue = new PrioritySendQueue<>();
+		queue.add("get", 1);
+		Assert.assertNull(queue.peek(false));
+		Assert.assertFalse(queue.isReady(false));
+		Assert.assertTrue(queue.isReady(true));
+
+		Assert.assertEquals("get", queue.removeRequest("get"::equals));
+		Assert.assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testHeadKept() {
+		PrioritySendQueue<String> queue = new PrioritySendQueue<>();
+		queue.add("put", 4);
+		Assert.assertEquals("put", queue.peek(true));
+
+		// partially written message stays in front of control messages
+		queue.add("remove", PrioritySendQueue.CONTROL);
+		Assert.assertEquals("put", queue.peek(false));
+		Assert.assertNull(queue.removeRequest("put"::equals));
+		Assert.assertEquals("put", queue.poll());
+		Assert.assertEquals("remove", queue.peek(false));
+	}
+
+	@Test
+	public void testConcurrentProducers() throws Exception {
+		final PrioritySendQueue<String> queue = new PrioritySendQueue<>();
+		final int producers = 4;
+		final int count = 10000;
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final Thread[] threads = new Thread[producers];
+		for (int p=0; p<producers; p++) {
+			final int producer = p;
+			threads[p] = new Thread(() -> {
+				try {
+					startLatch.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i=0; i<count; i++) {
+					queue.add(producer + "-" + i, i % 7);
+				}
+			});
+			threads[p].start();
+		}
+		startLatch.countDown();
+
+		// single consumer drains while the producers are adding
+		final Set<String> received = new HashSet<>();
+		while (received.size() < producers * count) {
+			final String e = queue.peek(true);
+			if (e != null) {
+				Assert.assertSame(e, queue.poll());
+				Assert.assertTrue(received.add(e));
+			}
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		Assert.assertTrue(queue.isEmpty());
+		Assert.assertNull(queue.peek(true));
+	}
+}
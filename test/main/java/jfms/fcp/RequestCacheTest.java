@@ -0,0 +1,180 @@
+package jfms.fcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RequestCacheTest {
+	private final AtomicLong now = new AtomicLong(TimeUnit.DAYS.toMillis(1));
+
+	private void advanceMinutes(int minutes) {
+		now.addAndGet(TimeUnit.MINUTES.toMillis(minutes));
+	}
+
+	@Test
+	public void testExpiry() {
+		RequestCache cache = new RequestCache(100, now::get);
+		cache.addNegativeCacheEntry("KSK@a", 60);
+		cache.addNegativeCacheEntry("KSK@b", 120);
+
+		Assert.assertTrue(cache.isPresent("KSK@a"));
+		Assert.assertTrue(cache.isPresent("KSK@b"));
+		Assert.assertFalse(cache.isPresent("KSK@c"));
+
+		advanceMinutes(61);
+		cache.cleanup();
+		Assert.assertEquals(1, cache.size());
+		Assert.assertFalse(cache.isPresent("KSK@a"));
+		Assert.assertTrue(cache.isPresent("KSK@b"));
+
+		advanceMinutes(60);
+		Assert.assertFalse(cache.isPresent("KSK@b"));
+		Assert.assertEquals(0, cache.size());
+
+		Assert.assertEquals(3, cache.getHitCount());
+		Assert.assertEquals(3, cache.getMissCount());
+		Assert.assertEquals(2, cache.getExpiredCount());
+	}
+
+	@Test
+	public void testLongTTL() {
+		RequestCache cache = new RequestCache(100, now::get);
+		cache.addNegativeCacheEntry("KSK@a", 1000);
+
+		advanceMinutes(600);
+		cache.cleanup();
+		Assert.assertTrue(cache.isPresent("KSK@a"));
+
+		advanceMinutes(401);
+		cache.cleanup();
+		Assert.assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testReplaceEntry() {
+		RequestCache cache = new RequestCache(100, now::get);
+		cache.addNegativeCacheEntry("KSK@a", 10);
+		cache.addNegativeCacheEntry("KSK@a", 60);
+
+		advanceMinutes(30);
+		cache.cleanup();
+		Assert.assertTrue(cache.isPresent("KSK@a"));
+	}
+
+	@Test
+	public void testEviction() {
+		RequestCache cache = new RequestCache(10, now::get);
+		for (int i=0; i<20; i++) {
+			cache.addNegativeCacheEntry("KSK@" + i, 10 + i);
+		}
+
+		Assert.assertEquals(10, cache.size());
+		Assert.assertEquals(10, cache.getEvictionCount());
+		Assert.assertFalse(cache.isPresent("KSK@0"));
+		Assert.assertTrue(cache.isPresent("KSK@19"));
+	}
+
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		final int maxEntries = 500;
+		final int threadCount = 4;
+		final int keysPerThread = 2000;
+		final RequestCache cache = new RequestCache(maxEntries, now::get);
+
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final AtomicInteger lookups = new AtomicInteger();
+		final AtomicInteger lostEntries = new AtomicInteger();
+		final List<Thread> threads = new ArrayList<>();
+		for (int t=0; t<threadCount; t++) {
+			final int threadId = t;
+			threads.add(new Thread(() -> {
+				try {
+					startLatch.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				for (int i=0; i<keysPerThread; i++) {
+					final String key = "KSK@" + threadId + "-" + i;
+					cache.addNegativeCacheEntry(key, 1 + i % 30);
+					if (!cache.isPresent(key)) {
+						lostEntries.incrementAndGet();
+					}
+					cache.isPresent("KSK@" + threadId + "-" + i / 2);
+					lookups.addAndGet(2);
+				}
+			}));
+		}
+		threads.add(new Thread(() -> {
+			try {
+				startLatch.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			// let the wheel advance while entries are added
+			for (int i=0; i<20; i++) {
+				advanceMinutes(1);
+				Thread.yield();
+			}
+		}));
+
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		startLatch.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// every entry is either still cached or was counted when removed
+		final long removed = cache.getEvictionCount() +
+			cache.getExpiredCount();
+		Assert.assertEquals(threadCount * keysPerThread,
+				cache.size() + removed);
+		Assert.assertTrue(cache.size() <= maxEntries);
+		Assert.assertTrue(lostEntries.get() <= removed);
+		Assert.assertEquals(lookups.get(),
+				cache.getHitCount() + cache.getMissCount());
+
+		int present = 0;
+		for (int t=0; t<threadCount; t++) {
+			for (int i=0; i<keysPerThread; i++) {
+				if (cache.isPresent("KSK@" + t + "-" + i)) {
+					present++;
+				}
+			}
+		}
+		Assert.assertEquals(cache.size(), present);
+	}
+
+	@Test
+	public void testSaveLoad() throws IOException {
+		final Path path = new File("requestcache-test.bin").toPath();
+		path.toFile().delete();
+
+		RequestCache cache = new RequestCache(100, now::get);
+		cache.addNegativeCacheEntry("KSK@a", 10);
+		cache.addNegativeCacheEntry("KSK@b", 60);
+		cache.save(path);
+
+		advanceMinutes(30);
+		RequestCache loadedCache = new RequestCache(100, now::get);
+		Assert.assertEquals(1, loadedCache.load(path));
+		Assert.assertFalse(loadedCache.isPresent("KSK@a"));
+		Assert.assertTrue(loadedCache.isPresent("KSK@b"));
+
+		advanceMinutes(31);
+		Assert.assertFalse(loadedCache.isPresent("KSK@b"));
+
+		path.toFile().delete();
+	}
+}
@@ -0,0 +1,32 @@
+package jfms.fms;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AvatarTest {
+	@Test
+	public void testGetImageType() {
+		byte[] png = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 0};
+		Assert.assertEquals("png", Avatar.getImageType(png, png.length));
+
+		byte[] jpeg = {(byte)0xff, (byte)0xd8, (byte)0xff, (byte)0xe0};
+		Assert.assertEquals("jpg", Avatar.getImageType(jpeg, jpeg.length));
+
+		byte[] gif = {'G', 'I', 'F', '8', '9', 'a', 1, 0};
+		Assert.assertEquals("gif", Avatar.getImageType(gif, gif.length));
+
+		byte[] bmp = {'B', 'M', 0x36, 0};
+		Assert.assertEquals("bmp", Avatar.getImageType(bmp, bmp.length));
+	}
+
+	@Test
+	public void testGetImageTypeInvalid() {
+		byte[] html = "<html>".getBytes();
+		Assert.assertNull(Avatar.getImageType(html, html.length));
+
+		// truncated header
+		byte[] png = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+		Assert.assertNull(Avatar.getImageType(png, 4));
+		Assert.assertNull(Avatar.getImageType(new byte[0], 0));
+	}
+}
@@ -0,0 +1,89 @@
+package jfms.fms;
+
+import java.io.InputStream;
+import java.time.LocalDate;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DateProbeTest {
+	private final LocalDate date = LocalDate.parse("2018-02-20");
+
+	private static class TestRequest extends DownloadRequest {
+		public TestRequest(String key) {
+			super(null, key);
+		}
+
+		@Override
+		public void finished(InputStream data) {
+		}
+	}
+
+	@Test
+	public void testFound() {
+		final RequestTracker tracker = RequestTracker.create(date, 0);
+		final DateProbe probe = new DateProbe(tracker);
+		Assert.assertEquals(0, probe.getOffset(tracker));
+
+		final TestRequest r1 = new TestRequest("1");
+		final TestRequest r2 = new TestRequest("2");
+		final TestRequest r3 = new TestRequest("3");
+		probe.add(1, r1);
+		probe.add(2, r2);
+		probe.add(3, r3);
+
+		// older days are cancelled once a day is found
+		Assert.assertFalse(probe.found(2, r2));
+		final List<DownloadRequest> cancelled = probe.takeOlderRequests();
+		Assert.assertEquals(1, cancelled.size());
+		Assert.assertSame(r3, cancelled.get(0));
+
+		// a more recent day still counts
+		Assert.assertTrue(probe.found(1, r1));
+		Assert.assertNull(probe.takeDeferred());
+		Assert.assertFalse(probe.isExhausted());
+	}
+
+	@Test
+	public void testDeferred() {
+		final RequestTracker tracker = RequestTracker.create(date, 0);
+		final DateProbe probe = new DateProbe(tracker);
+
+		final TestRequest r1 = new TestRequest("1");
+		final TestRequest r2 = new TestRequest("2");
+		final TestRequest r3 = new TestRequest("3");
+		probe.add(1, r1);
+		probe.add(2, r2);
+		probe.add(3, r3);
+
+		// an older day is held back while a more recent day is outstanding
+		Assert.assertFalse(probe.found(3, r3));
+		Assert.assertFalse(probe.found(2, r2));
+		Assert.assertNull(probe.takeDeferred());
+
+		// and taken once the more recent day has failed
+		Assert.assertTrue(probe.missing(1, date.minusDays(1)).isEmpty());
+		Assert.assertSame(r2, probe.takeDeferred());
+		Assert.assertNull(probe.takeDeferred());
+		Assert.assertEquals(date.minusDays(1), probe.getFailDate(2));
+	}
+
+	@Test
+	public void testExhausted() {
+		final RequestTracker tracker = RequestTracker.create(date, 0);
+		final DateProbe probe = new DateProbe(tracker);
+
+		// no earlier day within the stop date
+		Assert.assertTrue(probe.missing(0, date).isEmpty());
+		Assert.assertTrue(probe.isExhausted());
+		Assert.assertEquals(date, probe.getFailDate(Long.MAX_VALUE));
+		Assert.assertNull(probe.getFailDate(0));
+	}
+
+	@Test
+	public void testStop() {
+		final DateProbe probe = new DateProbe(RequestTracker.create(date, 0));
+		probe.stop(0);
+		Assert.assertFalse(probe.isExhausted());
+	}
+}
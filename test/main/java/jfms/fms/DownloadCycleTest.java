@@ -0,0 +1,91 @@
+package jfms.fms;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import jfms.fcp.FcpClient;
+import jfms.fcp.FcpClientPool;
+import jfms.fcp.FcpMetrics;
+import jfms.fcp.FcpNodeSimulator;
+import jfms.store.Store;
+
+/**
+ * Runs a full download cycle against a simulated node.
+ * The size of the network can be increased with the system properties
+ * jfms.sim.identities, jfms.sim.trustListSize and jfms.sim.messages
+ * to measure throughput under load.
+ */
+public class DownloadCycleTest {
+	private static final Logger LOG = Logger.getLogger(DownloadCycleTest.class.getName());
+	private static final String TEST_DB = "test-download.db3";
+
+	private FcpNodeSimulator node;
+	private FcpClient fcpClient;
+	private Store store;
+
+	@Before
+	public void setUp() throws Exception {
+		new File(TEST_DB).delete();
+
+		node = new FcpNodeSimulator();
+		node.setLatency(2, 20, TimeUnit.MILLISECONDS);
+
+		store = new Store("jdbc:sqlite:" + TEST_DB);
+		fcpClient = new FcpClientPool("test", "127.0.0.1", node.getPort(), 2);
+		fcpClient.setStatusListener(status -> {});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		fcpClient.shutdown();
+		node.close();
+		new File(TEST_DB).delete();
+	}
+
+	@Test
+	public void testDownloadCycle() throws Exception {
+		final int identities = Integer.getInteger("jfms.sim.identities", 30);
+		final int trustListSize = Integer.getInteger("jfms.sim.trustListSize", 10);
+		final int messages = Integer.getInteger("jfms.sim.messages", 3);
+
+		final LocalDate today = LocalDate.now(ZoneOffset.UTC);
+		SyntheticNetwork network = new SyntheticNetwork(identities,
+				trustListSize, messages, 1);
+		network.publish(node, today);
+
+		final FmsManager fmsManager = FmsManager.getInstance();
+		fmsManager.setStore(store);
+		store.initialize(network.getSeedSsks(3));
+		fmsManager.getBoardManager().initialize();
+		fmsManager.getIdentityManager().initialize();
+		fmsManager.getTrustManager().initialize();
+
+		DownloadThread.resetIteration();
+		DownloadThread downloadThread = new DownloadThread(fcpClient);
+
+		final long start = System.nanoTime();
+		downloadThread.run();
+		final long elapsed = System.nanoTime() - start;
+
+		final int messagesStored = store.getMessagesForBoard("test").size();
+		final FcpMetrics metrics = fcpClient.getMetrics();
+		LOG.log(Level.INFO, "Download cycle finished in {0} ms: "
+				+ "{1} requests, {2} messages, {3} bytes received",
+				new Object[]{
+				TimeUnit.NANOSECONDS.toMillis(elapsed),
+				node.getGetCount(), messagesStored,
+				metrics.getBytesReceived()});
+
+		Assert.assertTrue(node.getGetSuccessCount() > 0);
+		Assert.assertTrue(messagesStored > 0);
+		Assert.assertEquals(0, metrics.getInFlight());
+	}
+}
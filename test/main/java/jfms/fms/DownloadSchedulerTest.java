@@ -0,0 +1,161 @@
+package jfms.fms;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DownloadSchedulerTest {
+	private final List<String> created = new ArrayList<>();
+
+	private static class TestRequest extends DownloadRequest {
+		public TestRequest(String key) {
+			super(null, key);
+		}
+
+		@Override
+		public void finished(InputStream data) {
+		}
+	}
+
+	private DownloadScheduler.Stage stage(String key) {
+		return () -> {
+			created.add(key);
+			return new TestRequest(key);
+		};
+	}
+
+	@Test
+	public void testStagesRunInOrder() throws Exception {
+		final DownloadScheduler scheduler = new DownloadScheduler(() -> {});
+		scheduler.schedule(false, stage("a1"), stage("a2"));
+		scheduler.schedule(false, stage("b1"), () -> null, stage("b2"));
+
+		// second stage is not created before the first has completed
+		final DownloadRequest a1 = scheduler.take();
+		final DownloadRequest b1 = scheduler.take();
+		Assert.assertEquals("a1", a1.getKey());
+		Assert.assertEquals("b1", b1.getKey());
+		Assert.assertEquals(2, created.size());
+
+		// pipelines do not wait for each other
+		scheduler.stageCompleted(b1.getPipeline(), true);
+		Assert.assertEquals("b2", scheduler.take().getKey());
+
+		scheduler.stageCompleted(a1.getPipeline(), false);
+		final DownloadRequest a2 = scheduler.take();
+		Assert.assertEquals("a2", a2.getKey());
+		Assert.assertEquals(2, scheduler.getActivePipelineCount());
+	}
+
+	@Test
+	public void testBackgroundRequests() throws Exception {
+		final DownloadScheduler scheduler = new DownloadScheduler(() -> {});
+		scheduler.schedule(true, stage("avatar"));
+		scheduler.schedule(false, stage("trustlist"));
+
+		Assert.assertEquals("trustlist", scheduler.take().getKey());
+		final DownloadRequest avatar = scheduler.take();
+		Assert.assertEquals("avatar", avatar.getKey());
+		Assert.assertTrue(avatar.getPipeline().isBackground());
+	}
+
+	@Test
+	public void testRankOrder() throws Exception {
+		final DownloadScheduler scheduler = new DownloadScheduler(() -> {});
+		final long subscribed = MessageReferenceList.getRank(true, 5, 50);
+		final long unsubscribed = MessageReferenceList.getRank(false, 0, 100);
+		scheduler.schedule(false, unsubscribed, stage("unsubscribed"));
+		scheduler.schedule(false, subscribed + 1, stage("old"));
+		scheduler.schedule(false, subscribed, stage("new1"));
+		scheduler.schedule(false, subscribed, stage("new2"));
+		scheduler.schedule(false, stage("identity"));
+
+		// identities go after subscribed messages, before all others
+		Assert.assertEquals("new1", scheduler.take().getKey());
+		Assert.assertEquals("new2", scheduler.take().getKey());
+		Assert.assertEquals("old", scheduler.take().getKey());
+		Assert.assertEquals("identity", scheduler.take().getKey());
+		Assert.assertEquals("unsubscribed", scheduler.take().getKey());
+	}
+
+	@Test
+	public void testConcurrentChains() throws Exception {
+		final boolean[] result = new boolean[1];
+		final DownloadScheduler scheduler = new DownloadScheduler(() -> {});
+		scheduler.schedule(false, new DownloadScheduler.Stage() {
+			@Override
+			public DownloadRequest createRequest() {
+				return new TestRequest("probe");
+			}
+
+			@Override
+			public void completed(boolean successful) {
+				result[0] = successful;
+			}
+		}, stage("next"));
+
+		final DownloadRequest probe = scheduler.take();
+		scheduler.chainStarted(probe.getPipeline());
+		scheduler.chainStarted(probe.getPipeline());
+
+		// stage completes with the last chain
+		scheduler.stageCompleted(probe.getPipeline(), false);
+		scheduler.stageCompleted(probe.getPipeline(), true);
+		Assert.assertTrue(created.isEmpty());
+		scheduler.stageCompleted(probe.getPipeline(), false);
+		Assert.assertTrue(result[0]);
+		Assert.assertEquals("next", scheduler.take().getKey());
+	}
+
+	@Test
+	public void testScheduledChain() throws Exception {
+		final DownloadScheduler scheduler = new DownloadScheduler(() -> {});
+		scheduler.schedule(false, stage("probe"), stage("next"));
+
+		final DownloadRequest probe = scheduler.take();
+		scheduler.scheduleChain(probe.getPipeline(), new TestRequest("window"));
+		final DownloadRequest window = scheduler.take();
+		Assert.assertEquals("window", window.getKey());
+		Assert.assertSame(probe.getPipeline(), window.getPipeline());
+
+		// stage stays open until the scheduled chain is done
+		scheduler.stageCompleted(probe.getPipeline(), true);
+		Assert.assertEquals(1, created.size());
+		scheduler.stageCompleted(window.getPipeline(), false);
+		Assert.assertEquals("next", scheduler.take().getKey());
+	}
+
+	@Test
+	public void testIdleHandler() throws Exception {
+		final int[] idleCount = new int[1];
+		final DownloadScheduler[] scheduler = new DownloadScheduler[1];
+		scheduler[0] = new DownloadScheduler(() -> {
+			// first idle round adds another pipeline
+			if (idleCount[0]++ == 0) {
+				scheduler[0].schedule(false, stage("new"));
+			}
+		});
+
+		scheduler[0].schedule(false, stage("first"));
+		final DownloadRequest first = scheduler[0].take();
+		scheduler[0].stageCompleted(first.getPipeline(), true);
+
+		final DownloadRequest added = scheduler[0].take();
+		Assert.assertEquals("new", added.getKey());
+		scheduler[0].stageCompleted(added.getPipeline(), true);
+
+		Assert.assertNull(scheduler[0].take());
+		Assert.assertEquals(2, idleCount[0]);
+		Assert.assertEquals(0, scheduler[0].getActivePipelineCount());
+	}
+
+	@Test
+	public void testEmptyPipeline() throws Exception {
+		final DownloadScheduler scheduler = new DownloadScheduler(() -> {});
+		scheduler.schedule(false, () -> null);
+
+		Assert.assertNull(scheduler.take());
+	}
+}
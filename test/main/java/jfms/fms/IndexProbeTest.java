@@ -0,0 +1,87 @@
+package jfms.fms;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IndexProbeTest {
+	private static class TestRequest extends DownloadRequest {
+		public TestRequest(String key) {
+			super(null, key);
+		}
+
+		@Override
+		public void finished(InputStream data) {
+		}
+	}
+
+	private static TestRequest add(IndexProbe probe, int index) {
+		final TestRequest request = new TestRequest(Integer.toString(index));
+		probe.add(index, request);
+		return request;
+	}
+
+	@Test
+	public void testWindow() {
+		final IndexProbe probe = new IndexProbe(2, 50, 4);
+		add(probe, 2);
+		Assert.assertEquals(Arrays.asList(3, 4, 5), probe.start());
+		Assert.assertTrue(probe.start().isEmpty());
+		add(probe, 3);
+		add(probe, 4);
+		add(probe, 5);
+
+		// every found index requests the next one after the window
+		Assert.assertTrue(probe.found(3));
+		Assert.assertEquals(6, probe.nextIndex());
+		final TestRequest r6 = add(probe, 6);
+
+		// an older edition arriving late is not the newest
+		Assert.assertFalse(probe.found(2));
+		Assert.assertEquals(7, probe.nextIndex());
+		final TestRequest r7 = add(probe, 7);
+
+		// first missing index cancels higher indices
+		final List<DownloadRequest> cancelled = probe.missing(5);
+		Assert.assertEquals(2, cancelled.size());
+		Assert.assertTrue(cancelled.contains(r6));
+		Assert.assertTrue(cancelled.contains(r7));
+		Assert.assertEquals(-1, probe.nextIndex());
+
+		// index 4 is still outstanding
+		Assert.assertTrue(probe.found(4));
+		Assert.assertEquals(4, probe.getHighestIndex());
+	}
+
+	@Test
+	public void testDropped() {
+		final IndexProbe probe = new IndexProbe(0, 50, 3);
+		add(probe, 0);
+		Assert.assertEquals(Arrays.asList(1, 2), probe.start());
+		final TestRequest r2 = add(probe, 2);
+		add(probe, 1);
+
+		// a timeout does not end probing
+		probe.dropped(1);
+		Assert.assertTrue(probe.found(2));
+		Assert.assertEquals(3, probe.nextIndex());
+
+		// but a missing index does
+		add(probe, 3);
+		Assert.assertEquals(1, probe.missing(0).size());
+		Assert.assertEquals(-1, probe.nextIndex());
+		Assert.assertFalse(probe.missing(0).contains(r2));
+	}
+
+	@Test
+	public void testMaxIndex() {
+		final IndexProbe probe = new IndexProbe(0, 2, 8);
+		Assert.assertEquals(Arrays.asList(1, 2), probe.start());
+		Assert.assertTrue(probe.found(2));
+		Assert.assertEquals(-1, probe.nextIndex());
+		Assert.assertEquals(Collections.emptyList(), probe.missing(0));
+	}
+}
@@ -0,0 +1,105 @@
+package jfms.fms;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MessageListPredictorTest {
+	private static final Duration MIN_INTERVAL = Duration.ofMinutes(15);
+	private static final Duration MAX_INTERVAL = Duration.ofDays(1);
+	private static final int FREQUENT_ID = 1;
+	private static final int WEEKLY_ID = 2;
+	private static final int UNKNOWN_ID = 3;
+	private static final int DAILY_ID = 4;
+
+	private final MessageListPredictor predictor =
+		new MessageListPredictor(MIN_INTERVAL, MAX_INTERVAL);
+	private final Instant now = Instant.parse("2018-03-01T12:00:00Z");
+
+	private void initialize() {
+		final LocalDate date = LocalDate.parse("2018-03-01");
+		final Map<Integer, SortedMap<LocalDate, Integer>> counts =
+			new HashMap<>();
+		final SortedMap<LocalDate, Integer> frequent = new TreeMap<>();
+		for (int i=0; i<4; i++) {
+			frequent.put(date.minusDays(i), 6);
+		}
+		counts.put(FREQUENT_ID, frequent);
+		final SortedMap<LocalDate, Integer> weekly = new TreeMap<>();
+		for (int i=1; i<=3; i++) {
+			weekly.put(date.minusDays(7 * i), 1);
+		}
+		counts.put(WEEKLY_ID, weekly);
+		predictor.initialize(counts);
+	}
+
+	@Test
+	public void testCadence() {
+		initialize();
+
+		// everybody is polled once
+		Assert.assertTrue(predictor.shouldPoll(FREQUENT_ID, now));
+		Assert.assertTrue(predictor.shouldPoll(WEEKLY_ID, now));
+		Assert.assertTrue(predictor.shouldPoll(UNKNOWN_ID, now));
+
+		predictor.pollCompleted(FREQUENT_ID, true, now);
+		predictor.pollCompleted(WEEKLY_ID, true, now);
+
+		// frequent posters are polled more often
+		Assert.assertTrue(predictor.getPollInterval(FREQUENT_ID).compareTo(
+					predictor.getPollInterval(WEEKLY_ID)) < 0);
+		final Instant later = now.plus(Duration.ofHours(2));
+		Assert.assertTrue(predictor.shouldPoll(FREQUENT_ID, later));
+		Assert.assertFalse(predictor.shouldPoll(WEEKLY_ID, later));
+		Assert.assertTrue(predictor.shouldPoll(WEEKLY_ID,
+					now.plus(MAX_INTERVAL)));
+	}
+
+	@Test
+	public void testEditionsPerDay() {
+		final LocalDate date = LocalDate.parse("2018-03-01");
+		final Map<Integer, SortedMap<LocalDate, Integer>> counts =
+			new HashMap<>();
+		final SortedMap<LocalDate, Integer> daily = new TreeMap<>();
+		daily.put(date.minusDays(1), 1);
+		daily.put(date, 1);
+		counts.put(DAILY_ID, daily);
+		final SortedMap<LocalDate, Integer> busy = new TreeMap<>();
+		busy.put(date, 24);
+		counts.put(FREQUENT_ID, busy);
+		predictor.initialize(counts);
+
+		// a gap is learned from a single busy day, not only across days
+		Assert.assertEquals(Duration.ofDays(1).dividedBy(4),
+				predictor.getPollInterval(DAILY_ID));
+		Assert.assertEquals(MIN_INTERVAL,
+				predictor.getPollInterval(FREQUENT_ID));
+	}
+
+	@Test
+	public void testBackoff() {
+		Instant time = now;
+		predictor.pollCompleted(UNKNOWN_ID, false, time);
+		Assert.assertEquals(MIN_INTERVAL.multipliedBy(2),
+				predictor.getPollInterval(UNKNOWN_ID));
+		Assert.assertFalse(predictor.shouldPoll(UNKNOWN_ID,
+					time.plus(MIN_INTERVAL)));
+
+		for (int i=0; i<20; i++) {
+			time = time.plus(predictor.getPollInterval(UNKNOWN_ID));
+			Assert.assertTrue(predictor.shouldPoll(UNKNOWN_ID, time));
+			predictor.pollCompleted(UNKNOWN_ID, false, time);
+		}
+		Assert.assertEquals(MAX_INTERVAL, predictor.getPollInterval(UNKNOWN_ID));
+
+		// a new edition resets the backoff
+		predictor.pollCompleted(UNKNOWN_ID, true, time);
+		Assert.assertEquals(MIN_INTERVAL, predictor.getPollInterval(UNKNOWN_ID));
+	}
+}
@@ -0,0 +1,114 @@
+package jfms.fms;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import jfms.config.Constants;
+import jfms.store.Store;
+
+public class MessageReferenceListTest {
+	private static final String TEST_DB = "test-messagelist.db3";
+	private final LocalDate today = LocalDate.now(ZoneOffset.UTC);
+
+	@Before
+	public void setUp() throws SQLException {
+		new File(TEST_DB).delete();
+
+		final Store store = new Store("jdbc:sqlite:" + TEST_DB);
+		store.initialize(null);
+		FmsManager.getInstance().setStore(store);
+	}
+
+	@After
+	public void tearDown() {
+		new File(TEST_DB).delete();
+	}
+
+	private static MessageReference createReference(int index,
+			LocalDate date, String board) {
+		final MessageReference ref = new MessageReference();
+		ref.setIdentityId(1);
+		ref.setSsk("SSK@test");
+		ref.setDate(date);
+		ref.setIndex(index);
+		ref.setBoards(Arrays.asList(board));
+
+		return ref;
+	}
+
+	@Test
+	public void testRank() {
+		// subscription first, then age, then trust
+		Assert.assertTrue(MessageReferenceList.getRank(true, 10, 0) <
+				MessageReferenceList.getRank(false, 0, 100));
+		Assert.assertTrue(MessageReferenceList.getRank(true, 0, 0) <
+				MessageReferenceList.getRank(true, 1, 100));
+		Assert.assertTrue(MessageReferenceList.getRank(true, 0, 80) <
+				MessageReferenceList.getRank(true, 0, 60));
+		Assert.assertEquals(MessageReferenceList.getRank(false, 0, 0),
+				MessageReferenceList.getRank(false, -1, 0));
+	}
+
+	@Test
+	public void testPriorityOrder() {
+		final MessageReferenceList list = new MessageReferenceList();
+		list.setSubscribedBoards(Arrays.asList("subscribed"));
+
+		final LocalDate tooOld = today.minusDays(
+				Integer.parseInt(Constants.DEFAULT_MAX_MESSAGE_AGE) + 1);
+		final List<MessageReference> messages =
+			list.addMessagesToDownload(Arrays.asList(
+				createReference(0, today.minusDays(5), "other"),
+				createReference(1, today, "other"),
+				createReference(2, today.minusDays(5), "subscribed"),
+				createReference(3, today, "subscribed"),
+				// duplicates and old messages are ignored
+				createReference(3, today, "other"),
+				createReference(4, tooOld, "subscribed")));
+
+		Assert.assertEquals(4, messages.size());
+		Assert.assertEquals(3, messages.get(0).getIndex());
+		Assert.assertEquals(2, messages.get(1).getIndex());
+		Assert.assertEquals(1, messages.get(2).getIndex());
+		Assert.assertEquals(0, messages.get(3).getIndex());
+
+		// messages are remembered, so they are not added again
+		Assert.assertTrue(list.addMessagesToDownload(Arrays.asList(
+				createReference(1, today, "other"))).isEmpty());
+
+		list.clear();
+		Assert.assertEquals(1, list.addMessagesToDownload(Arrays.asList(
+				createReference(1, today, "other"))).size());
+	}
+
+	@Test
+	public void testSchedulerOrder() throws Exception {
+		final MessageReferenceList list = new MessageReferenceList();
+		list.setSubscribedBoards(Arrays.asList("subscribed"));
+
+		final DownloadScheduler scheduler = new DownloadScheduler(() -> {});
+		final List<MessageReference> messages = Arrays.asList(
+				createReference(0, today.minusDays(5), "other"),
+				createReference(1, today, "subscribed"),
+				createReference(2, today.minusDays(5), "subscribed"));
+		for (MessageReference m : messages) {
+			final MessageRequest request = new MessageRequest(null, m, null);
+			scheduler.schedule(false, list.getRank(m), () -> request);
+		}
+
+		for (int index : new int[]{1, 2, 0}) {
+			final MessageReference m = messages.get(index);
+			Assert.assertEquals(Identity.getMessageKey(m.getSsk(),
+						m.getDate(), m.getIndex()),
+					scheduler.take().getKey());
+		}
+	}
+}
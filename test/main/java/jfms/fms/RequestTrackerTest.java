@@ -6,6 +6,7 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -128,6 +129,24 @@ public class RequestTrackerTest {
 		Assert.assertNull(spec);
 	}
 
+	@Test
+	public void testMinusDaysRange() throws SQLException {
+		LocalDate stopDate = currentDate.minusDays(3);
+		RequestType type = RequestType.IDENTITY;
+
+		store.updateLastFailDate(ID, stopDate);
+
+		RequestTracker spec;
+		spec = RequestTracker.create(type, ID, currentDate, MAX_INDEX);
+
+		List<RequestTracker> specs = spec.minusDays(1, 4);
+		Assert.assertEquals(2, specs.size());
+		Assert.assertEquals(currentDate.minusDays(1), specs.get(0).getDate());
+		Assert.assertEquals(currentDate.minusDays(2), specs.get(1).getDate());
+
+		Assert.assertTrue(spec.minusDays(3, 4).isEmpty());
+	}
+
 	@Test
 	public void testSuccesfulToday() throws SQLException {
 		LocalDate stopDate = currentDate.minusDays(1);
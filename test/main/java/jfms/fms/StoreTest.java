@@ -2,8 +2,11 @@ package jfms.fms;
 
 import java.io.File;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.LocalDate;
+import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import org.junit.Assert;
@@ -467,6 +470,114 @@ public class StoreTest {
 		Assert.assertFalse(activeIds.contains(id2));
 	}
 
+	@Test
+	public void testRequestHistoryCache() throws SQLException {
+		final LocalDate date = date("2018-02-20");
+		store.updateRequestHistory(1, IDENTITY, date, 3);
+		store.updateLastFailDate(1, date.minusDays(5));
+
+		// rows and NULL columns are read from memory
+		store.loadRequestHistory();
+		assertDateIndex(date, 3, store.getLastRequestDateIndex(1, IDENTITY));
+		Assert.assertEquals(-1, store.getLastRequestDateIndex(1,
+					RequestType.TRUST_LIST).getIndex());
+		Assert.assertEquals(date.minusDays(5), store.getLastFailDate(1));
+		Assert.assertEquals(-1, store.getLastRequestDateIndex(2,
+					IDENTITY).getIndex());
+		Assert.assertEquals(Constants.FALLBACK_DATE, store.getLastFailDate(2));
+
+		// existing row is updated, missing row inserted
+		store.updateRequestHistory(1, RequestType.TRUST_LIST, date, 7);
+		store.updateRequestHistory(2, RequestType.MESSAGE_LIST, date, 9);
+		store.releaseRequestHistory();
+		assertDateIndex(date, 3, store.getLastRequestDateIndex(1, IDENTITY));
+		assertDateIndex(date, 7, store.getLastRequestDateIndex(1,
+					RequestType.TRUST_LIST));
+		assertDateIndex(date, 9, store.getLastRequestDateIndex(2,
+					RequestType.MESSAGE_LIST));
+		Assert.assertEquals(-1, store.getLastRequestDateIndex(2,
+					IDENTITY).getIndex());
+		Assert.assertEquals(Constants.FALLBACK_DATE, store.getLastFailDate(2));
+	}
+
+	@Test
+	public void testRequestHistoryBatch() throws SQLException {
+		final LocalDate date = date("2018-02-20");
+		final Store otherStore = new Store("jdbc:sqlite:" + TEST_DB);
+
+		// updates are written once a batch is full
+		store.loadRequestHistory();
+		for (int id=1; id<100; id++) {
+			store.updateRequestHistory(id, IDENTITY, date, id);
+		}
+		Assert.assertEquals(-1, otherStore.getLastRequestDateIndex(1,
+					IDENTITY).getIndex());
+		store.updateRequestHistory(100, IDENTITY, date, 100);
+		assertDateIndex(date, 1, otherStore.getLastRequestDateIndex(1,
+					IDENTITY));
+		assertDateIndex(date, 100, otherStore.getLastRequestDateIndex(100,
+					IDENTITY));
+
+		// rows removed behind the cache are inserted again
+		try (Statement stmt = otherStore.getConnection().createStatement()) {
+			stmt.execute("DELETE FROM request_history");
+		}
+		store.updateLastFailDate(1, date);
+		store.releaseRequestHistory();
+		assertDateIndex(date, 1, otherStore.getLastRequestDateIndex(1,
+					IDENTITY));
+		Assert.assertEquals(date, otherStore.getLastFailDate(1));
+	}
+
+	@Test
+	public void testMessageExists() {
+		final int id1 = addManualIdentity("SSK1");
+		final LocalDate insertDate = date("2018-02-20");
+
+		// index is loaded on first use
+		Assert.assertFalse(store.messageExists(id1, insertDate, 0));
+
+		final int messageId = store.saveMessage(
+				createMessage(id1, insertDate, 0, "UUID1"), null);
+		Assert.assertTrue(messageId >= 0);
+		Assert.assertTrue(store.messageExists(id1, insertDate, 0));
+		Assert.assertFalse(store.messageExists(id1, insertDate, 1));
+		Assert.assertFalse(store.messageExists(id1, insertDate.plusDays(1), 0));
+
+		// index is rebuilt from the database
+		store.invalidateCaches();
+		Assert.assertTrue(store.messageExists(id1, insertDate, 0));
+
+		Assert.assertTrue(store.removeMessage(messageId));
+		Assert.assertFalse(store.messageExists(id1, insertDate, 0));
+
+		// keys that cannot be indexed are looked up in the database
+		Assert.assertFalse(store.messageExists(-1, insertDate, 0));
+	}
+
+	private static void assertDateIndex(LocalDate date, int index,
+			DateIndex dateIndex) {
+		Assert.assertEquals(date, dateIndex.getDate());
+		Assert.assertEquals(index, dateIndex.getIndex());
+	}
+
+	private Message createMessage(int identityId, LocalDate insertDate,
+			int insertIndex, String uuid) {
+		final Message message = new Message();
+		message.setIdentityId(identityId);
+		message.setDate(insertDate);
+		message.setTime(LocalTime.NOON);
+		message.setSubject("subject");
+		message.setMessageUuid(uuid);
+		message.setReplyBoard("test");
+		message.setBoards(Arrays.asList("test"));
+		message.setInsertDate(insertDate);
+		message.setInsertIndex(insertIndex);
+		message.setBody("body");
+
+		return message;
+	}
+
 	private int addManualIdentity(String ssk) {
 		return store.saveIdentity(Constants.ADD_MANUALLY, ssk);
 	}
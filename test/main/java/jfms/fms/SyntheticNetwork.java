@@ -0,0 +1,148 @@
+package jfms.fms;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import jfms.fcp.FcpNodeSimulator;
+import jfms.fms.xml.IdentityWriter;
+import jfms.fms.xml.MessageListWriter;
+import jfms.fms.xml.MessageWriter;
+import jfms.fms.xml.TrustListWriter;
+import jfms.util.UUID;
+
+/**
+ * Generates FMS documents of a synthetic network of identities and
+ * publishes them in an {@link FcpNodeSimulator}.
+ * Every identity publishes an identity file, a trust list with random
+ * peers and a message list with its messages for a single day. Message
+ * lists of some identities are only available at a later edition, so
+ * downloads have to follow USK redirects.
+ */
+public class SyntheticNetwork {
+	private static final String BOARD = "test";
+
+	private final Random random;
+	private final List<String> ssks;
+	private final int trustListSize;
+	private final int messagesPerIdentity;
+
+	/**
+	 * @param identityCount number of identities
+	 * @param trustListSize number of peers in each trust list
+	 * @param messagesPerIdentity number of messages of each identity
+	 * @param seed seed for the random generator, the same seed creates
+	 * the same trust graph
+	 */
+	public SyntheticNetwork(int identityCount, int trustListSize,
+			int messagesPerIdentity, long seed) {
+
+		this.random = new Random(seed);
+		this.trustListSize = Math.min(trustListSize, identityCount - 1);
+		this.messagesPerIdentity = messagesPerIdentity;
+
+		ssks = new ArrayList<>(identityCount);
+		for (int i=0; i<identityCount; i++) {
+			ssks.add("SSK@" + FcpNodeSimulator.randomKey(43) + ','
+					+ FcpNodeSimulator.randomKey(43) + ",AQACAAE/");
+		}
+	}
+
+	public List<String> getSsks() {
+		return Collections.unmodifiableList(ssks);
+	}
+
+	public List<String> getSeedSsks(int count) {
+		return getSsks().subList(0, Math.min(count, ssks.size()));
+	}
+
+	public int getMessageCount() {
+		return ssks.size() * messagesPerIdentity;
+	}
+
+	/**
+	 * Inserts all documents for the given day into the simulator.
+	 */
+	public void publish(FcpNodeSimulator node, LocalDate date) {
+		final IdentityWriter identityWriter = new IdentityWriter();
+		final TrustListWriter trustListWriter = new TrustListWriter();
+		final MessageListWriter messageListWriter = new MessageListWriter();
+		final MessageWriter messageWriter = new MessageWriter();
+
+		for (int i=0; i<ssks.size(); i++) {
+			final String ssk = ssks.get(i);
+
+			Identity identity = new Identity(ssk);
+			identity.setName("sim" + i);
+			identity.setPublishTrustList(true);
+			node.putData(Identity.getIdentityKey(ssk, date, 0),
+					identityWriter.writeXml(identity));
+
+			node.putData(Identity.getTrustListKey(ssk, date, 0),
+					trustListWriter.writeXml(createTrustList(i)));
+
+			List<MessageReference> messageRefs = new ArrayList<>();
+			for (int j=0; j<messagesPerIdentity; j++) {
+				final String messageXml = messageWriter.writeXml(
+						createMessage(ssk, date, i, j));
+				node.putData(Identity.getMessageKey(ssk, date, j),
+						messageXml.getBytes(StandardCharsets.UTF_8));
+
+				MessageReference ref = new MessageReference();
+				ref.setDate(date);
+				ref.setIndex(j);
+				ref.setBoards(Collections.singletonList(BOARD));
+				messageRefs.add(ref);
+			}
+
+			// some message lists are only found by following a redirect
+			final int edition = i % 3;
+			node.putData(Identity.getMessageListKey(ssk, date, edition, true),
+					messageListWriter.writeXml(messageRefs,
+						Collections.emptyList()));
+		}
+	}
+
+	private List<Trust> createTrustList(int identityIndex) {
+		Set<Integer> peers = new HashSet<>();
+		while (peers.size() < trustListSize) {
+			int peer = random.nextInt(ssks.size() - 1);
+			if (peer >= identityIndex) {
+				peer++;
+			}
+			peers.add(peer);
+		}
+
+		List<Trust> trustList = new ArrayList<>(trustListSize);
+		for (int peer : peers) {
+			Trust trust = new Trust(ssks.get(peer));
+			trust.setMessageTrustLevel(50 + random.nextInt(51));
+			trust.setTrustListTrustLevel(50 + random.nextInt(51));
+			trustList.add(trust);
+		}
+
+		return trustList;
+	}
+
+	private Message createMessage(String ssk, LocalDate date,
+			int identityIndex, int messageIndex) {
+
+		Message message = new Message();
+		message.setDate(date);
+		message.setTime(LocalTime.of(12, messageIndex % 60));
+		message.setSubject("message " + messageIndex + " of sim"
+				+ identityIndex);
+		message.setMessageUuid(UUID.randomUUID(ssk));
+		message.setReplyBoard(BOARD);
+		message.setBoards(Collections.singletonList(BOARD));
+		message.setBody("synthetic message body " + random.nextLong());
+
+		return message;
+	}
+}
@@ -0,0 +1,97 @@
+package jfms.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveLimitTest {
+	private static final long RTT = TimeUnit.MILLISECONDS.toNanos(100);
+
+	@Test
+	public void testIncrease() {
+		final AdaptiveLimit limit = new AdaptiveLimit(5, 1, 20);
+
+		// flat latency with all slots used
+		for (int i=0; i<100; i++) {
+			limit.addSample(RTT, limit.getLimit(), false);
+		}
+		Assert.assertTrue(limit.getLimit() > 10);
+		Assert.assertEquals(RTT, limit.getRtt().toNanos());
+
+		// limit is not raised while it is not used
+		final int current = limit.getLimit();
+		for (int i=0; i<100; i++) {
+			limit.addSample(RTT, 1, false);
+		}
+		Assert.assertEquals(current, limit.getLimit());
+	}
+
+	@Test
+	public void testMaxLimit() {
+		final AdaptiveLimit limit = new AdaptiveLimit(5, 1, 8);
+		for (int i=0; i<1000; i++) {
+			limit.addSample(RTT, limit.getLimit(), false);
+		}
+		Assert.assertEquals(8, limit.getLimit());
+	}
+
+	@Test
+	public void testQueueing() {
+		final AdaptiveLimit limit = new AdaptiveLimit(10, 1, 20);
+		for (int i=0; i<100; i++) {
+			limit.addSample(RTT, 1, false);
+		}
+
+		for (int i=0; i<50; i++) {
+			limit.addSample(10 * RTT, limit.getLimit(), false);
+		}
+		Assert.assertTrue(limit.getLimit() < 10);
+		Assert.assertTrue(limit.getRtt().compareTo(
+					limit.getBaselineRtt()) > 0);
+	}
+
+	@Test
+	public void testDrop() {
+		final AdaptiveLimit limit = new AdaptiveLimit(16, 1, 20);
+		limit.addSample(RTT, 16, true);
+		Assert.assertEquals(8, limit.getLimit());
+
+		// a burst of drops only counts once per window
+		limit.addSample(RTT, 8, true);
+		limit.addSample(RTT, 8, true);
+		Assert.assertEquals(8, limit.getLimit());
+
+		for (int i=0; i<100; i++) {
+			limit.addSample(RTT, 1, true);
+		}
+		Assert.assertEquals(1, limit.getLimit());
+	}
+
+	@Test
+	public void testFixedLimit() {
+		final AdaptiveLimit limit = new AdaptiveLimit(5);
+		limit.addSample(RTT, 5, true);
+		for (int i=0; i<100; i++) {
+			limit.addSample(RTT, 5, false);
+		}
+		Assert.assertEquals(5, limit.getLimit());
+	}
+
+	@Test
+	public void testListener() {
+		final AdaptiveLimit limit = new AdaptiveLimit(16, 1, 20);
+		final List<Integer> limits = new ArrayList<>();
+		limit.setListener(limits::add);
+		Assert.assertEquals(Arrays.asList(16), limits);
+
+		limit.addSample(RTT, 16, true);
+		Assert.assertEquals(Arrays.asList(16, 8), limits);
+
+		// no call if the limit does not change
+		limit.addSample(RTT, 1, false);
+		Assert.assertEquals(2, limits.size());
+	}
+}
@@ -0,0 +1,28 @@
+package jfms.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BloomFilterTest {
+	@Test
+	public void testFalsePositiveRate() {
+		final int size = 10000;
+		final BloomFilter filter = new BloomFilter(size, 0.01);
+		for (long i=0; i<size; i++) {
+			filter.add(i << 16);
+		}
+
+		// no false negatives
+		for (long i=0; i<size; i++) {
+			Assert.assertTrue(filter.mightContain(i << 16));
+		}
+
+		int falsePositives = 0;
+		for (long i=0; i<size; i++) {
+			if (filter.mightContain((i << 16) + 1)) {
+				falsePositives++;
+			}
+		}
+		Assert.assertTrue(falsePositives < size * 0.02);
+	}
+}
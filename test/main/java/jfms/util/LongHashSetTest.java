@@ -0,0 +1,59 @@
+package jfms.util;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LongHashSetTest {
+	@Test
+	public void testAddRemove() {
+		final LongHashSet set = new LongHashSet();
+		Assert.assertTrue(set.add(0));
+		Assert.assertTrue(set.add(42));
+		Assert.assertTrue(set.add(-1));
+		Assert.assertFalse(set.add(42));
+		Assert.assertEquals(3, set.size());
+
+		Assert.assertTrue(set.contains(0));
+		Assert.assertTrue(set.contains(-1));
+		Assert.assertFalse(set.contains(1));
+
+		Assert.assertTrue(set.remove(0));
+		Assert.assertFalse(set.remove(0));
+		Assert.assertFalse(set.contains(0));
+		Assert.assertEquals(2, set.size());
+
+		set.clear();
+		Assert.assertTrue(set.isEmpty());
+		Assert.assertFalse(set.contains(42));
+	}
+
+	@Test
+	public void testRandom() {
+		final Random random = new Random(1);
+		final LongHashSet set = new LongHashSet();
+		final Set<Long> expected = new HashSet<>();
+
+		// small value range to get collisions and removals of
+		// existing values
+		for (int i=0; i<100000; i++) {
+			final long value = random.nextInt(5000) * 1024L;
+			if (random.nextInt(3) == 0) {
+				Assert.assertEquals(expected.remove(value), set.remove(value));
+			} else {
+				Assert.assertEquals(expected.add(value), set.add(value));
+			}
+		}
+
+		Assert.assertEquals(expected.size(), set.size());
+		for (long value=0; value<5000 * 1024L; value+=1024) {
+			Assert.assertEquals(expected.contains(value), set.contains(value));
+		}
+
+		final Set<Long> iterated = new HashSet<>();
+		set.forEach(iterated::add);
+		Assert.assertEquals(expected, iterated);
+	}
+}